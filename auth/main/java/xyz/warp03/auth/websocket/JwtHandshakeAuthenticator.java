@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2022-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.auth.websocket;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtException;
+
+import xyz.warp03.auth.oidc.OIDCJwtParser;
+import xyz.warp03.netutil.websocket.WebSocketChannel;
+import xyz.warp03.netutil.websocket.WebSocketServer;
+import xyz.warp03.netutil.websocket.http.HTTPMessage;
+import xyz.warp03.netutil.websocket.http.HTTPUtil;
+
+/**
+ * Authenticates WebSocket handshakes using an OpenID Connect bearer token, for use as the <code>onRequest</code> callback of a {@link WebSocketServer} (see
+ * {@link WebSocketServer#setOnRequest(BiFunction)}).<br>
+ * <br>
+ * The token is read from the <code>Authorization</code> header, a query parameter or a subprotocol offered by the client, and verified using an {@link OIDCJwtParser}.
+ * Handshakes without a valid token are rejected with status <i>401</i>. The claims of a valid token are attached to the channel and can be retrieved using
+ * {@link #getClaims(WebSocketChannel)}.<br>
+ * <br>
+ * Verified tokens are cached until they expire, so clients reconnecting with the same token do not require verifying its signature again. Tokens without an expiration
+ * time are not cached. The cache holds at most a fixed number of tokens, evicting the least recently used one.
+ */
+public class JwtHandshakeAuthenticator implements BiFunction<URI, HTTPMessage, HTTPMessage> {
+
+	/**
+	 * The name of the channel attribute containing the {@link Claims} of the verified token.
+	 */
+	public static final String CLAIMS_ATTRIBUTE = JwtHandshakeAuthenticator.class.getName() + ".claims";
+
+
+	private final OIDCJwtParser parser;
+
+	private String headerName = "authorization";
+	private String queryParameter;
+	private String subprotocolPrefix;
+
+	private final Map<String, CachedToken> cache;
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong cacheMisses = new AtomicLong();
+
+	public JwtHandshakeAuthenticator(OIDCJwtParser parser){
+		this(parser, 10000);
+	}
+
+	/**
+	 *
+	 * @param parser The parser verifying tokens
+	 * @param cacheSize The maximum number of verified tokens to cache, or <code>0</code> to disable the cache
+	 */
+	public JwtHandshakeAuthenticator(OIDCJwtParser parser, int cacheSize){
+		this.parser = Objects.requireNonNull(parser);
+		if(cacheSize < 0)
+			throw new IllegalArgumentException("cacheSize must not be negative");
+		this.cache = new LinkedHashMap<String, CachedToken>(16, 0.75f, true){
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedToken> eldest){
+				return this.size() > cacheSize;
+			}
+		};
+	}
+
+
+	@Override
+	public HTTPMessage apply(URI requestURI, HTTPMessage request){
+		Claims claims;
+		try{
+			String token = this.getToken(requestURI, request);
+			if(token == null)
+				return unauthorized(null);
+			claims = this.verify(token);
+		}catch(RuntimeException e){
+			// not only JwtExceptions: the parser also fails with other exceptions on some malformed tokens, for example if the issuer claim is missing
+			return unauthorized("invalid_token");
+		}
+		request.setAttribute(CLAIMS_ATTRIBUTE, claims);
+		return null;
+	}
+
+	/**
+	 * Verifies the given token, or returns the claims of a cached token if the same token was verified before and did not expire yet.
+	 *
+	 * @param token The token
+	 * @return The claims of the token
+	 * @throws JwtException If the token is invalid
+	 */
+	public Claims verify(String token){
+		long now = System.currentTimeMillis();
+		synchronized(this.cache){
+			CachedToken cached = this.cache.get(token);
+			if(cached != null){
+				if(now < cached.expiration){
+					this.cacheHits.incrementAndGet();
+					return cached.claims;
+				}
+				this.cache.remove(token);
+			}
+		}
+		this.cacheMisses.incrementAndGet();
+		Claims claims = this.parser.parseJws(token).getBody();
+		Date expiration = claims.getExpiration();
+		if(expiration != null){
+			synchronized(this.cache){
+				this.cache.put(token, new CachedToken(claims, expiration.getTime()));
+			}
+		}
+		return claims;
+	}
+
+	private String getToken(URI requestURI, HTTPMessage request){
+		if(this.headerName != null){
+			String value = request.getHeader(this.headerName);
+			if(value != null && value.regionMatches(true, 0, "Bearer ", 0, 7))
+				return value.substring(7).trim();
+		}
+		if(this.queryParameter != null && requestURI.getRawQuery() != null){
+			for(String param : requestURI.getRawQuery().split("&")){
+				int eq = param.indexOf('=');
+				if(eq > 0 && this.queryParameter.equals(urlDecode(param.substring(0, eq))))
+					return urlDecode(param.substring(eq + 1));
+			}
+		}
+		if(this.subprotocolPrefix != null){
+			String protocols = request.getHeader("sec-websocket-protocol");
+			if(protocols != null){
+				for(String protocol : protocols.split(",")){
+					protocol = protocol.trim();
+					if(protocol.startsWith(this.subprotocolPrefix))
+						return protocol.substring(this.subprotocolPrefix.length());
+				}
+			}
+		}
+		return null;
+	}
+
+
+	/**
+	 * Discards all cached tokens, for example after a signing key was revoked.
+	 */
+	public void clearCache(){
+		synchronized(this.cache){
+			this.cache.clear();
+		}
+	}
+
+	/**
+	 *
+	 * @param headerName The name of the header containing the token as <code>Bearer &lt;token&gt;</code>, or <code>null</code> to not read the token from a header. Default
+	 * is <code>authorization</code>
+	 */
+	public void setHeaderName(String headerName){
+		this.headerName = headerName != null ? headerName.toLowerCase() : null;
+	}
+
+	/**
+	 * Sets the name of a query parameter of the request URI containing the token. Since the request URI is often logged, this should only be used for clients that can not
+	 * set headers, like browsers.
+	 *
+	 * @param queryParameter The name of the query parameter, or <code>null</code> to not read the token from the query string. Default is <code>null</code>
+	 */
+	public void setQueryParameter(String queryParameter){
+		this.queryParameter = queryParameter;
+	}
+
+	/**
+	 * Sets the prefix of a subprotocol offered by the client in the <code>Sec-WebSocket-Protocol</code> header, which is followed by the token. The
+	 * <code>onProtocolRequest</code> callback of the server must not select this subprotocol.
+	 *
+	 * @param subprotocolPrefix The prefix, for example <code>bearer.</code>, or <code>null</code> to not read the token from a subprotocol. Default is <code>null</code>
+	 */
+	public void setSubprotocolPrefix(String subprotocolPrefix){
+		this.subprotocolPrefix = subprotocolPrefix;
+	}
+
+	public long getCacheHits(){
+		return this.cacheHits.get();
+	}
+
+	public long getCacheMisses(){
+		return this.cacheMisses.get();
+	}
+
+
+	/**
+	 *
+	 * @param channel The channel
+	 * @return The claims of the token the channel was authenticated with, or <code>null</code> if it was not authenticated by a <code>JwtHandshakeAuthenticator</code>
+	 */
+	public static Claims getClaims(WebSocketChannel channel){
+		return (Claims) channel.getAttribute(CLAIMS_ATTRIBUTE);
+	}
+
+	private static String urlDecode(String s){
+		try{
+			return URLDecoder.decode(s, "UTF-8");
+		}catch(UnsupportedEncodingException e){
+			throw new AssertionError(e);
+		}
+	}
+
+	private static HTTPMessage unauthorized(String error){
+		HTTPMessage response = HTTPUtil.newResponse(401);
+		response.setHeader("www-authenticate", error != null ? "Bearer error=\"" + error + "\"" : "Bearer");
+		response.setHeader("content-length", "0");
+		return response;
+	}
+
+
+	private static class CachedToken {
+
+		private final Claims claims;
+		private final long expiration;
+
+		public CachedToken(Claims claims, long expiration){
+			this.claims = claims;
+			this.expiration = expiration;
+		}
+	}
+}
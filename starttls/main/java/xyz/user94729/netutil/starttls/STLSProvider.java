@@ -10,9 +10,10 @@ import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.util.Arrays;
+import java.util.ArrayDeque;
 import java.util.Deque;
-import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
 
 import org.omegazero.net.socket.ChannelConnection;
 import org.omegazero.net.socket.SocketConnection;
@@ -20,10 +21,29 @@ import org.omegazero.net.socket.provider.ChannelProvider;
 
 public class STLSProvider implements ChannelProvider {
 
+	private static final int RECORD_HEADER_SIZE = 5;
+	// 2^14 bytes of plaintext plus the maximum expansion allowed by TLS 1.2 (RFC 5246, section 6.2.3)
+	private static final int MAX_RECORD_LENGTH = (1 << 14) + 2048;
+
 
 	private final SocketConnection transport;
 
-	private final Deque<byte[]> readQueue = new LinkedList<>();
+	// data received from the transport; read drains the buffer at the head in place, so chunks are never split or copied except into the buffer passed to read
+	private final Deque<ByteBuffer> readQueue = new ArrayDeque<>();
+
+	// positions in the stream of bytes received from the transport
+	private long received = 0;
+	private long consumed = 0;
+	private long recordEnd = 0;
+	private long completeRecordsEnd = 0;
+	// end positions of complete records not fully read yet, as a ring buffer; read never returns data of more than one record, so the engine never holds a complete
+	// record it has not processed
+	private long[] recordEnds = new long[16];
+	private int recordEndsHead = 0;
+	private int recordEndsSize = 0;
+	private final byte[] recordHeader = new byte[RECORD_HEADER_SIZE];
+	private int recordHeaderSize = 0;
+	private boolean unframed = false;
 
 	public STLSProvider(SocketConnection transport) {
 		this.transport = transport;
@@ -35,20 +55,102 @@ public class STLSProvider implements ChannelProvider {
 		connection.setOnTimeout(this.transport::handleTimeout);
 		connection.setOnError(this.transport::handleError);
 
+		Callable<byte[]> engineRead = connection::read;
+		Consumer<byte[]> plaintextHandler = connection::handleData;
 		this.transport.setOnData((d) -> {
-			synchronized(STLSProvider.this){
-				this.readQueue.add(d);
-				while(!this.readQueue.isEmpty()){
-					byte[] td = connection.read();
-					if(td != null)
-						connection.handleData(td);
-				}
-			}
+			this.received(d, engineRead, plaintextHandler);
 		});
 		this.transport.setOnClose(connection::close);
 	}
 
 
+	/**
+	 * Queues <b>data</b> received from the transport and calls <b>engineRead</b> (which reads from this provider) as long as it makes progress, passing any decrypted data to
+	 * <b>plaintextHandler</b>.
+	 */
+	synchronized void received(byte[] data, Callable<byte[]> engineRead, Consumer<byte[]> plaintextHandler) throws Exception {
+		this.readQueue.add(ByteBuffer.wrap(data));
+		this.scanRecords(data);
+		// the TLS engine can not do anything with a partial record, so it is only called if a complete record was received, and until it stops making progress;
+		// the rest of a partial record is processed on a later transport event
+		boolean progress = this.consumed < this.completeRecordsEnd;
+		while(progress){
+			long consumedBefore = this.consumed;
+			byte[] td = engineRead.call();
+			if(td != null)
+				plaintextHandler.accept(td);
+			progress = td != null || (this.consumed != consumedBefore && this.consumed < this.completeRecordsEnd);
+		}
+	}
+
+
+	/**
+	 * Updates the end of the last complete TLS record received with the given <b>data</b>, which follows all data previously passed to this method.
+	 */
+	private void scanRecords(byte[] data) {
+		if(this.unframed){
+			this.received += data.length;
+			this.completeRecordsEnd = this.received;
+			return;
+		}
+		int index = 0;
+		while(index < data.length){
+			long position = this.received + index;
+			if(position < this.recordEnd){
+				index += (int) Math.min(data.length - index, this.recordEnd - position);
+				if(this.received + index == this.recordEnd)
+					this.recordComplete(this.recordEnd);
+				continue;
+			}
+			this.recordHeader[this.recordHeaderSize++] = data[index++];
+			if(this.recordHeaderSize < RECORD_HEADER_SIZE)
+				continue;
+			this.recordHeaderSize = 0;
+			int type = this.recordHeader[0] & 0xff;
+			int length = ((this.recordHeader[3] & 0xff) << 8) | (this.recordHeader[4] & 0xff);
+			if(type < 20 || type > 24 || length > MAX_RECORD_LENGTH){
+				// not TLS; let the engine see all data so that it reports the error
+				this.unframed = true;
+				this.recordEndsSize = 0;
+				this.received += data.length;
+				this.completeRecordsEnd = this.received;
+				return;
+			}
+			this.recordEnd = this.received + index + length;
+			if(length == 0)
+				this.recordComplete(this.recordEnd);
+		}
+		this.received += data.length;
+	}
+
+	private void recordComplete(long end) {
+		this.completeRecordsEnd = end;
+		if(this.recordEndsSize == this.recordEnds.length){
+			long[] recordEnds = new long[this.recordEnds.length * 2];
+			for(int i = 0; i < this.recordEndsSize; i++)
+				recordEnds[i] = this.recordEnds[(this.recordEndsHead + i) % this.recordEnds.length];
+			this.recordEnds = recordEnds;
+			this.recordEndsHead = 0;
+		}
+		this.recordEnds[(this.recordEndsHead + this.recordEndsSize) % this.recordEnds.length] = end;
+		this.recordEndsSize++;
+	}
+
+	/**
+	 * Returns the number of bytes that may be passed to the engine by the next call to {@link #read(ByteBuffer)}: the rest of the next complete record, or all received data if
+	 * the data is not framed.
+	 */
+	private long readable() {
+		if(this.unframed)
+			return this.received - this.consumed;
+		while(this.recordEndsSize > 0 && this.recordEnds[this.recordEndsHead] <= this.consumed){
+			this.recordEndsHead = (this.recordEndsHead + 1) % this.recordEnds.length;
+			this.recordEndsSize--;
+		}
+		return this.recordEndsSize > 0 ? this.recordEnds[this.recordEndsHead] - this.consumed : 0;
+	}
+
+
 	@Override
 	public boolean connect(SocketAddress remote, int timeout) throws IOException {
 		throw new UnsupportedOperationException();
@@ -63,21 +165,26 @@ public class STLSProvider implements ChannelProvider {
 
 	@Override
 	public synchronized int read(ByteBuffer buf) throws IOException {
-		byte[] data = this.readQueue.poll();
-		if(data != null){
-			if(data.length > buf.remaining()){
-				byte[] r = Arrays.copyOfRange(data, buf.remaining(), data.length);
-				this.readQueue.addFirst(r);
-				data = Arrays.copyOf(data, buf.remaining());
-			}
-			buf.put(data);
-			return data.length;
-		}else
-			return 0;
+		int read = 0;
+		long readable = this.readable();
+		ByteBuffer data;
+		while(buf.hasRemaining() && read < readable && (data = this.readQueue.peek()) != null){
+			int n = (int) Math.min(Math.min(data.remaining(), buf.remaining()), readable - read);
+			ByteBuffer src = data.duplicate();
+			src.limit(src.position() + n);
+			buf.put(src);
+			data.position(data.position() + n);
+			read += n;
+			if(!data.hasRemaining())
+				this.readQueue.poll();
+		}
+		this.consumed += read;
+		return read;
 	}
 
 	@Override
 	public int write(ByteBuffer buf) throws IOException {
+		// the transport may keep the array after this method returns, while the caller reuses buf, so the data must be copied once
 		if(buf.hasRemaining()){
 			byte[] data = new byte[buf.remaining()];
 			buf.get(data);
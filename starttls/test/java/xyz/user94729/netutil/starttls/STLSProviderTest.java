@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2021 user94729
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.user94729.netutil.starttls;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Standalone test of the record handling of {@link STLSProvider}, using a stub TLS engine instead of a transport connection. Run with <code>java -ea</code>.
+ */
+public class STLSProviderTest {
+
+	private static final int TYPE_HANDSHAKE = 22;
+	private static final int TYPE_APPLICATION_DATA = 23;
+
+
+	public static void main(String[] args) throws Exception {
+		testOneByteAtATime();
+		testTwoHandshakeRecordsInOneChunk();
+		testRecordsSplitAcrossChunks();
+		System.out.println("All tests passed");
+	}
+
+
+	/**
+	 * Delivers many records one byte per transport event. The engine may only be called when a complete record is available, so the number of calls and the CPU time stay
+	 * proportional to the number of records, not to the number of bytes.
+	 */
+	private static void testOneByteAtATime() throws Exception {
+		STLSProvider provider = new STLSProvider(null);
+		StubEngine engine = new StubEngine(provider);
+		int records = 2000;
+		List<byte[]> payloads = new ArrayList<>();
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		for(int i = 0; i < records; i++){
+			byte[] payload = new byte[1 + i % 200];
+			Arrays.fill(payload, (byte) i);
+			payloads.add(payload);
+			stream.write(record(TYPE_APPLICATION_DATA, payload));
+		}
+		byte[] data = stream.toByteArray();
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long cpuStart = threads.getCurrentThreadCpuTime();
+		for(byte b : data)
+			provider.received(new byte[] { b }, engine::read, engine.plaintext::add);
+		long cpuTime = threads.getCurrentThreadCpuTime() - cpuStart;
+
+		check(engine.plaintext.size() == records, "Expected " + records + " records, got " + engine.plaintext.size());
+		for(int i = 0; i < records; i++)
+			check(Arrays.equals(payloads.get(i), engine.plaintext.get(i)), "Record " + i + " differs");
+		// one call that returns the record and one that finds nothing left
+		check(engine.calls <= records * 2, "Engine called " + engine.calls + " times for " + records + " records");
+		check(cpuTime < 2_000_000_000L, "CPU time " + cpuTime / 1000000 + "ms for " + data.length + " bytes");
+	}
+
+	/**
+	 * Two handshake records, which produce no data, arrive in one chunk. Both must be processed during that transport event, even though the engine unwraps only one record
+	 * per call.
+	 */
+	private static void testTwoHandshakeRecordsInOneChunk() throws Exception {
+		STLSProvider provider = new STLSProvider(null);
+		StubEngine engine = new StubEngine(provider);
+		ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+		chunk.write(record(TYPE_HANDSHAKE, new byte[40]));
+		chunk.write(record(TYPE_HANDSHAKE, new byte[60]));
+		provider.received(chunk.toByteArray(), engine::read, engine.plaintext::add);
+		check(engine.handshakeRecords == 2, "Processed " + engine.handshakeRecords + " of 2 handshake records");
+
+		provider.received(record(TYPE_APPLICATION_DATA, new byte[] { 1, 2, 3 }), engine::read, engine.plaintext::add);
+		check(engine.plaintext.size() == 1 && Arrays.equals(engine.plaintext.get(0), new byte[] { 1, 2, 3 }), "Application data after handshake not received");
+	}
+
+	/**
+	 * Records are split across chunks at arbitrary positions, including inside the record header.
+	 */
+	private static void testRecordsSplitAcrossChunks() throws Exception {
+		STLSProvider provider = new STLSProvider(null);
+		StubEngine engine = new StubEngine(provider);
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		stream.write(record(TYPE_HANDSHAKE, new byte[10]));
+		for(int i = 0; i < 20; i++)
+			stream.write(record(TYPE_APPLICATION_DATA, new byte[] { (byte) i }));
+		byte[] data = stream.toByteArray();
+		for(int i = 0; i < data.length; i += 7)
+			provider.received(Arrays.copyOfRange(data, i, Math.min(data.length, i + 7)), engine::read, engine.plaintext::add);
+		check(engine.handshakeRecords == 1 && engine.plaintext.size() == 20, "Got " + engine.handshakeRecords + " handshake and " + engine.plaintext.size() + " data records");
+		for(int i = 0; i < 20; i++)
+			check(engine.plaintext.get(i)[0] == i, "Record " + i + " out of order");
+	}
+
+
+	private static byte[] record(int type, byte[] payload) {
+		byte[] record = new byte[5 + payload.length];
+		record[0] = (byte) type;
+		record[1] = 3;
+		record[2] = 3;
+		record[3] = (byte) (payload.length >> 8);
+		record[4] = (byte) payload.length;
+		System.arraycopy(payload, 0, record, 5, payload.length);
+		return record;
+	}
+
+	private static void check(boolean condition, String message) {
+		if(!condition)
+			throw new AssertionError(message);
+	}
+
+
+	/**
+	 * Behaves like an <code>SSLEngine</code> based connection: reads as much as its buffer can hold from the provider, but unwraps at most one record per call. Handshake
+	 * records are processed without producing data.
+	 */
+	private static class StubEngine {
+
+		private final STLSProvider provider;
+		private final ByteBuffer netBuffer = ByteBuffer.allocate(1 << 16);
+
+		public final List<byte[]> plaintext = new ArrayList<>();
+		public int handshakeRecords = 0;
+		public int calls = 0;
+
+		public StubEngine(STLSProvider provider) {
+			this.provider = provider;
+		}
+
+
+		public byte[] read() throws IOException {
+			this.calls++;
+			this.provider.read(this.netBuffer);
+			this.netBuffer.flip();
+			try{
+				if(this.netBuffer.remaining() < 5)
+					return null;
+				int start = this.netBuffer.position();
+				int type = this.netBuffer.get(start) & 0xff;
+				int length = ((this.netBuffer.get(start + 3) & 0xff) << 8) | (this.netBuffer.get(start + 4) & 0xff);
+				if(this.netBuffer.remaining() < 5 + length)
+					return null;
+				byte[] payload = new byte[length];
+				this.netBuffer.position(start + 5);
+				this.netBuffer.get(payload);
+				if(type == TYPE_HANDSHAKE){
+					this.handshakeRecords++;
+					return null;
+				}
+				return payload;
+			}finally{
+				this.netBuffer.compact();
+			}
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.omegazero.common.util.PropertyUtil;
+
+/**
+ * A thread-safe pool of direct {@link ByteBuffer}s with a limit on the total amount of direct memory held by the pool.<br>
+ * <br>
+ * Buffers are pooled in power-of-two size classes. A buffer returned by {@link #allocate(int)} must be passed back to {@link #release(ByteBuffer)} when it is no longer
+ * needed. Buffers larger than the largest size class are not pooled, but still count towards the memory limit while in use.
+ */
+public class DirectBufferPool {
+
+	private static final int MIN_CLASS_SHIFT = 12;
+	private static final int MAX_CLASS_SHIFT = 30;
+
+	private static final DirectBufferPool defaultPool = new DirectBufferPool(PropertyUtil.getLong("xyz.warp03.netutil.websocket.maxDirectMemory", 256L << 20));
+
+
+	private final long maxMemory;
+	private final AtomicLong allocatedMemory = new AtomicLong();
+	private final AtomicLong usedMemory = new AtomicLong();
+	private final List<Queue<ByteBuffer>> freeBuffers;
+
+	/**
+	 * Creates a new <code>DirectBufferPool</code>.
+	 *
+	 * @param maxMemory The maximum number of bytes of direct memory held by this pool, including both buffers in use and pooled buffers
+	 */
+	public DirectBufferPool(long maxMemory) {
+		if(maxMemory <= 0)
+			throw new IllegalArgumentException("maxMemory must be positive");
+		this.maxMemory = maxMemory;
+		int classes = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+		this.freeBuffers = new ArrayList<>(classes);
+		for(int i = 0; i < classes; i++)
+			this.freeBuffers.add(new ConcurrentLinkedQueue<>());
+	}
+
+
+	/**
+	 * Returns a direct buffer with a capacity of at least <b>size</b> bytes. The position of the returned buffer is <code>0</code> and the limit is its capacity.
+	 *
+	 * @param size The minimum capacity
+	 * @return The buffer, or <code>null</code> if allocating the buffer would exceed the memory limit of this pool
+	 */
+	public ByteBuffer allocate(int size) {
+		if(size < 0)
+			throw new IllegalArgumentException("Negative size");
+		int sizeClass = sizeClass(size);
+		ByteBuffer buf;
+		if(sizeClass >= 0){
+			buf = this.freeBuffers.get(sizeClass).poll();
+			if(buf != null){
+				this.usedMemory.addAndGet(buf.capacity());
+				return buf;
+			}
+			size = 1 << (sizeClass + MIN_CLASS_SHIFT);
+		}
+		if(!this.reserve(size)){
+			this.trim(size);
+			if(!this.reserve(size))
+				return null;
+		}
+		try{
+			buf = ByteBuffer.allocateDirect(size);
+		}catch(OutOfMemoryError e){
+			this.allocatedMemory.addAndGet(-size);
+			return null;
+		}
+		this.usedMemory.addAndGet(size);
+		return buf;
+	}
+
+	/**
+	 * Returns a buffer previously returned by {@link #allocate(int)} to this pool. The buffer must not be used after calling this method.
+	 *
+	 * @param buf The buffer
+	 */
+	public void release(ByteBuffer buf) {
+		int capacity = buf.capacity();
+		this.usedMemory.addAndGet(-capacity);
+		int sizeClass = sizeClass(capacity);
+		if(sizeClass >= 0 && (1 << (sizeClass + MIN_CLASS_SHIFT)) == capacity){
+			buf.clear();
+			this.freeBuffers.get(sizeClass).add(buf);
+		}else
+			this.allocatedMemory.addAndGet(-capacity);
+	}
+
+
+	private boolean reserve(int size) {
+		long allocated;
+		do{
+			allocated = this.allocatedMemory.get();
+			if(allocated + size > this.maxMemory)
+				return false;
+		}while(!this.allocatedMemory.compareAndSet(allocated, allocated + size));
+		return true;
+	}
+
+	private void trim(int required) {
+		// pooled buffers are dropped and left to the garbage collector until enough of the memory limit is available again
+		for(int i = this.freeBuffers.size() - 1; i >= 0 && this.allocatedMemory.get() + required > this.maxMemory; i--){
+			ByteBuffer buf;
+			while(this.allocatedMemory.get() + required > this.maxMemory && (buf = this.freeBuffers.get(i).poll()) != null)
+				this.allocatedMemory.addAndGet(-buf.capacity());
+		}
+	}
+
+
+	/**
+	 *
+	 * @return The maximum number of bytes of direct memory held by this pool
+	 */
+	public long getMaxMemory() {
+		return this.maxMemory;
+	}
+
+	/**
+	 *
+	 * @return The number of bytes of direct memory currently held by this pool, including both buffers in use and pooled buffers
+	 */
+	public long getAllocatedMemory() {
+		return this.allocatedMemory.get();
+	}
+
+	/**
+	 *
+	 * @return The number of bytes of direct memory in buffers that are currently in use
+	 */
+	public long getUsedMemory() {
+		return this.usedMemory.get();
+	}
+
+
+	private static int sizeClass(int size) {
+		if(size > (1 << MAX_CLASS_SHIFT))
+			return -1;
+		int shift = size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+		return Math.max(shift, MIN_CLASS_SHIFT) - MIN_CLASS_SHIFT;
+	}
+
+
+	/**
+	 *
+	 * @return The default pool, whose memory limit is set using the <code>xyz.warp03.netutil.websocket.maxDirectMemory</code> system property (default 256MiB)
+	 */
+	public static DirectBufferPool getDefault() {
+		return defaultPool;
+	}
+}
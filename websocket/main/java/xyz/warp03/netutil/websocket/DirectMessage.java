@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.omegazero.common.logging.Logger;
+import org.omegazero.common.logging.LoggerUtil;
+import org.omegazero.common.util.PropertyUtil;
+
+/**
+ * A WebSocket message whose data is stored in pooled direct memory.<br>
+ * <br>
+ * The memory of the message is only returned to its {@link DirectBufferPool} when {@link #release()} is called, which must be done exactly once after the application no
+ * longer needs the data. If the <code>xyz.warp03.netutil.websocket.debug</code> system property is <code>true</code>, a warning including the location where the message was
+ * created is logged for every message that becomes unreachable without being released.
+ *
+ * @see WebSocketChannel#setOnDirectMessage(java.util.function.BiConsumer)
+ */
+public final class DirectMessage {
+
+	private static final Logger logger = LoggerUtil.createLogger();
+
+	private static final boolean leakDetection = PropertyUtil.getBoolean("xyz.warp03.netutil.websocket.debug", false);
+	private static final Cleaner cleaner = leakDetection ? Cleaner.create() : null;
+
+
+	private final ByteBuffer data;
+	private final State state;
+	private final Cleaner.Cleanable cleanable;
+
+	DirectMessage(DirectBufferPool pool, ByteBuffer buffer) {
+		this.data = buffer.asReadOnlyBuffer();
+		this.state = new State(pool, buffer, leakDetection ? new Throwable("Message created here") : null);
+		this.cleanable = cleaner != null ? cleaner.register(this, this.state) : null;
+	}
+
+
+	/**
+	 * Returns a new read-only view of the data of this message. The position of the returned buffer is <code>0</code> and the limit is the size of the message.
+	 *
+	 * @return The message data
+	 * @throws IllegalStateException If this message was released
+	 */
+	public ByteBuffer getData() {
+		if(this.state.released.get())
+			throw new IllegalStateException("Message was released");
+		return this.data.duplicate();
+	}
+
+	/**
+	 *
+	 * @return The size of this message in bytes
+	 */
+	public int size() {
+		return this.data.limit();
+	}
+
+	/**
+	 * Returns the memory of this message to the pool. Any buffers returned by {@link #getData()} must not be used after calling this method. Subsequent calls to this method
+	 * have no effect.
+	 */
+	public void release() {
+		if(!this.state.released.compareAndSet(false, true))
+			return;
+		this.state.pool.release(this.state.buffer);
+		if(this.cleanable != null)
+			this.cleanable.clean();
+	}
+
+
+	private static class State implements Runnable {
+
+		private final DirectBufferPool pool;
+		private final ByteBuffer buffer;
+		private final Throwable allocationTrace;
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		public State(DirectBufferPool pool, ByteBuffer buffer, Throwable allocationTrace) {
+			this.pool = pool;
+			this.buffer = buffer;
+			this.allocationTrace = allocationTrace;
+		}
+
+
+		@Override
+		public void run() {
+			if(!this.released.compareAndSet(false, true))
+				return;
+			logger.warn("DirectMessage of ", this.buffer.limit(), " bytes was not released before it was garbage collected: ", this.allocationTrace);
+			this.pool.release(this.buffer);
+		}
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+
+import xyz.warp03.netutil.websocket.http.HTTPMessage;
+
+/**
+ * A "200" response whose body is the content of a file, which is written to the connection by the {@link WebSocketServer} without reading it into an array first.<br>
+ * <br>
+ * Instances are cached and returned for any number of requests, so the headers must not be changed after creation. The encoded header block is also cached.
+ */
+final class FileResponse extends HTTPMessage {
+
+	private final Path path;
+	private final long size;
+	private final FileTime lastModified;
+
+	private Map<String, String> encodedAdditionalHeaders;
+	private byte[] encodedHead;
+
+	public FileResponse(Path path, long size, FileTime lastModified) {
+		super("HTTP/1.1 200");
+		this.path = path;
+		this.size = size;
+		this.lastModified = lastModified;
+	}
+
+
+	public Path getPath() {
+		return this.path;
+	}
+
+	public long getSize() {
+		return this.size;
+	}
+
+	public FileTime getLastModified() {
+		return this.lastModified;
+	}
+
+	/**
+	 * Returns the encoded header block of this response including the given <b>additionalHeaders</b> that are not set in this response. The result is cached until a
+	 * different map is passed.
+	 */
+	public synchronized byte[] getHead(Map<String, String> additionalHeaders) {
+		if(this.encodedHead == null || this.encodedAdditionalHeaders != additionalHeaders){
+			HTTPMessage head = new HTTPMessage(this.getStartLine());
+			for(Map.Entry<String, String> header : this.getHeaders().entrySet())
+				head.setHeader(header.getKey(), header.getValue());
+			for(Map.Entry<String, String> header : additionalHeaders.entrySet()){
+				if(!head.headerExists(header.getKey()))
+					head.setHeader(header.getKey(), header.getValue());
+			}
+			this.encodedHead = head.toHeaderBytes();
+			this.encodedAdditionalHeaders = additionalHeaders;
+		}
+		return this.encodedHead;
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A file being sent as a fragmented binary WebSocket message. The file is read in bounded chunks using position reads directly into the frames being sent, so the memory
+ * used does not depend on the size of the file.
+ */
+class FileTransfer extends OutboundStream {
+
+	private final FileChannel file;
+	private final long end;
+	private final boolean closeFile;
+	private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+	private long position;
+	private boolean started = false;
+
+	public FileTransfer(FileChannel file, long position, long length, boolean closeFile) {
+		if(position < 0 || length < 0)
+			throw new IllegalArgumentException("Negative position or length");
+		this.file = file;
+		this.position = position;
+		this.end = position + length;
+		this.closeFile = closeFile;
+	}
+
+
+	@Override
+	public int writeNext(WebSocketChannel channel) throws IOException {
+		int length = (int) Math.min(channel.getFragmentSize(), this.end - this.position);
+		boolean fin = this.position + length >= this.end;
+		boolean client = channel.isClient();
+		int mkey = client ? WebSocketChannel.newMaskingKey() : 0;
+		int opcode = this.started ? WSCommon.WS_OPCODE_CONTINUATION : WSCommon.WS_OPCODE_BINARY;
+		byte[] frame = channel.newFrame(opcode, fin, length, mkey);
+		channel.frameEncoded(opcode, fin, length);
+		int start = frame.length - length;
+		ByteBuffer target = ByteBuffer.wrap(frame, start, length);
+		long readPosition = this.position;
+		while(target.hasRemaining()){
+			int r = this.file.read(target, readPosition);
+			if(r < 0)
+				throw new EOFException("File ended " + (this.end - readPosition) + " bytes early");
+			readPosition += r;
+		}
+		if(client)
+			WebSocketChannel.maskData(frame, start, frame.length, mkey);
+		channel.transportWrite(frame);
+		this.started = true;
+		this.position += length;
+		if(fin){
+			this.closeFile();
+			this.future.complete(null);
+			return DONE;
+		}
+		return MORE;
+	}
+
+	@Override
+	public void fail(Throwable cause) {
+		this.closeFile();
+		this.future.completeExceptionally(cause);
+	}
+
+	private void closeFile() {
+		if(!this.closeFile)
+			return;
+		try{
+			this.file.close();
+		}catch(IOException e){
+			// nothing useful to do here, the file was only read
+		}
+	}
+
+
+	public CompletableFuture<Void> getFuture() {
+		return this.future;
+	}
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A fragmented message written by the application frame by frame using {@link WebSocketChannel#writeFragment(int, boolean, java.nio.ByteBuffer...)}.
+ */
+class FragmentStream extends OutboundStream {
+
+	private final Queue<byte[]> frames = new ConcurrentLinkedQueue<>();
+	private volatile boolean aborted = false;
+
+	public void add(byte[] frame) {
+		this.frames.add(frame);
+	}
+
+	/**
+	 * Marks this stream as not being completed by the application, because the channel is closing. Frames that were already added are still written, after which the stream
+	 * fails, so the outbound queue can continue with the data and close frame behind it.
+	 */
+	public void abort() {
+		this.aborted = true;
+	}
+
+
+	@Override
+	public int writeNext(WebSocketChannel channel) throws IOException {
+		byte[] frame = this.frames.poll();
+		if(frame == null){
+			if(this.aborted)
+				throw new IOException("Channel closed while a fragmented message was being written");
+			return WAITING;
+		}
+		channel.transportWrite(frame);
+		return (frame[0] & 0x80) != 0 ? DONE : MORE;
+	}
+
+	@Override
+	public void fail(Throwable cause) {
+		this.frames.clear();
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+import xyz.warp03.netutil.websocket.jfr.CloseEvent;
+import xyz.warp03.netutil.websocket.jfr.FrameDecodedEvent;
+import xyz.warp03.netutil.websocket.jfr.FrameEncodedEvent;
+import xyz.warp03.netutil.websocket.jfr.HandshakeEvent;
+import xyz.warp03.netutil.websocket.jfr.MessageDeliveredEvent;
+
+/**
+ * Emits the JDK Flight Recorder events in {@link xyz.warp03.netutil.websocket.jfr}.<br>
+ * <br>
+ * Whether the <code>jdk.jfr</code> API is available is checked once. If it is not, all methods do nothing, and the event classes are never loaded, so this library still
+ * works on runtimes without JFR. Events that measure a duration are represented by an opaque object returned by a <code>begin</code> method, which is <code>null</code> if
+ * the event is not recorded. The string constants of the event classes are compile-time constants and may be used without loading the classes.
+ */
+final class JfrEvents {
+
+	private static final boolean available = isAvailable();
+
+
+	static void frameDecoded(long channelId, int opcode, boolean fin, long size, boolean masked) {
+		if(available)
+			Emitter.frameDecoded(channelId, opcode, fin, size, masked);
+	}
+
+	static void frameEncoded(long channelId, int opcode, boolean fin, long size, boolean masked) {
+		if(available)
+			Emitter.frameEncoded(channelId, opcode, fin, size, masked);
+	}
+
+	static void messageDelivered(long channelId, long size, boolean binary) {
+		if(available)
+			Emitter.messageDelivered(channelId, size, binary);
+	}
+
+	static Object beginMessage() {
+		return available ? Emitter.beginMessage() : null;
+	}
+
+	static void endMessage(Object event, long channelId, long size, boolean binary, boolean direct, boolean spilled) {
+		if(event != null)
+			Emitter.endMessage(event, channelId, size, binary, direct, spilled);
+	}
+
+	static void close(long channelId, int code, String initiator) {
+		if(available)
+			Emitter.close(channelId, code, initiator);
+	}
+
+	static Object beginHandshake() {
+		return available ? Emitter.beginHandshake() : null;
+	}
+
+	static void endHandshake(Object event, boolean client, String outcome, Object remoteAddress, Object resource, String protocol) {
+		if(event != null)
+			Emitter.endHandshake(event, client, outcome, remoteAddress, resource, protocol);
+	}
+
+
+	private static boolean isAvailable() {
+		try{
+			Class.forName("jdk.jfr.Event");
+			return true;
+		}catch(ClassNotFoundException | LinkageError e){
+			return false;
+		}
+	}
+
+
+	// only loaded if the jdk.jfr API is available
+	private static final class Emitter {
+
+		static void frameDecoded(long channelId, int opcode, boolean fin, long size, boolean masked) {
+			FrameDecodedEvent event = new FrameDecodedEvent();
+			if(event.isEnabled()){
+				event.channelId = channelId;
+				event.opcode = opcode;
+				event.fin = fin;
+				event.size = size;
+				event.masked = masked;
+				event.commit();
+			}
+		}
+
+		static void frameEncoded(long channelId, int opcode, boolean fin, long size, boolean masked) {
+			FrameEncodedEvent event = new FrameEncodedEvent();
+			if(event.isEnabled()){
+				event.channelId = channelId;
+				event.opcode = opcode;
+				event.fin = fin;
+				event.size = size;
+				event.masked = masked;
+				event.commit();
+			}
+		}
+
+		static void messageDelivered(long channelId, long size, boolean binary) {
+			MessageDeliveredEvent event = new MessageDeliveredEvent();
+			if(event.isEnabled()){
+				event.channelId = channelId;
+				event.size = size;
+				event.binary = binary;
+				event.commit();
+			}
+		}
+
+		static Object beginMessage() {
+			MessageDeliveredEvent event = new MessageDeliveredEvent();
+			if(!event.isEnabled())
+				return null;
+			event.begin();
+			return event;
+		}
+
+		static void endMessage(Object e, long channelId, long size, boolean binary, boolean direct, boolean spilled) {
+			MessageDeliveredEvent event = (MessageDeliveredEvent) e;
+			event.end();
+			event.size = size;
+			if(event.shouldCommit()){
+				event.channelId = channelId;
+				event.binary = binary;
+				event.direct = direct;
+				event.spilled = spilled;
+				event.commit();
+			}
+		}
+
+		static void close(long channelId, int code, String initiator) {
+			CloseEvent event = new CloseEvent();
+			if(event.isEnabled()){
+				event.channelId = channelId;
+				event.code = code;
+				event.initiator = initiator;
+				event.commit();
+			}
+		}
+
+		static Object beginHandshake() {
+			HandshakeEvent event = new HandshakeEvent();
+			if(!event.isEnabled())
+				return null;
+			event.begin();
+			return event;
+		}
+
+		static void endHandshake(Object e, boolean client, String outcome, Object remoteAddress, Object resource, String protocol) {
+			HandshakeEvent event = (HandshakeEvent) e;
+			event.end();
+			if(!event.shouldCommit())
+				return;
+			event.client = client;
+			event.outcome = outcome;
+			event.remoteAddress = String.valueOf(remoteAddress);
+			event.resource = resource != null ? resource.toString() : null;
+			event.protocol = protocol;
+			event.commit();
+		}
+	}
+}
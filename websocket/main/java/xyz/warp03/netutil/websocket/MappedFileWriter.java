@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.omegazero.common.logging.Logger;
+import org.omegazero.common.logging.LoggerUtil;
+import org.omegazero.net.socket.SocketConnection;
+
+/**
+ * Writes a file to a {@link SocketConnection} that only accepts arrays, by copying chunks of memory-mapped regions of the file. A chunk is only written while the connection
+ * is writable, so at most one chunk is buffered by the connection for each time it became unwritable.<br>
+ * <br>
+ * Reading from the connection is paused until the file was written, so that the response to another request on the same connection can not be written between two chunks.
+ */
+final class MappedFileWriter {
+
+	private static final Logger logger = LoggerUtil.createLogger();
+
+	private static final int CHUNK_SIZE = 64 << 10;
+	private static final long MAP_SIZE = 16 << 20;
+
+
+	private final SocketConnection connection;
+	private final FileChannel file;
+	private final long end;
+
+	private long position = 0;
+	private MappedByteBuffer region;
+	private boolean done = false;
+
+	public MappedFileWriter(SocketConnection connection, FileChannel file, long length) {
+		this.connection = connection;
+		this.file = file;
+		this.end = length;
+	}
+
+
+	/**
+	 * Writes the given HTTP response header block, followed by the file.
+	 */
+	public void start(byte[] head) {
+		this.connection.setReadBlock(true);
+		this.connection.setOnWritable(this::writeChunks);
+		this.connection.setOnClose(this::finish);
+		this.connection.write(head);
+		this.writeChunks();
+	}
+
+	private synchronized void writeChunks() {
+		try{
+			while(this.position < this.end && !this.done && this.connection.isWritable()){
+				if(this.region == null || !this.region.hasRemaining())
+					this.region = this.file.map(FileChannel.MapMode.READ_ONLY, this.position, Math.min(MAP_SIZE, this.end - this.position));
+				byte[] chunk = new byte[Math.min(CHUNK_SIZE, this.region.remaining())];
+				this.region.get(chunk);
+				this.position += chunk.length;
+				this.connection.write(chunk);
+			}
+		}catch(IOException e){
+			logger.warn("Failed to read file: ", e);
+			this.finish();
+			this.connection.close();
+			return;
+		}
+		if(this.position >= this.end)
+			this.finish();
+	}
+
+	private synchronized void finish() {
+		if(this.done)
+			return;
+		this.done = true;
+		this.region = null;
+		this.connection.setOnWritable(null);
+		try{
+			this.file.close();
+		}catch(IOException e){
+			logger.debug("Error while closing file: ", e);
+		}
+		if(this.connection.isConnected())
+			this.connection.setReadBlock(false);
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A batch of small application messages received in a single WebSocket message using the batching subprotocol {@value #PROTOCOL}.<br>
+ * <br>
+ * A batch is a "binary" WebSocket message containing any number of entries, each consisting of the length of the entry data encoded as an unsigned LEB128 variable-length
+ * integer (at most 5 bytes), followed by the data. The entries are read in place from the received message data, without allocating an array for each entry: the
+ * application either iterates over the batch using {@link #next()} and the accessors of the current entry, or passes a {@link Handler} to {@link #forEach(Handler)}.<br>
+ * <br>
+ * A <code>MessageBatch</code> may only be used during the <code>onBatch</code> callback it was passed to, and is not thread-safe.
+ *
+ * @see WebSocketChannel#setOnBatch(java.util.function.Consumer)
+ * @see WebSocketChannel#writeBatched(byte[])
+ */
+public final class MessageBatch {
+
+	/**
+	 * The name of the WebSocket subprotocol negotiated to enable batching.
+	 */
+	public static final String PROTOCOL = "batch.v1.warp03.xyz";
+
+	static final int MAX_LENGTH_PREFIX_SIZE = 5;
+
+
+	private final byte[] data;
+	private final int count;
+
+	private int position = 0;
+	private int offset = -1;
+	private int length = -1;
+
+	private MessageBatch(byte[] data, int count) {
+		this.data = data;
+		this.count = count;
+	}
+
+
+	/**
+	 *
+	 * @return The number of entries in this batch
+	 */
+	public int count() {
+		return this.count;
+	}
+
+	/**
+	 * Advances to the next entry of this batch. Must be called before the first entry can be accessed.
+	 *
+	 * @return <code>true</code> if there is another entry, <code>false</code> if all entries were read
+	 */
+	public boolean next() {
+		if(this.position >= this.data.length){
+			this.offset = -1;
+			this.length = -1;
+			return false;
+		}
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do{
+			b = this.data[this.position++];
+			value |= (b & 0x7f) << shift;
+			shift += 7;
+		}while(b < 0);
+		this.offset = this.position;
+		this.length = value;
+		this.position += value;
+		return true;
+	}
+
+	/**
+	 * Moves back to the start of this batch, so that the entries can be read again.
+	 */
+	public void reset() {
+		this.position = 0;
+		this.offset = -1;
+		this.length = -1;
+	}
+
+	/**
+	 * Returns the array containing the data of all entries of this batch. The data of the current entry starts at {@link #offset()} and is {@link #length()} bytes long. The
+	 * array must not be modified.
+	 *
+	 * @return The data array
+	 */
+	public byte[] array() {
+		return this.data;
+	}
+
+	/**
+	 *
+	 * @return The index in {@link #array()} where the data of the current entry starts
+	 * @throws IllegalStateException If there is no current entry
+	 */
+	public int offset() {
+		this.checkEntry();
+		return this.offset;
+	}
+
+	/**
+	 *
+	 * @return The size of the data of the current entry in bytes
+	 * @throws IllegalStateException If there is no current entry
+	 */
+	public int length() {
+		this.checkEntry();
+		return this.length;
+	}
+
+	/**
+	 *
+	 * @return A new read-only buffer wrapping the data of the current entry
+	 * @throws IllegalStateException If there is no current entry
+	 */
+	public ByteBuffer buffer() {
+		this.checkEntry();
+		return ByteBuffer.wrap(this.data, this.offset, this.length).slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Calls the given <b>handler</b> for each remaining entry of this batch, starting at the first entry if none was read yet.
+	 *
+	 * @param handler The handler
+	 */
+	public void forEach(Handler handler) {
+		while(this.next())
+			handler.accept(this.data, this.offset, this.length);
+	}
+
+	private void checkEntry() {
+		if(this.offset < 0)
+			throw new IllegalStateException("No current entry");
+	}
+
+
+	/**
+	 * Validates the entries in the given message data and creates a new <code>MessageBatch</code> reading them.
+	 *
+	 * @param data The message data
+	 * @return The batch, or <code>null</code> if <b>data</b> is not a valid batch
+	 */
+	static MessageBatch parse(byte[] data) {
+		int count = 0;
+		int pos = 0;
+		while(pos < data.length){
+			long value = 0;
+			int shift = 0;
+			byte b;
+			do{
+				if(pos >= data.length || shift >= MAX_LENGTH_PREFIX_SIZE * 7)
+					return null;
+				b = data[pos++];
+				value |= (long) (b & 0x7f) << shift;
+				shift += 7;
+			}while(b < 0);
+			if(value > data.length - pos)
+				return null;
+			pos += (int) value;
+			count++;
+		}
+		return new MessageBatch(data, count);
+	}
+
+	/**
+	 * Writes the length prefix of an entry of the given <b>length</b> to <b>dest</b>.
+	 *
+	 * @return The index in <b>dest</b> after the prefix
+	 */
+	static int writeLengthPrefix(byte[] dest, int index, int length) {
+		while((length & ~0x7f) != 0){
+			dest[index++] = (byte) ((length & 0x7f) | 0x80);
+			length >>>= 7;
+		}
+		dest[index++] = (byte) length;
+		return index;
+	}
+
+
+	/**
+	 * A handler for the entries of a {@link MessageBatch}.
+	 */
+	@FunctionalInterface
+	public static interface Handler {
+
+		/**
+		 * Called for each entry of a batch. The data must not be modified and may only be used during this call.
+		 *
+		 * @param data   The array containing the entry data
+		 * @param offset The index in <b>data</b> where the entry data starts
+		 * @param length The size of the entry data in bytes
+		 */
+		public void accept(byte[] data, int offset, int length);
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.omegazero.common.util.PropertyUtil;
+
+/**
+ * Collects small messages written using {@link WebSocketChannel#writeBatched(byte[])} into a single {@link MessageBatch} message, which is written when it reaches the batch
+ * size or when the batch delay elapsed after the first message was added, whichever comes first.
+ */
+final class MessageBatcher {
+
+	private static final int defaultBatchSize = PropertyUtil.getInt("xyz.warp03.netutil.websocket.batchSize", 16 << 10);
+	private static final long defaultBatchDelay = PropertyUtil.getLong("xyz.warp03.netutil.websocket.batchDelay", 5);
+
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor((r) -> {
+		Thread t = new Thread(r, "MessageBatcher");
+		t.setDaemon(true);
+		return t;
+	});
+
+
+	private final WebSocketChannel channel;
+
+	private volatile int batchSize = defaultBatchSize;
+	private volatile long batchDelay = defaultBatchDelay;
+
+	private byte[] buffer = new byte[0];
+	private int length = 0;
+	private ScheduledFuture<?> flushTask;
+
+	public MessageBatcher(WebSocketChannel channel) {
+		this.channel = channel;
+	}
+
+
+	public void setBatchSize(int batchSize) {
+		if(batchSize <= 0)
+			throw new IllegalArgumentException("batchSize must be positive");
+		this.batchSize = batchSize;
+	}
+
+	public void setBatchDelay(long batchDelay) {
+		if(batchDelay < 0)
+			throw new IllegalArgumentException("batchDelay must not be negative");
+		this.batchDelay = batchDelay;
+	}
+
+
+	public synchronized void add(byte[] data) {
+		int entrySize = MessageBatch.MAX_LENGTH_PREFIX_SIZE + data.length;
+		if(this.length > 0 && this.length + entrySize > this.batchSize)
+			this.flush();
+		if(this.length + entrySize > this.buffer.length)
+			this.buffer = Arrays.copyOf(this.buffer, Math.max(Math.max(this.buffer.length * 2, 256), this.length + entrySize));
+		boolean first = this.length == 0;
+		int index = MessageBatch.writeLengthPrefix(this.buffer, this.length, data.length);
+		System.arraycopy(data, 0, this.buffer, index, data.length);
+		this.length = index + data.length;
+		if(this.length >= this.batchSize)
+			this.flush();
+		else if(first && this.batchDelay > 0)
+			this.flushTask = scheduler.schedule(this::delayedFlush, this.batchDelay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Writes the pending batch, if there is one.
+	 *
+	 * @throws IllegalStateException If the channel is not open
+	 */
+	public synchronized void flush() {
+		if(this.flushTask != null){
+			this.flushTask.cancel(false);
+			this.flushTask = null;
+		}
+		if(this.length == 0)
+			return;
+		int len = this.length;
+		this.length = 0;
+		// the frame is encoded in this thread, so the buffer can be reused immediately
+		this.channel.write(ByteBuffer.wrap(this.buffer, 0, len));
+		if(this.buffer.length > this.batchSize * 2)
+			this.buffer = new byte[0];
+	}
+
+	/**
+	 * Discards the pending batch.
+	 */
+	public synchronized void discard() {
+		if(this.flushTask != null){
+			this.flushTask.cancel(false);
+			this.flushTask = null;
+		}
+		this.length = 0;
+	}
+
+
+	private synchronized void delayedFlush() {
+		this.flushTask = null;
+		try{
+			this.flush();
+		}catch(IllegalStateException e){
+			// channel was closed in the meantime
+			this.length = 0;
+		}
+	}
+}
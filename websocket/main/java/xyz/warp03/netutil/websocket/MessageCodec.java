@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Converts application messages of type <code>T</code> to and from the payload of WebSocket messages, for use with {@link WebSocketChannel#send(MessageCodec, Object)} and
+ * {@link WebSocketChannel#setOnMessage(MessageCodec, java.util.function.Consumer)}.<br>
+ * <br>
+ * Messages are encoded directly into the buffer of the frame that is written to the connection, instead of into a separate array that is then copied into the frame.
+ * Implementations must be thread-safe.
+ *
+ * @param <T> The type of messages
+ * @see TextCodec
+ */
+public interface MessageCodec<T> {
+
+	/**
+	 * Returns whether messages are sent as WebSocket "binary" messages. The default implementation returns <code>true</code>.
+	 *
+	 * @return <code>true</code> for "binary" messages, <code>false</code> for "text" messages
+	 */
+	public default boolean isBinary() {
+		return true;
+	}
+
+	/**
+	 * Returns the exact size of the given message when encoded, if it can be determined cheaply. If it can, the message is encoded directly into a frame of exactly the
+	 * right size; otherwise, the message is encoded into a reusable buffer of the calling thread and copied into the frame once. The default implementation returns
+	 * <code>-1</code>.
+	 *
+	 * @param message The message
+	 * @return The size of the encoded message in bytes, or <code>-1</code> if it is not known
+	 */
+	public default int getEncodedSize(T message) {
+		return -1;
+	}
+
+	/**
+	 * Writes the given message to the given buffer, starting at its position. The position must be advanced by the number of bytes written.<br>
+	 * <br>
+	 * If the buffer is too small, this method may throw a {@link BufferOverflowException}, which is thrown by the <code>put</code> methods of <code>ByteBuffer</code> anyway.
+	 * In that case, this method is called again with a larger buffer, unless {@link #getEncodedSize(Object)} returned a size for this message.
+	 *
+	 * @param message The message
+	 * @param buffer  The buffer to write the encoded message to
+	 * @throws BufferOverflowException If the buffer is too small
+	 */
+	public void encode(T message, ByteBuffer buffer);
+
+	/**
+	 * Reads a message from the given buffer, which contains the entire payload of a received WebSocket message. The buffer is only valid until this method returns.
+	 *
+	 * @param buffer The payload
+	 * @return The message
+	 * @throws IllegalArgumentException If the payload is not a valid message. The channel is closed with status {@link WSCommon#WS_STATUS_INVALID_DATA}
+	 */
+	public T decode(ByteBuffer buffer);
+}
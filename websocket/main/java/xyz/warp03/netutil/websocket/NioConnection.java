@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+import org.omegazero.common.logging.Logger;
+import org.omegazero.common.logging.LoggerUtil;
+import org.omegazero.net.socket.SocketConnection;
+
+/**
+ * A {@link SocketConnection} accepted by a {@link NioWebSocketEngine} and served by one {@link NioSelectorThread}.<br>
+ * <br>
+ * Reading and all callbacks happen on the selector thread. Writing is thread-safe: data is written to the socket directly by the calling thread while the socket accepts it,
+ * and the remainder is written by the selector thread once the socket is writable again.
+ */
+class NioConnection extends SocketConnection {
+
+	private static final Logger logger = LoggerUtil.createLogger();
+
+
+	private final NioSelectorThread selectorThread;
+	private final SocketChannel socket;
+	private final SelectionKey key;
+
+	private final ArrayDeque<Object> writeBacklog = new ArrayDeque<>();
+	private boolean backlogged = false;
+	private volatile boolean closePending = false;
+	private volatile boolean closed = false;
+	private boolean socketClosed = false;
+
+	// set by the thread completing the handshake, while reading is paused if that is not the selector thread
+	private volatile WebSocketChannel channel;
+
+	public NioConnection(NioSelectorThread selectorThread, SocketChannel socket, SelectionKey key) {
+		this.selectorThread = selectorThread;
+		this.socket = socket;
+		this.key = key;
+	}
+
+
+	/**
+	 * Called by the selector thread when the socket is readable. The <b>buffer</b> is shared by all connections of the selector thread.
+	 */
+	void readable(ByteBuffer buffer, WebSocketServer server) {
+		try{
+			buffer.clear();
+			int read = this.socket.read(buffer);
+			if(read < 0){
+				this.closeNow();
+				return;
+			}
+			if(read == 0)
+				return;
+			buffer.flip();
+			if(this.channel != null){
+				this.channel.incomingData(buffer);
+			}else{
+				byte[] data = new byte[buffer.remaining()];
+				buffer.get(data);
+				server.handshakeData(this, data);
+			}
+		}catch(Throwable e){
+			super.handleError(e);
+			this.closeNow();
+		}
+	}
+
+	/**
+	 * Called by the {@link WebSocketServer} when the handshake completed.
+	 */
+	void setChannel(WebSocketChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Called by the selector thread when the socket is writable after a previous write did not complete.
+	 */
+	void writable() {
+		try{
+			if(!this.flush())
+				return;
+			synchronized(this){
+				this.backlogged = false;
+				this.setInterest(SelectionKey.OP_WRITE, false);
+			}
+			if(this.closePending){
+				this.closeNow();
+				return;
+			}
+			super.handleWritable();
+		}catch(Throwable e){
+			super.handleError(e);
+			this.closeNow();
+		}
+	}
+
+	/**
+	 * Closes the socket immediately and calls the <code>onClose</code> callback. Must be called by the selector thread.
+	 */
+	void closeNow() {
+		if(this.socketClosed)
+			return;
+		this.socketClosed = true;
+		synchronized(this){
+			this.closed = true;
+			this.clearBacklog();
+		}
+		this.key.cancel();
+		try{
+			this.socket.close();
+		}catch(IOException e){
+			logger.debug("Error while closing socket: ", e);
+		}
+		this.selectorThread.connectionClosed();
+		super.handleClose();
+	}
+
+
+	@Override
+	public void connect(int timeout) {
+		throw new UnsupportedOperationException("Connections accepted by an engine are already connected");
+	}
+
+	@Override
+	public byte[] read() {
+		return null;
+	}
+
+	@Override
+	public void write(byte[] data) {
+		this.writeQueue(data);
+		this.flush();
+	}
+
+	@Override
+	public synchronized void writeQueue(byte[] data) {
+		if(this.closed || data.length == 0)
+			return;
+		this.writeBacklog.add(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Writes the given HTTP response header block followed by <b>length</b> bytes of <b>file</b>, which are transferred to the socket directly using
+	 * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}. The <b>file</b> is closed when the transfer completes or the connection is closed.
+	 */
+	void writeFile(byte[] head, FileChannel file, long length) {
+		synchronized(this){
+			if(this.closed){
+				FileRegion.close(file);
+				return;
+			}
+			this.writeBacklog.add(ByteBuffer.wrap(head));
+			this.writeBacklog.add(new FileRegion(file, length));
+		}
+		this.flush();
+	}
+
+	@Override
+	public synchronized boolean flush() {
+		if(this.closed && !this.closePending)
+			return true;
+		try{
+			Object next;
+			while((next = this.writeBacklog.peek()) != null){
+				if(next instanceof FileRegion){
+					if(!((FileRegion) next).transfer(this.socket))
+						break;
+				}else{
+					ByteBuffer buf = (ByteBuffer) next;
+					this.socket.write(buf);
+					if(buf.hasRemaining())
+						break;
+				}
+				this.writeBacklog.poll();
+			}
+		}catch(IOException e){
+			logger.debug("Write to ", this.getRemoteAddress(), " failed: ", e.toString());
+			this.clearBacklog();
+			this.selectorThread.execute(this::closeNow);
+			return true;
+		}
+		if(this.writeBacklog.isEmpty())
+			return true;
+		if(!this.backlogged){
+			this.backlogged = true;
+			this.setInterest(SelectionKey.OP_WRITE, true);
+		}
+		return false;
+	}
+
+	@Override
+	public void close() {
+		synchronized(this){
+			if(this.closed)
+				return;
+			this.closed = true;
+			this.closePending = !this.writeBacklog.isEmpty();
+		}
+		// remaining data is still written before the socket is closed
+		if(!this.closePending || this.flush())
+			this.selectorThread.execute(this::closeNow);
+	}
+
+	@Override
+	public void destroy() {
+		synchronized(this){
+			this.closePending = false;
+			this.closed = true;
+		}
+		this.selectorThread.execute(this::closeNow);
+	}
+
+	@Override
+	public boolean isConnected() {
+		return !this.closed && this.socket.isOpen();
+	}
+
+	@Override
+	public synchronized boolean isWritable() {
+		return !this.backlogged;
+	}
+
+	@Override
+	public void setReadBlock(boolean block) {
+		this.setInterest(SelectionKey.OP_READ, !block);
+	}
+
+	@Override
+	public SocketAddress getRemoteAddress() {
+		try{
+			return this.socket.getRemoteAddress();
+		}catch(IOException e){
+			return null;
+		}
+	}
+
+
+	private void clearBacklog() {
+		Object next;
+		while((next = this.writeBacklog.poll()) != null){
+			if(next instanceof FileRegion)
+				FileRegion.close(((FileRegion) next).file);
+		}
+	}
+
+	private void setInterest(int op, boolean set) {
+		try{
+			// may be called by any thread, so the update must be atomic
+			synchronized(this){
+				int ops = this.key.interestOps();
+				this.key.interestOps(set ? ops | op : ops & ~op);
+			}
+			this.selectorThread.wakeup();
+		}catch(CancelledKeyException e){
+			// closed
+		}
+	}
+
+
+	private static class FileRegion {
+
+		private final FileChannel file;
+		private final long end;
+		private long position = 0;
+
+		public FileRegion(FileChannel file, long end) {
+			this.file = file;
+			this.end = end;
+		}
+
+
+		/**
+		 * Transfers as much of the remaining region to the <b>socket</b> as it accepts.
+		 *
+		 * @return <code>true</code> if the region was transferred completely
+		 */
+		public boolean transfer(SocketChannel socket) throws IOException {
+			while(this.position < this.end){
+				long n = this.file.transferTo(this.position, this.end - this.position, socket);
+				if(n <= 0){
+					if(this.file.size() < this.end)
+						throw new IOException("File was truncated during transfer");
+					return false;
+				}
+				this.position += n;
+			}
+			close(this.file);
+			return true;
+		}
+
+
+		public static void close(FileChannel file) {
+			try{
+				file.close();
+			}catch(IOException e){
+				logger.debug("Error while closing file: ", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.omegazero.common.logging.Logger;
+import org.omegazero.common.logging.LoggerUtil;
+
+/**
+ * A thread of a {@link NioWebSocketEngine} serving a set of connections using a single {@link Selector}. All connections of this thread share one read buffer.
+ */
+class NioSelectorThread extends Thread {
+
+	private static final Logger logger = LoggerUtil.createLogger();
+
+
+	private final WebSocketServer server;
+	private final Selector selector;
+	private final ByteBuffer readBuffer;
+
+	private final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger connections = new AtomicInteger();
+	private volatile boolean running = true;
+
+	public NioSelectorThread(String name, WebSocketServer server, int readBufferSize) throws IOException {
+		super(name);
+		this.server = server;
+		this.selector = Selector.open();
+		this.readBuffer = ByteBuffer.allocateDirect(readBufferSize);
+	}
+
+
+	@Override
+	public void run() {
+		try{
+			while(this.running){
+				this.selector.select();
+				this.runTasks();
+				this.registerPending();
+				Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+				while(it.hasNext()){
+					SelectionKey key = it.next();
+					it.remove();
+					NioConnection conn = (NioConnection) key.attachment();
+					if(key.isValid() && key.isWritable())
+						conn.writable();
+					if(key.isValid() && key.isReadable())
+						conn.readable(this.readBuffer, this.server);
+				}
+			}
+		}catch(Throwable e){
+			if(this.running)
+				logger.error("Error in selector thread: ", e);
+		}finally{
+			for(SelectionKey key : this.selector.keys().toArray(new SelectionKey[0])){
+				if(key.attachment() instanceof NioConnection)
+					((NioConnection) key.attachment()).closeNow();
+			}
+			SocketChannel socket;
+			while((socket = this.pendingRegistrations.poll()) != null)
+				closeSocket(socket);
+			try{
+				this.selector.close();
+			}catch(IOException e){
+				logger.debug("Error while closing selector: ", e);
+			}
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while((task = this.tasks.poll()) != null){
+			try{
+				task.run();
+			}catch(Exception e){
+				logger.warn("Error in selector task: ", e);
+			}
+		}
+	}
+
+	private void registerPending() {
+		SocketChannel socket;
+		while((socket = this.pendingRegistrations.poll()) != null){
+			try{
+				socket.configureBlocking(false);
+				SelectionKey key = socket.register(this.selector, SelectionKey.OP_READ);
+				key.attach(new NioConnection(this, socket, key));
+			}catch(IOException e){
+				logger.debug("Failed to register connection: ", e);
+				this.connections.decrementAndGet();
+				closeSocket(socket);
+			}
+		}
+	}
+
+
+	/**
+	 * Adds an accepted connection to this thread. Called by the acceptor thread.
+	 */
+	void register(SocketChannel socket) {
+		this.connections.incrementAndGet();
+		this.pendingRegistrations.add(socket);
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Runs the given <b>task</b> on this thread.
+	 */
+	void execute(Runnable task) {
+		if(Thread.currentThread() == this){
+			task.run();
+		}else{
+			this.tasks.add(task);
+			this.selector.wakeup();
+		}
+	}
+
+	void wakeup() {
+		if(Thread.currentThread() != this)
+			this.selector.wakeup();
+	}
+
+	void connectionClosed() {
+		this.connections.decrementAndGet();
+	}
+
+	int getConnectionCount() {
+		return this.connections.get();
+	}
+
+	void shutdown() {
+		this.running = false;
+		this.selector.wakeup();
+	}
+
+
+	private static void closeSocket(SocketChannel socket) {
+		try{
+			socket.close();
+		}catch(IOException e){
+			logger.debug("Error while closing socket: ", e);
+		}
+	}
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.omegazero.common.logging.Logger;
+import org.omegazero.common.logging.LoggerUtil;
+import org.omegazero.common.util.PropertyUtil;
+
+/**
+ * A standalone network engine for a {@link WebSocketServer}, which accepts and serves plain TCP connections using {@link java.nio} directly, as an alternative to passing
+ * connections from an omz-net-lib <code>NetServer</code> to {@link WebSocketServer#newConnection(org.omegazero.net.socket.SocketConnection)}.<br>
+ * <br>
+ * The engine uses one acceptor thread and a configurable number of selector threads (by default, one per available processor). Each accepted connection is assigned to one
+ * selector thread, which reads from and calls all callbacks of that connection for its whole lifetime, either in turn ({@link Balancing#ROUND_ROBIN}) or to the thread
+ * currently serving the fewest connections ({@link Balancing#LEAST_CONNECTIONS}). Data read from a connection is decoded directly from a read buffer reused by all
+ * connections of a selector thread, without allocating an intermediate array for each read.<br>
+ * <br>
+ * The engine does not support TLS; use a <code>NetServer</code> with TLS support instead, or terminate TLS in front of the engine.
+ */
+public class NioWebSocketEngine implements AutoCloseable {
+
+	private static final Logger logger = LoggerUtil.createLogger();
+
+	private static final int defaultSelectorThreads = PropertyUtil.getInt("xyz.warp03.netutil.websocket.engineSelectorThreads", Runtime.getRuntime().availableProcessors());
+	private static final int defaultReadBufferSize = PropertyUtil.getInt("xyz.warp03.netutil.websocket.engineReadBufferSize", 64 << 10);
+
+	private static final long ACCEPT_RETRY_MIN_DELAY = 10;
+	private static final long ACCEPT_RETRY_MAX_DELAY = 1000;
+
+
+	private final WebSocketServer server;
+	private final SocketAddress bindAddress;
+
+	private int selectorThreadCount = defaultSelectorThreads;
+	private int readBufferSize = defaultReadBufferSize;
+	private int backlog = 1024;
+	private Balancing balancing = Balancing.ROUND_ROBIN;
+
+	private ServerSocketChannel serverChannel;
+	private NioSelectorThread[] selectorThreads;
+	private final AtomicInteger nextThread = new AtomicInteger();
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates a new <code>NioWebSocketEngine</code>. The engine is started using {@link #start()}.
+	 *
+	 * @param server      The server to pass accepted connections to
+	 * @param bindAddress The local address to accept connections on
+	 */
+	public NioWebSocketEngine(WebSocketServer server, SocketAddress bindAddress) {
+		this.server = Objects.requireNonNull(server);
+		this.bindAddress = Objects.requireNonNull(bindAddress);
+	}
+
+	/**
+	 * Creates a new <code>NioWebSocketEngine</code> accepting connections on all local addresses.
+	 *
+	 * @param server The server to pass accepted connections to
+	 * @param port   The port to accept connections on
+	 * @see #NioWebSocketEngine(WebSocketServer, SocketAddress)
+	 */
+	public NioWebSocketEngine(WebSocketServer server, int port) {
+		this(server, new InetSocketAddress(port));
+	}
+
+
+	/**
+	 * Sets the number of selector threads. The default is set using the <code>xyz.warp03.netutil.websocket.engineSelectorThreads</code> system property (default is the
+	 * number of available processors).
+	 *
+	 * @param selectorThreadCount The number of threads
+	 * @throws IllegalStateException If the engine was already started
+	 */
+	public void setSelectorThreads(int selectorThreadCount) {
+		if(selectorThreadCount <= 0)
+			throw new IllegalArgumentException("selectorThreadCount must be positive");
+		this.checkNotStarted();
+		this.selectorThreadCount = selectorThreadCount;
+	}
+
+	/**
+	 * Sets the size of the read buffer of each selector thread, which is the maximum number of bytes read from a connection at once. The default is set using the
+	 * <code>xyz.warp03.netutil.websocket.engineReadBufferSize</code> system property (default 64KiB).
+	 *
+	 * @param readBufferSize The size in bytes
+	 * @throws IllegalStateException If the engine was already started
+	 */
+	public void setReadBufferSize(int readBufferSize) {
+		if(readBufferSize <= 0)
+			throw new IllegalArgumentException("readBufferSize must be positive");
+		this.checkNotStarted();
+		this.readBufferSize = readBufferSize;
+	}
+
+	/**
+	 *
+	 * @param backlog The maximum number of pending connections of the server socket. Default is <code>1024</code>
+	 * @throws IllegalStateException If the engine was already started
+	 */
+	public void setBacklog(int backlog) {
+		this.checkNotStarted();
+		this.backlog = backlog;
+	}
+
+	/**
+	 *
+	 * @param balancing The strategy for assigning new connections to selector threads. Default is {@link Balancing#ROUND_ROBIN}
+	 */
+	public void setBalancing(Balancing balancing) {
+		this.balancing = Objects.requireNonNull(balancing);
+	}
+
+
+	/**
+	 * Binds the server socket and starts the acceptor and selector threads.
+	 *
+	 * @throws IOException           If binding the server socket fails
+	 * @throws IllegalStateException If the engine was already started
+	 */
+	public synchronized void start() throws IOException {
+		this.checkNotStarted();
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		try{
+			serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			serverChannel.bind(this.bindAddress, this.backlog);
+			NioSelectorThread[] threads = new NioSelectorThread[this.selectorThreadCount];
+			for(int i = 0; i < threads.length; i++)
+				threads[i] = new NioSelectorThread("NioWebSocketEngine-selector-" + i, this.server, this.readBufferSize);
+			this.selectorThreads = threads;
+		}catch(IOException e){
+			serverChannel.close();
+			throw e;
+		}
+		this.serverChannel = serverChannel;
+		for(NioSelectorThread thread : this.selectorThreads)
+			thread.start();
+		Thread acceptThread = new Thread(this::acceptLoop, "NioWebSocketEngine-acceptor");
+		acceptThread.start();
+	}
+
+	/**
+	 * Stops accepting connections and closes all connections.
+	 */
+	@Override
+	public synchronized void close() {
+		if(this.closed)
+			return;
+		this.closed = true;
+		if(this.serverChannel != null){
+			try{
+				this.serverChannel.close();
+			}catch(IOException e){
+				logger.debug("Error while closing server socket: ", e);
+			}
+		}
+		if(this.selectorThreads != null){
+			for(NioSelectorThread thread : this.selectorThreads)
+				thread.shutdown();
+		}
+	}
+
+
+	private void acceptLoop() {
+		long retryDelay = 0;
+		while(!this.closed){
+			SocketChannel socket;
+			try{
+				socket = this.serverChannel.accept();
+			}catch(ClosedChannelException e){
+				break;
+			}catch(IOException e){
+				if(this.closed)
+					break;
+				// errors like running out of file descriptors usually persist for a while, so retrying immediately would only spin and flood the log
+				retryDelay = Math.min(Math.max(retryDelay * 2, ACCEPT_RETRY_MIN_DELAY), ACCEPT_RETRY_MAX_DELAY);
+				logger.warn("Failed to accept connection, retrying in ", retryDelay, "ms: ", e);
+				try{
+					Thread.sleep(retryDelay);
+				}catch(InterruptedException ie){
+					break;
+				}
+				continue;
+			}
+			retryDelay = 0;
+			try{
+				socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			}catch(IOException e){
+				logger.debug("Failed to set TCP_NODELAY: ", e);
+			}
+			this.selectThread().register(socket);
+		}
+	}
+
+	private NioSelectorThread selectThread() {
+		NioSelectorThread[] threads = this.selectorThreads;
+		if(this.balancing == Balancing.LEAST_CONNECTIONS){
+			NioSelectorThread best = threads[0];
+			for(int i = 1; i < threads.length; i++){
+				if(threads[i].getConnectionCount() < best.getConnectionCount())
+					best = threads[i];
+			}
+			return best;
+		}else
+			return threads[Math.floorMod(this.nextThread.getAndIncrement(), threads.length)];
+	}
+
+	private void checkNotStarted() {
+		if(this.serverChannel != null || this.closed)
+			throw new IllegalStateException("Engine was already started");
+	}
+
+
+	/**
+	 *
+	 * @return The local address the engine accepts connections on, or <code>null</code> if the engine is not started. If the engine was bound to port <code>0</code>, this
+	 *         contains the actual port
+	 */
+	public SocketAddress getLocalAddress() {
+		try{
+			return this.serverChannel != null ? this.serverChannel.getLocalAddress() : null;
+		}catch(IOException e){
+			return null;
+		}
+	}
+
+	/**
+	 *
+	 * @return The number of currently open connections
+	 */
+	public int getConnectionCount() {
+		NioSelectorThread[] threads = this.selectorThreads;
+		if(threads == null)
+			return 0;
+		int count = 0;
+		for(NioSelectorThread thread : threads)
+			count += thread.getConnectionCount();
+		return count;
+	}
+
+	/**
+	 *
+	 * @return The number of currently open connections served by each selector thread
+	 */
+	public int[] getConnectionCountPerThread() {
+		NioSelectorThread[] threads = this.selectorThreads;
+		if(threads == null)
+			return new int[0];
+		int[] counts = new int[threads.length];
+		for(int i = 0; i < threads.length; i++)
+			counts[i] = threads[i].getConnectionCount();
+		return counts;
+	}
+
+
+	/**
+	 * Strategies for assigning new connections to selector threads.
+	 */
+	public static enum Balancing {
+		/**
+		 * Connections are assigned to each selector thread in turn.
+		 */
+		ROUND_ROBIN,
+		/**
+		 * Connections are assigned to the selector thread currently serving the fewest connections.
+		 */
+		LEAST_CONNECTIONS;
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits on the messages written using {@link WebSocketChannel#writeQueued(Object, byte[])} that wait in the outbound queue of a {@link WebSocketChannel} because the peer
+ * does not read fast enough.<br>
+ * <br>
+ * Two limits are supported: the maximum number of such messages waiting in the queue of a channel, beyond which the oldest waiting message is dropped, and the maximum time
+ * a message may wait, after which it is dropped instead of being written. Messages written using other <code>write</code> methods are not affected, and do not count
+ * towards the limit.<br>
+ * <br>
+ * One <code>OutboundPolicy</code> may be shared by any number of channels, for example all channels of a {@link WebSocketServer} (see
+ * {@link WebSocketServer#setOutboundPolicy(OutboundPolicy)}); the limits apply to each channel separately. Changes to the limits apply to all channels immediately. The
+ * statistics of an <code>OutboundPolicy</code> are the totals of all channels using it.
+ */
+public class OutboundPolicy {
+
+	private volatile int maxQueuedMessages = 0;
+	private volatile long messageTTL = 0;
+
+	private final AtomicLong conflatedMessages = new AtomicLong();
+	private final AtomicLong expiredMessages = new AtomicLong();
+	private final AtomicLong droppedMessages = new AtomicLong();
+
+	/**
+	 * Creates a new <code>OutboundPolicy</code> without any limits.
+	 */
+	public OutboundPolicy() {
+	}
+
+
+	/**
+	 *
+	 * @param maxQueuedMessages The maximum number of messages waiting in the queue of a channel, or <code>0</code> for no limit. If the limit is reached, the oldest waiting
+	 *                          message is dropped
+	 */
+	public void setMaxQueuedMessages(int maxQueuedMessages) {
+		if(maxQueuedMessages < 0)
+			throw new IllegalArgumentException("maxQueuedMessages must not be negative");
+		this.maxQueuedMessages = maxQueuedMessages;
+	}
+
+	/**
+	 *
+	 * @param messageTTL The maximum time in milliseconds a message may wait in the queue before it is dropped, or <code>0</code> for no limit
+	 */
+	public void setMessageTTL(long messageTTL) {
+		if(messageTTL < 0)
+			throw new IllegalArgumentException("messageTTL must not be negative");
+		this.messageTTL = TimeUnit.MILLISECONDS.toNanos(messageTTL);
+	}
+
+
+	int getMaxQueuedMessages() {
+		return this.maxQueuedMessages;
+	}
+
+	long getMessageTTLNanos() {
+		return this.messageTTL;
+	}
+
+
+	void messageConflated() {
+		this.conflatedMessages.incrementAndGet();
+	}
+
+	void messageExpired() {
+		this.expiredMessages.incrementAndGet();
+	}
+
+	void messageDropped() {
+		this.droppedMessages.incrementAndGet();
+	}
+
+
+	/**
+	 *
+	 * @return The number of waiting messages that were replaced by a newer message with the same key
+	 */
+	public long getConflatedMessages() {
+		return this.conflatedMessages.get();
+	}
+
+	/**
+	 *
+	 * @return The number of messages that were dropped because they waited longer than the message TTL
+	 */
+	public long getExpiredMessages() {
+		return this.expiredMessages.get();
+	}
+
+	/**
+	 *
+	 * @return The number of messages that were dropped because the maximum number of waiting messages was reached
+	 */
+	public long getDroppedMessages() {
+		return this.droppedMessages.get();
+	}
+}
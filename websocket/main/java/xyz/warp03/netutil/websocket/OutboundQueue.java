@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.omegazero.net.socket.SocketConnection;
+
+/**
+ * The outbound message queue of a {@link WebSocketChannel}.<br>
+ * <br>
+ * Any number of threads may add encoded frames ({@code byte[]}), {@link OutboundStream}s and {@link QueuedMessage}s to the queue. The queue is then flushed by exactly one thread at a time: the
+ * thread calling {@link #flush()} while no other thread is flushing writes everything that is queued, including elements added by other threads while it is running, and
+ * all other threads return immediately. Data messages in the same lane (see below) are written in the order they were added, control frames are written as soon as they are seen, even between the
+ * frames of an <code>OutboundStream</code>, unless the stream is in the middle of a frame (see {@link OutboundStream#isAtFrameBoundary()}). The close frame is the exception:
+ * it is written after all data messages that were added before it, and data messages added after it are discarded.<br>
+ * <br>
+ * <code>QueuedMessage</code>s are only encoded when they are written, and are subject to the {@link OutboundPolicy} of the channel until then.<br>
+ * <br>
+ * Data messages that can not be written immediately wait in one of several lanes. Elements added using {@link #add(byte[], int)} wait in the given lane, all other elements
+ * in lane <code>0</code>. Messages in the same lane are written in the order they were added; the lanes are served using deficit round robin, where each lane may write
+ * up to its weight (see {@link WebSocketChannel#setLaneWeights(int...)}) multiplied by the fragment size of the channel in bytes per round, and unused credit of a lane is
+ * carried over to the next round as long as the lane is not empty. A message in one lane therefore waits for at most one message of each other lane that is already being
+ * written, and no lane is starved by others.
+ */
+class OutboundQueue {
+
+	private final WebSocketChannel channel;
+	private final SocketConnection connection;
+
+	private final Queue<Object> queue = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger flushRequests = new AtomicInteger();
+
+	// QueuedMessages that were not written yet, in the order they were added; also the lock for all QueuedMessage state
+	private final ArrayDeque<QueuedMessage> queuedMessages = new ArrayDeque<>();
+	private final Map<Object, QueuedMessage> keyedMessages = new HashMap<>();
+
+	// only accessed by the thread currently flushing
+	private final List<ArrayDeque<Object>> lanes = new ArrayList<>();
+	private long[] laneCredit = new long[1];
+	private int currentLane = 0;
+	private int pendingCount = 0;
+	private final Queue<byte[]> heldControlFrames = new ArrayDeque<>();
+	private byte[] pendingCloseFrame;
+	private OutboundStream currentStream;
+	private int unflushedBytes = 0;
+
+	public OutboundQueue(WebSocketChannel channel, SocketConnection connection) {
+		this.channel = channel;
+		this.connection = connection;
+		this.lanes.add(new ArrayDeque<>());
+	}
+
+
+	/**
+	 * Adds an encoded frame or an {@link OutboundStream} to the end of this queue and flushes the queue.
+	 *
+	 * @param element The element
+	 */
+	public void add(Object element) {
+		this.queue.add(element);
+		this.flush();
+	}
+
+	/**
+	 * Adds an encoded frame or an {@link OutboundStream} to the end of this queue without flushing the queue.
+	 *
+	 * @param element The element
+	 */
+	public void offer(Object element) {
+		this.queue.add(element);
+	}
+
+	/**
+	 * Adds an encoded data frame to the end of this queue, to be written in the given lane if it can not be written immediately, and flushes the queue.
+	 *
+	 * @param frame The frame
+	 * @param lane  The lane
+	 */
+	public void add(byte[] frame, int lane) {
+		this.add(lane != 0 ? new LaneFrame(frame, lane) : frame);
+	}
+
+	/**
+	 * Adds a {@link QueuedMessage} to the end of this queue, or replaces the data of a message with the same key that was not written yet, and flushes the queue. If the
+	 * maximum number of waiting messages of the given <b>policy</b> is reached, the oldest waiting message is dropped.
+	 *
+	 * @param message The message
+	 * @param policy  The outbound policy of the channel, or <code>null</code>
+	 */
+	public void addMessage(QueuedMessage message, OutboundPolicy policy) {
+		synchronized(this.queuedMessages){
+			QueuedMessage queued = message.key != null ? this.keyedMessages.get(message.key) : null;
+			if(queued != null){
+				queued.opcode = message.opcode;
+				queued.data = message.data;
+				queued.queuedTime = message.queuedTime;
+				if(policy != null)
+					policy.messageConflated();
+				return;
+			}
+			int max = policy != null ? policy.getMaxQueuedMessages() : 0;
+			while(max > 0 && this.queuedMessages.size() >= max){
+				QueuedMessage oldest = this.queuedMessages.poll();
+				oldest.state = QueuedMessage.STATE_DROPPED;
+				oldest.data = null;
+				if(oldest.key != null)
+					this.keyedMessages.remove(oldest.key, oldest);
+				policy.messageDropped();
+			}
+			this.queuedMessages.add(message);
+			if(message.key != null)
+				this.keyedMessages.put(message.key, message);
+			// added while holding the lock so that both queues have the same order
+			this.queue.add(message);
+		}
+		this.flush();
+	}
+
+	/**
+	 * Writes queued elements to the connection, or, if another thread is currently doing so, makes sure that thread checks the queue again before it returns.
+	 */
+	public void flush() {
+		if(this.flushRequests.getAndIncrement() != 0)
+			return;
+		int missed = 1;
+		try{
+			do{
+				this.flush0();
+				missed = this.flushRequests.addAndGet(-missed);
+			}while(missed != 0);
+		}catch(RuntimeException | Error e){
+			this.flushRequests.set(0);
+			throw e;
+		}
+	}
+
+	private void flush0() {
+		if(this.channel.isClosed()){
+			this.discard();
+			return;
+		}
+		Object next;
+		while(true){
+			if((next = this.queue.poll()) != null){
+				if(this.pendingCloseFrame != null && !isControlFrame(next))
+					failStream(next, null);
+				else if(isControlFrame(next)){
+					if(isCloseFrame(next) && (this.currentStream != null || this.pendingCount > 0))
+						this.pendingCloseFrame = (byte[]) next; // written once all data messages added before it are written
+					else if(this.currentStream != null && !this.currentStream.isAtFrameBoundary())
+						this.heldControlFrames.add((byte[]) next);
+					else if(!this.writeControlFrame((byte[]) next))
+						return;
+				}else if(this.currentStream == null && this.pendingCount == 0 && this.connection.isWritable())
+					this.writeData(next);
+				else
+					this.addPending(next);
+				continue;
+			}
+			if(!this.connection.isWritable())
+				break;
+			if(this.currentStream != null){
+				int result;
+				try{
+					result = this.currentStream.writeNext(this.channel);
+				}catch(IOException e){
+					boolean atFrameBoundary = this.currentStream.isAtFrameBoundary();
+					this.currentStream.fail(e);
+					this.currentStream = null;
+					// the fragmented message can not be completed, so there is no way to continue using this connection
+					if(atFrameBoundary){
+						this.channel.streamFailed();
+						if(!this.writeHeldControlFrames())
+							return;
+						continue;
+					}else{
+						// anything written after a partial frame would be interpreted as part of it by the peer, so not even a close frame can be sent
+						this.flushConnection();
+						this.channel.close0(WSCommon.WS_STATUS_UNEXPECTED_ERROR);
+						return;
+					}
+				}
+				if(result == OutboundStream.WAITING)
+					break;
+				if(result == OutboundStream.DONE)
+					this.currentStream = null;
+				if((this.currentStream == null || this.currentStream.isAtFrameBoundary()) && !this.writeHeldControlFrames())
+					return;
+				// stream frames may be large, so flush each one to keep the writability of the connection accurate
+				this.flushConnection();
+			}else if((next = this.pollPending()) != null)
+				this.writeData(next);
+			else if(this.pendingCloseFrame != null){
+				byte[] frame = this.pendingCloseFrame;
+				this.pendingCloseFrame = null;
+				this.writeControlFrame(frame);
+				return;
+			}else
+				break;
+		}
+		this.flushConnection();
+	}
+
+	/**
+	 * Returns <code>false</code> if the frame was a close frame, after which nothing may be written.
+	 */
+	private boolean writeControlFrame(byte[] frame) {
+		this.writeFrame(frame);
+		if(isCloseFrame(frame)){
+			this.flushConnection();
+			this.channel.closeFrameWritten();
+			return false;
+		}
+		return true;
+	}
+
+	private boolean writeHeldControlFrames() {
+		byte[] frame;
+		while((frame = this.heldControlFrames.poll()) != null){
+			if(!this.writeControlFrame(frame))
+				return false;
+		}
+		return true;
+	}
+
+	private void addPending(Object element) {
+		int lane = element instanceof LaneFrame ? ((LaneFrame) element).lane : 0;
+		if(lane >= this.lanes.size()){
+			while(lane >= this.lanes.size())
+				this.lanes.add(new ArrayDeque<>());
+			this.laneCredit = Arrays.copyOf(this.laneCredit, lane + 1);
+		}
+		if(this.pendingCount == 0){
+			// start a new round at the lane of this element
+			Arrays.fill(this.laneCredit, 0);
+			this.currentLane = lane;
+			this.laneCredit[lane] = this.getLaneQuantum(lane);
+		}
+		this.lanes.get(lane).add(element);
+		this.pendingCount++;
+	}
+
+	private Object pollPending() {
+		if(this.pendingCount == 0)
+			return null;
+		while(true){
+			ArrayDeque<Object> lane = this.lanes.get(this.currentLane);
+			Object next = lane.peek();
+			if(next != null){
+				long size = this.getPendingSize(next);
+				if(this.laneCredit[this.currentLane] >= size){
+					this.laneCredit[this.currentLane] -= size;
+					this.pendingCount--;
+					return lane.poll();
+				}
+			}else
+				this.laneCredit[this.currentLane] = 0;
+			this.currentLane = (this.currentLane + 1) % this.lanes.size();
+			if(!this.lanes.get(this.currentLane).isEmpty())
+				this.laneCredit[this.currentLane] += this.getLaneQuantum(this.currentLane);
+		}
+	}
+
+	private long getLaneQuantum(int lane) {
+		int[] weights = this.channel.getLaneWeights();
+		return (long) (lane < weights.length ? weights[lane] : 1) * this.channel.getFragmentSize();
+	}
+
+	private long getPendingSize(Object element) {
+		if(element instanceof byte[])
+			return ((byte[]) element).length;
+		else if(element instanceof LaneFrame)
+			return ((LaneFrame) element).frame.length;
+		else // the size of streams is not known, and QueuedMessages may still change
+			return 0;
+	}
+
+	private void writeData(Object element) {
+		if(element instanceof LaneFrame)
+			this.writeFrame(((LaneFrame) element).frame);
+		else if(element instanceof OutboundStream)
+			this.currentStream = (OutboundStream) element;
+		else if(element instanceof QueuedMessage)
+			this.writeQueuedMessage((QueuedMessage) element);
+		else
+			this.writeFrame((byte[]) element);
+	}
+
+	private void writeQueuedMessage(QueuedMessage message) {
+		int opcode;
+		byte[] data;
+		long queuedTime;
+		synchronized(this.queuedMessages){
+			if(message.state != QueuedMessage.STATE_QUEUED)
+				return;
+			message.state = QueuedMessage.STATE_TAKEN;
+			if(this.queuedMessages.peek() == message)
+				this.queuedMessages.poll();
+			else
+				this.queuedMessages.remove(message);
+			if(message.key != null)
+				this.keyedMessages.remove(message.key, message);
+			opcode = message.opcode;
+			data = message.data;
+			queuedTime = message.queuedTime;
+			message.data = null;
+		}
+		OutboundPolicy policy = this.channel.getOutboundPolicy();
+		if(policy != null){
+			long ttl = policy.getMessageTTLNanos();
+			if(ttl > 0 && System.nanoTime() - queuedTime > ttl){
+				policy.messageExpired();
+				return;
+			}
+		}
+		this.writeFrame(this.channel.encodeFrame(opcode, data));
+	}
+
+	private void writeFrame(byte[] frame) {
+		this.channel.transportWrite(frame);
+		this.unflushedBytes += frame.length;
+		if(this.unflushedBytes >= this.channel.getFragmentSize())
+			this.flushConnection();
+	}
+
+	private void flushConnection() {
+		this.connection.flush();
+		this.unflushedBytes = 0;
+	}
+
+	private void discard() {
+		IOException e = null;
+		if(this.currentStream != null){
+			e = new IOException("Connection closed");
+			this.currentStream.fail(e);
+			this.currentStream = null;
+		}
+		this.heldControlFrames.clear();
+		this.pendingCloseFrame = null;
+		synchronized(this.queuedMessages){
+			for(QueuedMessage message : this.queuedMessages){
+				message.state = QueuedMessage.STATE_DROPPED;
+				message.data = null;
+			}
+			this.queuedMessages.clear();
+			this.keyedMessages.clear();
+		}
+		Object next;
+		for(ArrayDeque<Object> lane : this.lanes){
+			while((next = lane.poll()) != null)
+				e = failStream(next, e);
+		}
+		this.pendingCount = 0;
+		while((next = this.queue.poll()) != null)
+			e = failStream(next, e);
+	}
+
+
+	private static IOException failStream(Object element, IOException e) {
+		if(element instanceof OutboundStream){
+			if(e == null)
+				e = new IOException("Connection closed");
+			((OutboundStream) element).fail(e);
+		}
+		return e;
+	}
+
+	private static boolean isControlFrame(Object element) {
+		return element instanceof byte[] && (((byte[]) element)[0] & 0x8) != 0;
+	}
+
+	private static boolean isCloseFrame(Object element) {
+		return element instanceof byte[] && (((byte[]) element)[0] & 0xf) == WSCommon.WS_OPCODE_CLOSE;
+	}
+
+
+	/**
+	 * An encoded data frame written in a lane other than <code>0</code>.
+	 */
+	private static final class LaneFrame {
+
+		final byte[] frame;
+		final int lane;
+
+		public LaneFrame(byte[] frame, int lane) {
+			this.frame = frame;
+			this.lane = lane;
+		}
+	}
+}
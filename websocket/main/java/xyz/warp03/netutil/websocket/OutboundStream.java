@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+import java.io.IOException;
+
+/**
+ * A data message in an {@link OutboundQueue} that is written as multiple frames. While the frames of a stream are being written, other data messages are held back, but
+ * control frames may still be written between its frames.
+ */
+abstract class OutboundStream {
+
+	/**
+	 * Returned by {@link #writeNext(WebSocketChannel)} if the last frame of the stream was written.
+	 */
+	public static final int DONE = 0;
+	/**
+	 * Returned by {@link #writeNext(WebSocketChannel)} if a frame was written and there are more frames.
+	 */
+	public static final int MORE = 1;
+	/**
+	 * Returned by {@link #writeNext(WebSocketChannel)} if no frame was written because the next frame is not available yet. The queue is flushed again when it is.
+	 */
+	public static final int WAITING = 2;
+
+
+	/**
+	 * Writes the next frame of this stream using {@link WebSocketChannel#transportWrite(byte[])}.
+	 *
+	 * @return {@link #DONE}, {@link #MORE} or {@link #WAITING}
+	 * @throws IOException If the frame could not be created. The connection is closed in this case, because the message can not be completed
+	 */
+	public abstract int writeNext(WebSocketChannel channel) throws IOException;
+
+	/**
+	 * Returns whether the last frame of this stream passed to the connection was written completely. Control frames are only written between the frames of a stream while this
+	 * method returns <code>true</code>.
+	 *
+	 * @return <code>true</code> if no frame of this stream is partially written
+	 */
+	public boolean isAtFrameBoundary() {
+		return true;
+	}
+
+	/**
+	 * Called when this stream can not be completed, for example because the connection closed.
+	 */
+	public abstract void fail(Throwable cause);
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An immutable, complete WebSocket data message encoded as a single unmasked frame, which can be written to any number of channels using
+ * {@link WebSocketChannel#write(PreparedFrame)}.<br>
+ * <br>
+ * Server-side channels write the encoded frame as is, so a message sent to many channels is only encoded once and the frame memory is shared. Client-side channels must mask
+ * the payload and therefore copy it into a new frame.
+ */
+public final class PreparedFrame {
+
+	private final byte[] frame;
+	private final int opcode;
+	private final int payloadOffset;
+
+	private PreparedFrame(byte[] frame, int opcode, int payloadOffset) {
+		this.frame = frame;
+		this.opcode = opcode;
+		this.payloadOffset = payloadOffset;
+	}
+
+
+	/**
+	 *
+	 * @return The opcode of the frame, either {@link WSCommon#WS_OPCODE_TEXT} or {@link WSCommon#WS_OPCODE_BINARY}
+	 */
+	public int getOpcode() {
+		return this.opcode;
+	}
+
+	/**
+	 *
+	 * @return <code>true</code> if this is a binary message
+	 */
+	public boolean isBinary() {
+		return this.opcode == WSCommon.WS_OPCODE_BINARY;
+	}
+
+	/**
+	 *
+	 * @return The size of the encoded frame in bytes, including the frame header
+	 */
+	public int getEncodedLength() {
+		return this.frame.length;
+	}
+
+	/**
+	 *
+	 * @return The size of the message payload in bytes
+	 */
+	public int getPayloadLength() {
+		return this.frame.length - this.payloadOffset;
+	}
+
+	/**
+	 *
+	 * @return A read-only buffer containing the encoded frame
+	 */
+	public ByteBuffer getEncoded() {
+		return ByteBuffer.wrap(this.frame).asReadOnlyBuffer();
+	}
+
+	/**
+	 *
+	 * @return A read-only buffer containing the message payload
+	 */
+	public ByteBuffer getPayload() {
+		return ByteBuffer.wrap(this.frame, this.payloadOffset, this.frame.length - this.payloadOffset).slice().asReadOnlyBuffer();
+	}
+
+
+	static PreparedFrame wrap(byte[] frame) {
+		int len = frame[1] & 0x7f;
+		return new PreparedFrame(frame, frame[0] & 0xf, len == 127 ? 10 : len == 126 ? 4 : 2);
+	}
+
+	byte[] getFrame() {
+		return this.frame;
+	}
+
+	int getPayloadOffset() {
+		return this.payloadOffset;
+	}
+
+
+	/**
+	 * Encodes a binary message.
+	 *
+	 * @param data The message data, which is copied
+	 * @return The frame
+	 */
+	public static PreparedFrame binary(byte[] data) {
+		return of(WSCommon.WS_OPCODE_BINARY, data);
+	}
+
+	/**
+	 * Encodes a text message.
+	 *
+	 * @param text The message text
+	 * @return The frame
+	 */
+	public static PreparedFrame text(String text) {
+		return of(WSCommon.WS_OPCODE_TEXT, text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Encodes a message.
+	 *
+	 * @param opcode The message opcode, either {@link WSCommon#WS_OPCODE_TEXT} or {@link WSCommon#WS_OPCODE_BINARY}
+	 * @param data   The message data, which is copied
+	 * @return The frame
+	 */
+	public static PreparedFrame of(int opcode, byte[] data) {
+		if(opcode != WSCommon.WS_OPCODE_TEXT && opcode != WSCommon.WS_OPCODE_BINARY)
+			throw new IllegalArgumentException("Invalid data frame opcode: " + opcode);
+		int headerSize = WebSocketChannel.frameHeaderSize(data.length, false);
+		byte[] frame = new byte[headerSize + data.length];
+		WebSocketChannel.writeFrameHeader(frame, opcode, true, data.length, false, 0);
+		System.arraycopy(data, 0, frame, headerSize, data.length);
+		return new PreparedFrame(frame, opcode, headerSize);
+	}
+
+	/**
+	 * Creates a <code>PreparedFrame</code> from a frame previously encoded by this class (see {@link #getEncoded()}), without copying or decoding the payload.
+	 *
+	 * @param frame The encoded frame. The array must not be modified afterwards
+	 * @return The frame
+	 * @throws IllegalArgumentException If <b>frame</b> is not a single, unmasked text or binary frame
+	 */
+	public static PreparedFrame fromEncoded(byte[] frame) {
+		if(frame.length < 2)
+			throw new IllegalArgumentException("Frame is too short");
+		int opcode = frame[0] & 0xf;
+		if((frame[0] & 0xf0) != 0x80 || (opcode != WSCommon.WS_OPCODE_TEXT && opcode != WSCommon.WS_OPCODE_BINARY))
+			throw new IllegalArgumentException("Not a complete text or binary frame");
+		if((frame[1] & 0x80) != 0)
+			throw new IllegalArgumentException("Frame is masked");
+		int len = frame[1] & 0x7f;
+		int headerSize;
+		long payloadLength;
+		if(len == 126){
+			headerSize = 4;
+			payloadLength = frame.length >= 4 ? ((frame[2] & 0xff) << 8) | (frame[3] & 0xff) : -1;
+		}else if(len == 127){
+			headerSize = 10;
+			payloadLength = 0;
+			for(int i = 2; i < 10 && i < frame.length; i++)
+				payloadLength = (payloadLength << 8) | (frame[i] & 0xff);
+		}else{
+			headerSize = 2;
+			payloadLength = len;
+		}
+		if(frame.length < headerSize || payloadLength != frame.length - headerSize)
+			throw new IllegalArgumentException("Frame length does not match payload length");
+		return new PreparedFrame(frame, opcode, headerSize);
+	}
+}
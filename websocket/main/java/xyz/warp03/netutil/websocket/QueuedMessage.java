@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+/**
+ * A message written using {@link WebSocketChannel#writeQueued(Object, byte[])}, which is only encoded when the {@link OutboundQueue} writes it. Until then, its data may
+ * be replaced by a newer message with the same key, or it may be dropped.<br>
+ * <br>
+ * All fields except <code>key</code> are guarded by the lock of the <code>OutboundQueue</code>.
+ */
+final class QueuedMessage {
+
+	static final int STATE_QUEUED = 0;
+	static final int STATE_TAKEN = 1;
+	static final int STATE_DROPPED = 2;
+
+	final Object key;
+
+	int opcode;
+	byte[] data;
+	long queuedTime;
+	int state = STATE_QUEUED;
+
+	public QueuedMessage(Object key, int opcode, byte[] data) {
+		this.key = key;
+		this.opcode = opcode;
+		this.data = data;
+		this.queuedTime = System.nanoTime();
+	}
+}
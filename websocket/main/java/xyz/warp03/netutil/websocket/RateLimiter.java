@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The token buckets of a single channel enforcing a {@link RateQuota}.
+ */
+final class RateLimiter {
+
+	private final RateQuota quota;
+	private final WebSocketChannel channel;
+
+	private double messageTokens;
+	private double byteTokens;
+	private double controlTokens;
+	private long lastRefill;
+
+	private boolean paused = false;
+	private ScheduledFuture<?> resumeTask;
+	private boolean closed = false;
+
+	public RateLimiter(RateQuota quota, WebSocketChannel channel) {
+		this.quota = quota;
+		this.channel = channel;
+		double burst = quota.getBurstTime();
+		this.messageTokens = quota.getMessageRate() * burst;
+		this.byteTokens = quota.getByteRate() * burst;
+		this.controlTokens = quota.getControlFrameRate() * burst;
+		this.lastRefill = System.nanoTime();
+	}
+
+
+	public RateQuota getQuota() {
+		return this.quota;
+	}
+
+	/**
+	 * Takes the tokens for a received frame from the buckets.
+	 *
+	 * @param control    Whether the frame is a control frame
+	 * @param newMessage Whether the frame is the first frame of a data message
+	 * @param length     The payload length of the frame
+	 * @param allowDebt  Whether the tokens should be taken even if the frame exceeds a limit, in which case the channel must wait until the buckets are refilled
+	 * @return <code>true</code> if the frame is within all limits
+	 */
+	public synchronized boolean acquire(boolean control, boolean newMessage, long length, boolean allowDebt) {
+		this.refill(System.nanoTime());
+		double burst = this.quota.getBurstTime();
+		int messages = newMessage ? 1 : 0;
+		int controlFrames = control ? 1 : 0;
+		boolean within = fits(this.quota.getMessageRate(), burst, this.messageTokens, messages) && fits(this.quota.getByteRate(), burst, this.byteTokens, length)
+				&& fits(this.quota.getControlFrameRate(), burst, this.controlTokens, controlFrames);
+		if(within || allowDebt){
+			this.messageTokens -= messages;
+			this.byteTokens -= length;
+			this.controlTokens -= controlFrames;
+		}
+		if(!within)
+			this.quota.exceeded();
+		return within;
+	}
+
+	/**
+	 * Pauses reading from the channel until all buckets are refilled.
+	 */
+	public synchronized void pause() {
+		if(this.paused || this.closed)
+			return;
+		this.paused = true;
+		this.quota.throttleStarted();
+		this.channel.setReadBlocked(WebSocketChannel.READ_BLOCK_QUOTA, true);
+		this.scheduleResume();
+	}
+
+	public synchronized void close() {
+		if(this.closed)
+			return;
+		this.closed = true;
+		if(this.resumeTask != null)
+			this.resumeTask.cancel(false);
+		if(this.paused){
+			this.paused = false;
+			this.quota.throttleEnded();
+			this.channel.setReadBlocked(WebSocketChannel.READ_BLOCK_QUOTA, false);
+		}
+	}
+
+
+	private synchronized void resume() {
+		if(!this.paused || this.closed)
+			return;
+		this.refill(System.nanoTime());
+		if(this.debtNanos() > 0){
+			this.scheduleResume();
+			return;
+		}
+		this.paused = false;
+		this.resumeTask = null;
+		this.quota.throttleEnded();
+		this.channel.setReadBlocked(WebSocketChannel.READ_BLOCK_QUOTA, false);
+	}
+
+	private void scheduleResume() {
+		long delay = Math.max(this.debtNanos(), TimeUnit.MILLISECONDS.toNanos(1));
+		this.resumeTask = RateQuota.getScheduler().schedule(this::resume, delay, TimeUnit.NANOSECONDS);
+	}
+
+	private void refill(long now) {
+		double elapsed = (now - this.lastRefill) / 1e9;
+		this.lastRefill = now;
+		double burst = this.quota.getBurstTime();
+		this.messageTokens = refill(this.quota.getMessageRate(), burst, this.messageTokens, elapsed);
+		this.byteTokens = refill(this.quota.getByteRate(), burst, this.byteTokens, elapsed);
+		this.controlTokens = refill(this.quota.getControlFrameRate(), burst, this.controlTokens, elapsed);
+	}
+
+	private long debtNanos() {
+		double seconds = Math.max(debt(this.quota.getMessageRate(), this.messageTokens),
+				Math.max(debt(this.quota.getByteRate(), this.byteTokens), debt(this.quota.getControlFrameRate(), this.controlTokens)));
+		return (long) Math.ceil(seconds * 1e9);
+	}
+
+
+	private static double refill(double rate, double burst, double tokens, double elapsed) {
+		if(rate <= 0)
+			return 0;
+		return Math.min(rate * burst, tokens + rate * elapsed);
+	}
+
+	private static boolean fits(double rate, double burst, double tokens, long cost) {
+		// a frame larger than the bucket fits into a full bucket, so it can still be received, but leaves the bucket in debt
+		return rate <= 0 || tokens >= Math.min(cost, rate * burst);
+	}
+
+	private static double debt(double rate, double tokens) {
+		return rate > 0 && tokens < 0 ? -tokens / rate : 0;
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits on the rate of frames a {@link WebSocketChannel} receives from its peer, and the action taken when a peer exceeds them.<br>
+ * <br>
+ * Three limits are supported: data messages per second, payload bytes per second and control frames per second. Each limit is enforced by a token bucket per channel,
+ * which is checked by the frame decoder when the header of a frame was received, before its payload is processed. A bucket holds at most the tokens for the configured
+ * burst time, so a peer may briefly send faster than the limit after being idle. "Close" frames are never limited.<br>
+ * <br>
+ * One <code>RateQuota</code> may be shared by any number of channels, for example all channels of a {@link WebSocketServer} (see
+ * {@link WebSocketServer#setRateQuota(RateQuota)}); each channel still has its own buckets. Changes to the limits apply to all channels immediately. The statistics of a
+ * <code>RateQuota</code> are the totals of all channels using it.
+ */
+public class RateQuota {
+
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor((r) -> {
+		Thread t = new Thread(r, "RateQuota");
+		t.setDaemon(true);
+		return t;
+	});
+
+
+	private final Action action;
+
+	private volatile double messageRate = 0;
+	private volatile double byteRate = 0;
+	private volatile double controlFrameRate = 0;
+	private volatile double burstTime = 1;
+
+	private final AtomicInteger throttledChannels = new AtomicInteger();
+	private final AtomicLong exceededCount = new AtomicLong();
+	private final AtomicLong droppedFrames = new AtomicLong();
+	private final AtomicLong closedChannels = new AtomicLong();
+
+	/**
+	 * Creates a new <code>RateQuota</code> without any limits.
+	 *
+	 * @param action The action taken when a channel exceeds a limit
+	 */
+	public RateQuota(Action action) {
+		this.action = Objects.requireNonNull(action);
+	}
+
+
+	/**
+	 *
+	 * @param messageRate The maximum number of data messages per second, or <code>0</code> for no limit
+	 */
+	public void setMessageRate(double messageRate) {
+		if(messageRate < 0)
+			throw new IllegalArgumentException("messageRate must not be negative");
+		this.messageRate = messageRate;
+	}
+
+	/**
+	 *
+	 * @param byteRate The maximum number of frame payload bytes per second, including control frames, or <code>0</code> for no limit
+	 */
+	public void setByteRate(double byteRate) {
+		if(byteRate < 0)
+			throw new IllegalArgumentException("byteRate must not be negative");
+		this.byteRate = byteRate;
+	}
+
+	/**
+	 *
+	 * @param controlFrameRate The maximum number of "ping" and "pong" frames per second, or <code>0</code> for no limit
+	 */
+	public void setControlFrameRate(double controlFrameRate) {
+		if(controlFrameRate < 0)
+			throw new IllegalArgumentException("controlFrameRate must not be negative");
+		this.controlFrameRate = controlFrameRate;
+	}
+
+	/**
+	 *
+	 * @param burstTime The time in milliseconds of traffic at the maximum rates a channel may send at once after being idle. Default is <code>1000</code>
+	 */
+	public void setBurstTime(long burstTime) {
+		if(burstTime <= 0)
+			throw new IllegalArgumentException("burstTime must be positive");
+		this.burstTime = burstTime / 1000d;
+	}
+
+
+	/**
+	 *
+	 * @return The action taken when a channel exceeds a limit
+	 */
+	public Action getAction() {
+		return this.action;
+	}
+
+	double getMessageRate() {
+		return this.messageRate;
+	}
+
+	double getByteRate() {
+		return this.byteRate;
+	}
+
+	double getControlFrameRate() {
+		return this.controlFrameRate;
+	}
+
+	double getBurstTime() {
+		return this.burstTime;
+	}
+
+	static ScheduledExecutorService getScheduler() {
+		return scheduler;
+	}
+
+
+	void throttleStarted() {
+		this.throttledChannels.incrementAndGet();
+	}
+
+	void throttleEnded() {
+		this.throttledChannels.decrementAndGet();
+	}
+
+	void exceeded() {
+		this.exceededCount.incrementAndGet();
+	}
+
+	void frameDropped() {
+		this.droppedFrames.incrementAndGet();
+	}
+
+	void channelClosed() {
+		this.closedChannels.incrementAndGet();
+	}
+
+
+	/**
+	 *
+	 * @return The number of channels whose reading is currently paused because they exceeded a limit (only with {@link Action#PAUSE})
+	 */
+	public int getThrottledChannels() {
+		return this.throttledChannels.get();
+	}
+
+	/**
+	 *
+	 * @return The number of received frames that exceeded a limit
+	 */
+	public long getExceededCount() {
+		return this.exceededCount.get();
+	}
+
+	/**
+	 *
+	 * @return The number of frames that were dropped (only with {@link Action#DROP}), including the remaining frames of dropped messages
+	 */
+	public long getDroppedFrames() {
+		return this.droppedFrames.get();
+	}
+
+	/**
+	 *
+	 * @return The number of channels that were closed because they exceeded a limit (only with {@link Action#CLOSE})
+	 */
+	public long getClosedChannels() {
+		return this.closedChannels.get();
+	}
+
+
+	/**
+	 * The action taken when a channel exceeds a limit.
+	 */
+	public static enum Action {
+		/**
+		 * The frame is processed, but reading from the connection is paused (see {@link org.omegazero.net.socket.SocketConnection#setReadBlock(boolean)}) until the channel
+		 * is within all limits again. Frames already received are still processed while reading is paused.
+		 */
+		PAUSE,
+		/**
+		 * The frame is discarded. If the frame is part of a data message, the entire message is discarded. "Ping" frames that are discarded are not answered.<br>
+		 * <br>
+		 * Frames of channels forwarded by a {@link WebSocketRelay} can not be dropped without corrupting the forwarded message, so reading is paused instead.
+		 */
+		DROP,
+		/**
+		 * The channel is closed with status {@link WSCommon#WS_STATUS_POLICY_VIOLATION}.
+		 */
+		CLOSE;
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The complete messages decoded from the data received in a single read from the peer of a {@link WebSocketChannel}, passed to the callback set using
+ * {@link WebSocketChannel#setOnMessages(java.util.function.Consumer)}.<br>
+ * <br>
+ * The data of all messages is stored contiguously in a single array owned by the channel, which is reused for the next read. Messages of up to 1MiB received in a
+ * single frame are decoded directly into this array, without allocating a separate array for each message. The contents of this object and of the array returned by {@link #array()} must
+ * not be modified, and are only valid until the callback returns; a message needed after that must be copied, for example using {@link #toByteArray(int)}.
+ */
+public final class ReceivedMessages {
+
+	private static final int INITIAL_CAPACITY = 4096;
+	private static final int RETAINED_CAPACITY = 1 << 20;
+
+	// larger messages are received into a buffer that grows with the data actually received, so that the length declared in a frame header can not cause a large allocation
+	static final int MAX_RESERVED_LENGTH = RETAINED_CAPACITY;
+
+	private byte[] data = new byte[INITIAL_CAPACITY];
+	private int dataSize = 0;
+	private int[] offsets = new int[16];
+	private int[] lengths = new int[16];
+	private boolean[] binary = new boolean[16];
+	private int count = 0;
+
+	ReceivedMessages() {
+	}
+
+
+	/**
+	 *
+	 * @return The number of messages
+	 */
+	public int size() {
+		return this.count;
+	}
+
+	/**
+	 *
+	 * @param index The index of the message
+	 * @return <code>true</code> if the message was received as a WebSocket "binary" message, <code>false</code> if it was received as a "text" message
+	 */
+	public boolean isBinary(int index) {
+		this.checkIndex(index);
+		return this.binary[index];
+	}
+
+	/**
+	 *
+	 * @param index The index of the message
+	 * @return The offset of the message in the array returned by {@link #array()}
+	 */
+	public int offset(int index) {
+		this.checkIndex(index);
+		return this.offsets[index];
+	}
+
+	/**
+	 *
+	 * @param index The index of the message
+	 * @return The length of the message in bytes
+	 */
+	public int length(int index) {
+		this.checkIndex(index);
+		return this.lengths[index];
+	}
+
+	/**
+	 * Returns the array containing the data of all messages. The array must not be modified.
+	 *
+	 * @return The array
+	 * @see #offset(int)
+	 * @see #length(int)
+	 */
+	public byte[] array() {
+		return this.data;
+	}
+
+	/**
+	 *
+	 * @param index The index of the message
+	 * @return A read-only buffer containing the data of the message, without copying it
+	 */
+	public ByteBuffer buffer(int index) {
+		this.checkIndex(index);
+		return ByteBuffer.wrap(this.data, this.offsets[index], this.lengths[index]).slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 *
+	 * @param index The index of the message
+	 * @return A copy of the data of the message
+	 */
+	public byte[] toByteArray(int index) {
+		this.checkIndex(index);
+		return Arrays.copyOfRange(this.data, this.offsets[index], this.offsets[index] + this.lengths[index]);
+	}
+
+	/**
+	 *
+	 * @param index The index of the message
+	 * @return The data of the message decoded as UTF-8
+	 */
+	public String getText(int index) {
+		this.checkIndex(index);
+		return new String(this.data, this.offsets[index], this.lengths[index], StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Calls the given handler for each message, in the order the messages were received.
+	 *
+	 * @param handler The handler
+	 */
+	public void forEach(Handler handler) {
+		for(int i = 0; i < this.count; i++)
+			handler.accept(this.data, this.offsets[i], this.lengths[i], this.binary[i]);
+	}
+
+
+	/**
+	 * Ensures that a message of the given length can be written directly to the array at {@link #pendingOffset()}.
+	 */
+	void reserve(int length) {
+		int required = this.dataSize + length;
+		if(required < 0)
+			throw new OutOfMemoryError("Required array size too large");
+		if(required > this.data.length)
+			this.data = Arrays.copyOf(this.data, Math.max(required, Math.min(this.data.length * 2, Integer.MAX_VALUE - 8)));
+	}
+
+	/**
+	 *
+	 * @return The offset in the array where the next message starts
+	 */
+	int pendingOffset() {
+		return this.dataSize;
+	}
+
+	/**
+	 * Adds the message of the given length that was written to the array at {@link #pendingOffset()}, after calling {@link #reserve(int)}.
+	 */
+	void commit(int length, boolean binary) {
+		if(this.count == this.offsets.length){
+			int n = this.count * 2;
+			this.offsets = Arrays.copyOf(this.offsets, n);
+			this.lengths = Arrays.copyOf(this.lengths, n);
+			this.binary = Arrays.copyOf(this.binary, n);
+		}
+		this.offsets[this.count] = this.dataSize;
+		this.lengths[this.count] = length;
+		this.binary[this.count] = binary;
+		this.count++;
+		this.dataSize += length;
+	}
+
+	void add(ByteArrayOutputStream message, boolean binary) {
+		int length = message.size();
+		this.reserve(length);
+		System.arraycopy(message.toByteArray(), 0, this.data, this.dataSize, length);
+		this.commit(length, binary);
+	}
+
+	/**
+	 * Removes all messages. The first <b>pendingLength</b> bytes at {@link #pendingOffset()}, which belong to a message still being received, are moved to the start of the
+	 * array; {@link #reserve(int)} must be called again for that message.
+	 */
+	void clear(int pendingLength) {
+		if(pendingLength > 0)
+			System.arraycopy(this.data, this.dataSize, this.data, 0, pendingLength);
+		this.dataSize = 0;
+		this.count = 0;
+		if(this.data.length > RETAINED_CAPACITY && pendingLength <= RETAINED_CAPACITY)
+			this.data = Arrays.copyOf(this.data, RETAINED_CAPACITY);
+	}
+
+
+	private void checkIndex(int index) {
+		if(index < 0 || index >= this.count)
+			throw new IndexOutOfBoundsException("Index out of range: " + index);
+	}
+
+
+	/**
+	 * Receives the messages of a {@link ReceivedMessages}.
+	 */
+	@FunctionalInterface
+	public static interface Handler {
+
+		/**
+		 * Called for each message.
+		 *
+		 * @param data   The array containing the message, which must not be modified
+		 * @param offset The offset of the message in <b>data</b>
+		 * @param length The length of the message
+		 * @param binary <code>true</code> if the message was received as a WebSocket "binary" message, <code>false</code> if it was received as a "text" message
+		 */
+		public void accept(byte[] data, int offset, int length, boolean binary);
+	}
+}
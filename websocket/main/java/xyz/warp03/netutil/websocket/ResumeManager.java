@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.omegazero.common.util.PropertyUtil;
+
+import xyz.warp03.netutil.websocket.http.HTTPMessage;
+
+/**
+ * Manages {@link ResumeSession}s of server-side channels, which allow a client that reconnects to receive only the messages it missed instead of a full resynchronization.
+ * <br>
+ * <br>
+ * When a client connects, the application passes the new channel to {@link #open(WebSocketChannel)}. If the handshake request contains the {@value #HEADER_SESSION} and
+ * {@value #HEADER_LAST_SEQUENCE} headers, the session with that id is still available and all messages after the given sequence number are still buffered, the messages are
+ * written to the new channel and the session continues on it ({@link ResumeSession#isResumed()} returns <code>true</code>). Otherwise, a new session is created, and the
+ * application must send the full state to the client, together with the id of the new session. The client counts the data messages it receives in a session to know its
+ * last sequence number. If the session parameters are transmitted differently, for example in the query string of the request URI, {@link #open(WebSocketChannel, String,
+ * long)} may be used instead.<br>
+ * <br>
+ * Sessions are kept for a grace period after their channel closed. Each session keeps at most a configured number of bytes of messages, which are kept for a limited time.
+ * The id of a session is a random 128-bit value, but it does not replace authenticating the client.
+ */
+public class ResumeManager implements AutoCloseable {
+
+	private static final long defaultMaxBytes = PropertyUtil.getLong("xyz.warp03.netutil.websocket.resumeMaxBytes", 1 << 20);
+	private static final long defaultMaxAge = PropertyUtil.getLong("xyz.warp03.netutil.websocket.resumeMaxAge", 60000);
+	private static final long defaultGracePeriod = PropertyUtil.getLong("xyz.warp03.netutil.websocket.resumeGracePeriod", 60000);
+
+	/**
+	 * The name of the HTTP request header containing the id of the session to resume.
+	 */
+	public static final String HEADER_SESSION = "x-resume-session";
+	/**
+	 * The name of the HTTP request header containing the sequence number of the last message the client received in the session.
+	 */
+	public static final String HEADER_LAST_SEQUENCE = "x-resume-last-sequence";
+
+
+	private final long maxBytes;
+	private final long maxAge;
+	private final long gracePeriod;
+
+	private final SecureRandom random = new SecureRandom();
+	private final Map<String, ResumeSession> sessions = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService cleaner;
+
+	/**
+	 * Creates a new <code>ResumeManager</code> with limits set using the <code>xyz.warp03.netutil.websocket.resumeMaxBytes</code> (default 1MiB),
+	 * <code>xyz.warp03.netutil.websocket.resumeMaxAge</code> (default 60 seconds) and <code>xyz.warp03.netutil.websocket.resumeGracePeriod</code> (default 60 seconds) system
+	 * properties.
+	 *
+	 * @see #ResumeManager(long, long, long)
+	 */
+	public ResumeManager() {
+		this(defaultMaxBytes, defaultMaxAge, defaultGracePeriod);
+	}
+
+	/**
+	 * Creates a new <code>ResumeManager</code>.
+	 *
+	 * @param maxBytes    The maximum number of bytes of messages kept by each session
+	 * @param maxAge      The maximum time in milliseconds a message is kept
+	 * @param gracePeriod The time in milliseconds a session is kept after its channel closed
+	 */
+	public ResumeManager(long maxBytes, long maxAge, long gracePeriod) {
+		if(maxBytes < 0 || maxAge < 0 || gracePeriod < 0)
+			throw new IllegalArgumentException("Limits must not be negative");
+		this.maxBytes = maxBytes;
+		this.maxAge = maxAge;
+		this.gracePeriod = gracePeriod * 1000000L;
+		this.cleaner = Executors.newSingleThreadScheduledExecutor((r) -> {
+			Thread t = new Thread(r, "ResumeManager");
+			t.setDaemon(true);
+			return t;
+		});
+		long interval = Math.max(1000, gracePeriod / 4);
+		this.cleaner.scheduleWithFixedDelay(this::removeExpired, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Resumes the session given in the handshake request headers of the <b>channel</b>, or creates a new session. This method must be called before any messages are written
+	 * to the channel.
+	 *
+	 * @param channel A server-side channel
+	 * @return The session
+	 * @throws IllegalArgumentException If the channel is the client side of a connection
+	 * @see #open(WebSocketChannel, String, long)
+	 */
+	public ResumeSession open(WebSocketChannel channel) {
+		HTTPMessage request = channel.getHandshakeRequest();
+		String sessionId = null;
+		long lastSequence = -1;
+		if(request != null){
+			sessionId = request.getHeader(HEADER_SESSION);
+			String seqStr = request.getHeader(HEADER_LAST_SEQUENCE);
+			if(seqStr != null){
+				try{
+					lastSequence = Long.parseLong(seqStr.trim());
+				}catch(NumberFormatException e){
+					sessionId = null;
+				}
+			}else
+				sessionId = null;
+		}
+		return this.open(channel, sessionId, lastSequence);
+	}
+
+	/**
+	 * Resumes the session with the given <b>sessionId</b> from the given <b>lastSequence</b>, or creates a new session if that is not possible. This method must be called
+	 * before any messages are written to the channel.
+	 *
+	 * @param channel      A server-side channel
+	 * @param sessionId    The id of the session to resume, or <code>null</code> to create a new session
+	 * @param lastSequence The sequence number of the last message the client received
+	 * @return The session
+	 * @throws IllegalArgumentException If the channel is the client side of a connection
+	 */
+	public ResumeSession open(WebSocketChannel channel, String sessionId, long lastSequence) {
+		if(channel.isClient())
+			throw new IllegalArgumentException("Sessions can only be resumed on server-side channels");
+		if(sessionId != null){
+			ResumeSession session = this.sessions.get(sessionId);
+			if(session != null && !session.isExpired(System.nanoTime(), this.gracePeriod) && session.resume(channel, lastSequence))
+				return session;
+		}
+		ResumeSession session;
+		do{
+			session = new ResumeSession(this.newSessionId(), this.maxBytes, this.maxAge);
+		}while(this.sessions.putIfAbsent(session.getId(), session) != null);
+		session.attach(channel);
+		return session;
+	}
+
+	/**
+	 *
+	 * @param sessionId The session id
+	 * @return The session with the given id, or <code>null</code> if it does not exist or expired
+	 */
+	public ResumeSession getSession(String sessionId) {
+		return this.sessions.get(sessionId);
+	}
+
+	/**
+	 *
+	 * @return The number of sessions, including sessions whose channel closed that are not expired yet
+	 */
+	public int getSessionCount() {
+		return this.sessions.size();
+	}
+
+	/**
+	 * Stops removing expired sessions and removes all sessions.
+	 */
+	@Override
+	public void close() {
+		this.cleaner.shutdownNow();
+		this.sessions.clear();
+	}
+
+
+	private void removeExpired() {
+		long now = System.nanoTime();
+		this.sessions.values().removeIf((session) -> session.isExpired(now, this.gracePeriod));
+	}
+
+	private String newSessionId() {
+		byte[] id = new byte[16];
+		this.random.nextBytes(id);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(id);
+	}
+}
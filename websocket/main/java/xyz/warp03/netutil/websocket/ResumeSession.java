@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A sequence of data messages sent to one client, which may continue on a new {@link WebSocketChannel} after the client reconnects.<br>
+ * <br>
+ * Every data message written to the channel the session is attached to is assigned the next sequence number, starting at <code>1</code>, and recent messages are kept in a
+ * buffer bounded by size and age. Messages written as {@link PreparedFrame}s are kept without copying them, so a broadcast message buffered by many sessions is only stored
+ * once. Messages that are not sent as a single frame (files and fragmented or relayed messages) are not kept, and a session can not be resumed across them.
+ *
+ * @see ResumeManager
+ */
+public final class ResumeSession {
+
+	private final String id;
+	private final long maxBytes;
+	private final long maxAge;
+
+	private final Deque<Entry> entries = new ArrayDeque<>();
+	private long nextSequence = 1;
+	private long bufferedBytes = 0;
+
+	private WebSocketChannel channel;
+	private long detachedAt;
+	private boolean resumed = false;
+
+	ResumeSession(String id, long maxBytes, long maxAgeMillis) {
+		this.id = id;
+		this.maxBytes = maxBytes;
+		this.maxAge = maxAgeMillis * 1000000L;
+	}
+
+
+	/**
+	 * Assigns the next sequence number to a data message and adds it to the outbound queue of the channel. Both happen while holding the lock of this session, so sequence
+	 * numbers are in the order messages are sent.
+	 */
+	synchronized void record(Object element, OutboundQueue queue) {
+		PreparedFrame frame;
+		Object queued;
+		if(element instanceof PreparedFrame){
+			frame = (PreparedFrame) element;
+			queued = frame.getFrame();
+		}else if(element instanceof byte[]){
+			frame = PreparedFrame.wrap((byte[]) element);
+			queued = element;
+		}else{
+			frame = null;
+			queued = element;
+		}
+		long now = System.nanoTime();
+		this.entries.add(new Entry(this.nextSequence++, frame, now));
+		if(frame != null)
+			this.bufferedBytes += frame.getEncodedLength();
+		this.trim(now);
+		queue.offer(queued);
+	}
+
+	private void trim(long now) {
+		Entry first;
+		while((first = this.entries.peekFirst()) != null && (this.bufferedBytes > this.maxBytes || now - first.time > this.maxAge)){
+			this.entries.removeFirst();
+			if(first.frame != null)
+				this.bufferedBytes -= first.frame.getEncodedLength();
+		}
+	}
+
+	synchronized void attach(WebSocketChannel channel) {
+		this.channel = channel;
+		this.resumed = false;
+		channel.setResumeSession(this);
+	}
+
+	/**
+	 * Attaches this session to the given <b>channel</b> and replays all buffered messages after <b>lastSequence</b>, if all of them are still available. If the session is
+	 * still attached to another channel, that channel is closed.
+	 *
+	 * @return <code>false</code> if the session can not be resumed from <b>lastSequence</b>
+	 */
+	boolean resume(WebSocketChannel channel, long lastSequence) {
+		WebSocketChannel previous;
+		synchronized(this){
+			this.trim(System.nanoTime());
+			long firstSequence = this.entries.isEmpty() ? this.nextSequence : this.entries.peekFirst().sequence;
+			if(lastSequence < firstSequence - 1 || lastSequence >= this.nextSequence)
+				return false;
+			for(Entry entry : this.entries){
+				if(entry.sequence > lastSequence && entry.frame == null)
+					return false;
+			}
+			previous = this.channel;
+			if(previous != null)
+				previous.setResumeSession(null);
+			this.channel = channel;
+			this.resumed = true;
+			OutboundQueue queue = channel.getOutboundQueue();
+			for(Entry entry : this.entries){
+				if(entry.sequence > lastSequence)
+					queue.offer(entry.frame.getFrame());
+			}
+			channel.setResumeSession(this);
+		}
+		channel.getOutboundQueue().flush();
+		if(previous != null && previous != channel){
+			try{
+				previous.close(WSCommon.WS_STATUS_GOING_AWAY);
+			}catch(IllegalStateException e){
+				// already closing
+			}
+		}
+		return true;
+	}
+
+	synchronized void detach(WebSocketChannel channel) {
+		if(this.channel == channel){
+			this.channel = null;
+			this.detachedAt = System.nanoTime();
+		}
+	}
+
+	synchronized boolean isExpired(long now, long gracePeriod) {
+		return this.channel == null && now - this.detachedAt > gracePeriod;
+	}
+
+
+	/**
+	 *
+	 * @return The random identifier of this session, which the client presents when reconnecting
+	 */
+	public String getId() {
+		return this.id;
+	}
+
+	/**
+	 *
+	 * @return The sequence number of the last message sent in this session, or <code>0</code> if no messages were sent
+	 */
+	public synchronized long getLastSequence() {
+		return this.nextSequence - 1;
+	}
+
+	/**
+	 *
+	 * @return The channel this session is currently attached to, or <code>null</code> if the client is disconnected
+	 */
+	public synchronized WebSocketChannel getChannel() {
+		return this.channel;
+	}
+
+	/**
+	 *
+	 * @return <code>true</code> if this session was resumed on its current channel, <code>false</code> if the session was created for the current channel
+	 */
+	public synchronized boolean isResumed() {
+		return this.resumed;
+	}
+
+	/**
+	 *
+	 * @return The number of bytes of encoded frames currently kept by this session
+	 */
+	public synchronized long getBufferedBytes() {
+		return this.bufferedBytes;
+	}
+
+
+	private static class Entry {
+
+		public final long sequence;
+		public final PreparedFrame frame;
+		public final long time;
+
+		public Entry(long sequence, PreparedFrame frame, long time) {
+			this.sequence = sequence;
+			this.frame = frame;
+			this.time = time;
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.NoSuchElementException;
+
+/**
+ * A FIFO byte buffer made of a chain of fixed-size slabs from a {@link SlabPool}.<br>
+ * <br>
+ * Written data is appended to the last slab, and a new slab is acquired when it is full, so existing data is never copied when the buffer grows. Slabs are released to the
+ * pool as soon as all data in them was read, and a buffer without unread data does not hold any slabs.<br>
+ * <br>
+ * This class is not thread-safe.
+ */
+public class SlabBuffer {
+
+	private final SlabPool pool;
+	private final int slabSize;
+	private final ArrayDeque<byte[]> slabs = new ArrayDeque<>();
+
+	private int readPos = 0;
+	private int writePos = 0;
+	private int remaining = 0;
+
+	/**
+	 * Creates a new <code>SlabBuffer</code>.
+	 *
+	 * @param pool The pool to acquire slabs from
+	 */
+	public SlabBuffer(SlabPool pool) {
+		this.pool = pool;
+		this.slabSize = pool.getSlabSize();
+	}
+
+
+	/**
+	 * Appends the given data to this buffer.
+	 *
+	 * @param data The data
+	 */
+	public void write(byte[] data) {
+		int off = 0;
+		while(off < data.length){
+			if(this.slabs.isEmpty() || this.writePos == this.slabSize){
+				this.slabs.addLast(this.pool.acquire());
+				this.writePos = 0;
+			}
+			int n = Math.min(data.length - off, this.slabSize - this.writePos);
+			System.arraycopy(data, off, this.slabs.peekLast(), this.writePos, n);
+			this.writePos += n;
+			this.remaining += n;
+			off += n;
+		}
+	}
+
+	/**
+	 * Appends the remaining data in the given buffer to this buffer. The position of <b>data</b> is set to its limit.
+	 *
+	 * @param data The data
+	 */
+	public void write(ByteBuffer data) {
+		while(data.hasRemaining()){
+			if(this.slabs.isEmpty() || this.writePos == this.slabSize){
+				this.slabs.addLast(this.pool.acquire());
+				this.writePos = 0;
+			}
+			int n = Math.min(data.remaining(), this.slabSize - this.writePos);
+			data.get(this.slabs.peekLast(), this.writePos, n);
+			this.writePos += n;
+			this.remaining += n;
+		}
+	}
+
+	/**
+	 *
+	 * @return The number of bytes that can be read from this buffer
+	 */
+	public int remaining() {
+		return this.remaining;
+	}
+
+	public byte read() {
+		if(this.remaining <= 0)
+			throw new NoSuchElementException();
+		byte b = this.slabs.peekFirst()[this.readPos];
+		this.advance(1);
+		return b;
+	}
+
+	public long readNumberBE(int length) {
+		long num = 0;
+		for(int i = 0; i < length; i++){
+			num |= (((long) this.read()) & 0xff) << (length - i - 1) * 8;
+		}
+		return num;
+	}
+
+	public void readIntoOutputStream(OutputStream target, int length) throws IOException {
+		this.checkLength(length);
+		while(length > 0){
+			int n = Math.min(length, this.headAvailable());
+			target.write(this.slabs.peekFirst(), this.readPos, n);
+			this.advance(n);
+			length -= n;
+		}
+	}
+
+	public void readIntoBuffer(ByteBuffer target, int length) {
+		this.checkLength(length);
+		while(length > 0){
+			int n = Math.min(length, this.headAvailable());
+			target.put(this.slabs.peekFirst(), this.readPos, n);
+			this.advance(n);
+			length -= n;
+		}
+	}
+
+	public void read(byte[] target, int offset, int length) {
+		this.checkLength(length);
+		int end = offset + length;
+		while(offset < end){
+			int n = Math.min(end - offset, this.headAvailable());
+			System.arraycopy(this.slabs.peekFirst(), this.readPos, target, offset, n);
+			this.advance(n);
+			offset += n;
+		}
+	}
+
+	public byte[] readBytes(int length) {
+		byte[] data = new byte[length];
+		this.read(data, 0, length);
+		return data;
+	}
+
+	public void skip(int length) {
+		this.checkLength(length);
+		while(length > 0){
+			int n = Math.min(length, this.headAvailable());
+			this.advance(n);
+			length -= n;
+		}
+	}
+
+	/**
+	 * Discards all unread data and releases all slabs held by this buffer to the pool.
+	 */
+	public void release() {
+		byte[] slab;
+		while((slab = this.slabs.pollFirst()) != null)
+			this.pool.release(slab);
+		this.readPos = 0;
+		this.writePos = 0;
+		this.remaining = 0;
+	}
+
+
+	private int headAvailable() {
+		return (this.slabs.size() == 1 ? this.writePos : this.slabSize) - this.readPos;
+	}
+
+	private void advance(int n) {
+		this.readPos += n;
+		this.remaining -= n;
+		if(this.remaining == 0){
+			this.release();
+		}else if(this.readPos == this.slabSize){
+			this.pool.release(this.slabs.pollFirst());
+			this.readPos = 0;
+		}
+	}
+
+	private void checkLength(int length) {
+		if(length < 0 || length > this.remaining)
+			throw new IndexOutOfBoundsException();
+	}
+}
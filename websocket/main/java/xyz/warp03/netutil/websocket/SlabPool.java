@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.omegazero.common.util.PropertyUtil;
+
+/**
+ * A thread-safe pool of fixed-size heap byte arrays ("slabs") used by {@link SlabBuffer}s.<br>
+ * <br>
+ * Each thread keeps a small cache of free slabs, so a thread that repeatedly acquires and releases slabs, like the I/O thread of a set of channels, usually does not need any
+ * synchronization. Slabs released to a full thread cache are moved to a shared queue, which is limited to a maximum number of slabs; slabs exceeding that limit are left to
+ * the garbage collector.
+ */
+public class SlabPool {
+
+	private static final SlabPool defaultPool = new SlabPool(PropertyUtil.getInt("xyz.warp03.netutil.websocket.slabSize", 16 << 10),
+			PropertyUtil.getInt("xyz.warp03.netutil.websocket.slabPoolMaxSlabs", Runtime.getRuntime().availableProcessors() * 64),
+			PropertyUtil.getInt("xyz.warp03.netutil.websocket.slabPoolThreadCache", 16));
+
+
+	private final int slabSize;
+	private final int maxSharedSlabs;
+	private final int threadCacheSize;
+
+	private final Queue<byte[]> sharedSlabs = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger sharedCount = new AtomicInteger();
+	private final ThreadLocal<ArrayDeque<byte[]>> threadCache = ThreadLocal.withInitial(ArrayDeque::new);
+
+	private final AtomicLong acquired = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicInteger outstanding = new AtomicInteger();
+	private final AtomicInteger peakOutstanding = new AtomicInteger();
+
+	/**
+	 * Creates a new <code>SlabPool</code>.
+	 *
+	 * @param slabSize        The size of each slab in bytes
+	 * @param maxSharedSlabs  The maximum number of free slabs kept in the shared queue
+	 * @param threadCacheSize The maximum number of free slabs kept by each thread
+	 */
+	public SlabPool(int slabSize, int maxSharedSlabs, int threadCacheSize) {
+		if(slabSize <= 0)
+			throw new IllegalArgumentException("slabSize must be positive");
+		if(maxSharedSlabs < 0 || threadCacheSize < 0)
+			throw new IllegalArgumentException("Slab limits must not be negative");
+		this.slabSize = slabSize;
+		this.maxSharedSlabs = maxSharedSlabs;
+		this.threadCacheSize = threadCacheSize;
+	}
+
+
+	/**
+	 * Returns a slab of {@link #getSlabSize()} bytes. The contents of the slab are undefined. The slab should be passed back to {@link #release(byte[])} when it is no longer
+	 * needed.
+	 *
+	 * @return The slab
+	 */
+	public byte[] acquire() {
+		this.acquired.incrementAndGet();
+		int out = this.outstanding.incrementAndGet();
+		int peak;
+		while(out > (peak = this.peakOutstanding.get()) && !this.peakOutstanding.compareAndSet(peak, out));
+
+		byte[] slab = this.threadCache.get().pollLast();
+		if(slab == null){
+			slab = this.sharedSlabs.poll();
+			if(slab != null)
+				this.sharedCount.decrementAndGet();
+		}
+		if(slab != null){
+			this.hits.incrementAndGet();
+			return slab;
+		}
+		return new byte[this.slabSize];
+	}
+
+	/**
+	 * Returns a slab previously returned by {@link #acquire()} to this pool. The slab must not be used after calling this method.
+	 *
+	 * @param slab The slab
+	 */
+	public void release(byte[] slab) {
+		if(slab.length != this.slabSize)
+			throw new IllegalArgumentException("Slab was not allocated by this pool");
+		this.outstanding.decrementAndGet();
+		ArrayDeque<byte[]> cache = this.threadCache.get();
+		if(cache.size() < this.threadCacheSize){
+			cache.addLast(slab);
+		}else if(this.sharedCount.incrementAndGet() <= this.maxSharedSlabs){
+			this.sharedSlabs.add(slab);
+		}else
+			this.sharedCount.decrementAndGet();
+	}
+
+
+	/**
+	 *
+	 * @return The size of each slab in bytes
+	 */
+	public int getSlabSize() {
+		return this.slabSize;
+	}
+
+	/**
+	 *
+	 * @return The total number of slabs acquired from this pool
+	 */
+	public long getAcquiredCount() {
+		return this.acquired.get();
+	}
+
+	/**
+	 *
+	 * @return The fraction of acquired slabs that were reused instead of newly allocated, or <code>0</code> if no slabs were acquired
+	 */
+	public double getHitRate() {
+		long acquired = this.acquired.get();
+		return acquired > 0 ? (double) this.hits.get() / acquired : 0;
+	}
+
+	/**
+	 *
+	 * @return The number of slabs that are currently in use
+	 */
+	public int getOutstandingSlabs() {
+		return this.outstanding.get();
+	}
+
+	/**
+	 *
+	 * @return The highest number of slabs that were in use at the same time
+	 */
+	public int getPeakOutstandingSlabs() {
+		return this.peakOutstanding.get();
+	}
+
+	/**
+	 *
+	 * @return The number of free slabs in the shared queue, not including slabs cached by individual threads
+	 */
+	public int getSharedSlabs() {
+		return this.sharedCount.get();
+	}
+
+
+	/**
+	 *
+	 * @return The default pool, configured using the <code>xyz.warp03.netutil.websocket.slabSize</code> (default 16KiB),
+	 *         <code>xyz.warp03.netutil.websocket.slabPoolMaxSlabs</code> (default 64 per available processor) and
+	 *         <code>xyz.warp03.netutil.websocket.slabPoolThreadCache</code> (default 16) system properties
+	 */
+	public static SlabPool getDefault() {
+		return defaultPool;
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Cleaner;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.omegazero.common.logging.Logger;
+import org.omegazero.common.logging.LoggerUtil;
+import org.omegazero.common.util.PropertyUtil;
+
+/**
+ * A WebSocket message whose data is stored in a temporary file.<br>
+ * <br>
+ * The file is only deleted when {@link #release()} is called, which must be done exactly once after the application no longer needs the data. If the
+ * <code>xyz.warp03.netutil.websocket.debug</code> system property is <code>true</code>, a warning including the location where the message was created is logged for every
+ * message that becomes unreachable without being released, and its file is deleted.
+ *
+ * @see WebSocketChannel#setOnSpilledMessage(java.util.function.BiConsumer)
+ */
+public final class SpilledMessage {
+
+	private static final Logger logger = LoggerUtil.createLogger();
+
+	private static final boolean leakDetection = PropertyUtil.getBoolean("xyz.warp03.netutil.websocket.debug", false);
+	private static final Cleaner cleaner = leakDetection ? Cleaner.create() : null;
+
+
+	private final long size;
+	private final State state;
+	private final Cleaner.Cleanable cleanable;
+
+	SpilledMessage(Path path, long size) {
+		this.size = size;
+		this.state = new State(path, leakDetection ? new Throwable("Message created here") : null);
+		this.cleanable = cleaner != null ? cleaner.register(this, this.state) : null;
+	}
+
+
+	/**
+	 *
+	 * @return The path of the file containing the message data
+	 * @throws IllegalStateException If this message was released
+	 */
+	public Path getPath() {
+		this.checkReleased();
+		return this.state.path;
+	}
+
+	/**
+	 *
+	 * @return The size of this message in bytes
+	 */
+	public long size() {
+		return this.size;
+	}
+
+	/**
+	 * Maps the message data into memory. The returned buffer must not be used after this message was released.
+	 *
+	 * @return A read-only buffer containing the message data
+	 * @throws IOException              If an I/O error occurs
+	 * @throws IllegalArgumentException If the message is larger than {@link Integer#MAX_VALUE} bytes. Use {@link #map(long, long)} to map parts of the message instead
+	 * @throws IllegalStateException    If this message was released
+	 */
+	public MappedByteBuffer map() throws IOException {
+		return this.map(0, this.size);
+	}
+
+	/**
+	 * Maps a region of the message data into memory. The returned buffer must not be used after this message was released.
+	 *
+	 * @param position The offset in the message where the region starts
+	 * @param length   The size of the region, at most {@link Integer#MAX_VALUE} bytes
+	 * @return A read-only buffer containing the region
+	 * @throws IOException           If an I/O error occurs
+	 * @throws IllegalStateException If this message was released
+	 */
+	public MappedByteBuffer map(long position, long length) throws IOException {
+		this.checkReleased();
+		if(position < 0 || length < 0 || position + length > this.size)
+			throw new IndexOutOfBoundsException();
+		try(FileChannel channel = FileChannel.open(this.state.path, StandardOpenOption.READ)){
+			return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+		}
+	}
+
+	/**
+	 * Opens a new stream reading the message data. The stream should be closed before this message is released.
+	 *
+	 * @return The stream
+	 * @throws IOException           If an I/O error occurs
+	 * @throws IllegalStateException If this message was released
+	 */
+	public InputStream openStream() throws IOException {
+		this.checkReleased();
+		return Files.newInputStream(this.state.path);
+	}
+
+	/**
+	 * Deletes the file of this message. Subsequent calls to this method have no effect.
+	 */
+	public void release() {
+		if(!this.state.released.compareAndSet(false, true))
+			return;
+		deleteFile(this.state.path);
+		if(this.cleanable != null)
+			this.cleanable.clean();
+	}
+
+
+	private void checkReleased() {
+		if(this.state.released.get())
+			throw new IllegalStateException("Message was released");
+	}
+
+
+	static void deleteFile(Path path) {
+		try{
+			Files.deleteIfExists(path);
+		}catch(IOException e){
+			logger.warn("Failed to delete spill file ", path, ": ", e);
+		}
+	}
+
+
+	private static class State implements Runnable {
+
+		private final Path path;
+		private final Throwable allocationTrace;
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		public State(Path path, Throwable allocationTrace) {
+			this.path = path;
+			this.allocationTrace = allocationTrace;
+		}
+
+
+		@Override
+		public void run() {
+			if(!this.released.compareAndSet(false, true))
+				return;
+			logger.warn("SpilledMessage ", this.path, " was not released before it was garbage collected: ", this.allocationTrace);
+			deleteFile(this.path);
+		}
+	}
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+import org.omegazero.common.logging.Logger;
+import org.omegazero.common.logging.LoggerUtil;
+
+import xyz.warp03.netutil.websocket.http.HTTPMessage;
+import xyz.warp03.netutil.websocket.http.HTTPUtil;
+
+/**
+ * An HTTP handler for a {@link WebSocketServer} (see {@link WebSocketServer#setHTTPHandler(String, BiFunction)}) serving the files in a directory.<br>
+ * <br>
+ * The response headers of each file are encoded once and cached until the file changes. The file content is not read by this handler: it is written to the connection
+ * using {@link java.nio.channels.FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)} on connections of a {@link NioWebSocketEngine}, and from a
+ * memory-mapped buffer on other connections.<br>
+ * <br>
+ * If a file with the same name and an additional <code>.br</code> or <code>.gz</code> extension exists and the client accepts the respective content encoding, that file is
+ * sent instead, with the <code>Content-Encoding</code> header set. Files are not compressed by this handler.<br>
+ * <br>
+ * Requests for paths outside of the root directory, for files that do not exist and for directories without an index file are answered with status 404.
+ */
+public class StaticFileHandler implements BiFunction<URI, HTTPMessage, HTTPMessage> {
+
+	private static final Logger logger = LoggerUtil.createLogger();
+
+	private static final Map<String, String> contentTypes = Map.ofEntries(Map.entry("html", "text/html; charset=utf-8"), Map.entry("htm", "text/html; charset=utf-8"),
+			Map.entry("css", "text/css; charset=utf-8"), Map.entry("js", "text/javascript; charset=utf-8"), Map.entry("mjs", "text/javascript; charset=utf-8"),
+			Map.entry("json", "application/json"), Map.entry("txt", "text/plain; charset=utf-8"), Map.entry("xml", "application/xml"), Map.entry("svg", "image/svg+xml"),
+			Map.entry("png", "image/png"), Map.entry("jpg", "image/jpeg"), Map.entry("jpeg", "image/jpeg"), Map.entry("gif", "image/gif"), Map.entry("webp", "image/webp"),
+			Map.entry("ico", "image/x-icon"), Map.entry("wasm", "application/wasm"), Map.entry("woff2", "font/woff2"), Map.entry("pdf", "application/pdf"));
+
+	private static final String[][] precompressedEncodings = { { "br", ".br" }, { "gzip", ".gz" } };
+
+
+	private final String prefix;
+	private final Path root;
+
+	private final Map<Path, FileResponse> responseCache = new ConcurrentHashMap<>();
+
+	private volatile boolean precompressed = true;
+	private volatile String indexFile = "index.html";
+	private volatile String cacheControl;
+
+	/**
+	 * Creates a new <code>StaticFileHandler</code>.
+	 *
+	 * @param prefix The path prefix this handler is registered for, which is removed from the request path to get the path of the file relative to <b>root</b>, for
+	 *               example <code>"/static/"</code>
+	 * @param root   The directory containing the files
+	 */
+	public StaticFileHandler(String prefix, Path root) {
+		this.prefix = Objects.requireNonNull(prefix);
+		this.root = root.toAbsolutePath().normalize();
+	}
+
+
+	/**
+	 *
+	 * @param precompressed Whether precompressed variants of files are sent to clients that accept them. Default is <code>true</code>
+	 */
+	public void setPrecompressed(boolean precompressed) {
+		this.precompressed = precompressed;
+		this.responseCache.clear();
+	}
+
+	/**
+	 *
+	 * @param indexFile The name of the file sent when a directory is requested, or <code>null</code> to answer such requests with status 404. Default is
+	 *                  <code>"index.html"</code>
+	 */
+	public void setIndexFile(String indexFile) {
+		this.indexFile = indexFile;
+	}
+
+	/**
+	 *
+	 * @param cacheControl The value of the <code>Cache-Control</code> header in all responses, or <code>null</code> to omit the header. Default is <code>null</code>
+	 */
+	public void setCacheControl(String cacheControl) {
+		this.cacheControl = cacheControl;
+		this.responseCache.clear();
+	}
+
+
+	@Override
+	public HTTPMessage apply(URI uri, HTTPMessage request) {
+		Path file = this.resolve(uri.getPath());
+		if(file == null)
+			return null;
+		try{
+			if(Files.isDirectory(file)){
+				String index = this.indexFile;
+				if(index == null)
+					return null;
+				file = file.resolve(index);
+			}
+			FileResponse response = null;
+			if(this.precompressed)
+				response = this.getPrecompressedResponse(file, request.getHeader("accept-encoding"));
+			if(response == null)
+				response = this.getResponse(file, file, null);
+			if(response == null)
+				return null;
+
+			String etag = response.getHeader("etag");
+			String ifNoneMatch = request.getHeader("if-none-match");
+			if(ifNoneMatch != null && (ifNoneMatch.equals("*") || ifNoneMatch.contains(etag))){
+				HTTPMessage notModified = HTTPUtil.newResponse(304);
+				notModified.setHeader("etag", etag);
+				if(response.headerExists("vary"))
+					notModified.setHeader("vary", response.getHeader("vary"));
+				return notModified;
+			}
+			return response;
+		}catch(IOException e){
+			logger.warn("Failed to read attributes of ", file, ": ", e);
+			return null;
+		}
+	}
+
+	private Path resolve(String path) {
+		if(path == null || !path.startsWith(this.prefix))
+			return null;
+		String relative = path.substring(this.prefix.length());
+		while(relative.startsWith("/"))
+			relative = relative.substring(1);
+		Path file;
+		try{
+			file = this.root.resolve(relative).normalize();
+		}catch(InvalidPathException e){
+			return null;
+		}
+		if(!file.startsWith(this.root))
+			return null;
+		return file;
+	}
+
+	private FileResponse getPrecompressedResponse(Path file, String acceptEncoding) throws IOException {
+		if(acceptEncoding == null)
+			return null;
+		for(String[] encoding : precompressedEncodings){
+			if(!acceptsEncoding(acceptEncoding, encoding[0]))
+				continue;
+			FileResponse response = this.getResponse(file, file.resolveSibling(file.getFileName() + encoding[1]), encoding[0]);
+			if(response != null)
+				return response;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the cached response for the given <b>variant</b> of <b>file</b>, or creates a new one if the variant changed since the response was cached.
+	 *
+	 * @return The response, or <code>null</code> if the variant does not exist or is not a regular file
+	 */
+	private FileResponse getResponse(Path file, Path variant, String encoding) throws IOException {
+		BasicFileAttributes attributes;
+		try{
+			attributes = Files.readAttributes(variant, BasicFileAttributes.class);
+		}catch(NoSuchFileException e){
+			this.responseCache.remove(variant);
+			return null;
+		}
+		if(!attributes.isRegularFile())
+			return null;
+		FileResponse response = this.responseCache.get(variant);
+		if(response != null && response.getSize() == attributes.size() && response.getLastModified().equals(attributes.lastModifiedTime()))
+			return response;
+
+		response = new FileResponse(variant, attributes.size(), attributes.lastModifiedTime());
+		response.setHeader("content-type", getContentType(file));
+		response.setHeader("content-length", String.valueOf(attributes.size()));
+		response.setHeader("last-modified",
+				DateTimeFormatter.RFC_1123_DATE_TIME.format(attributes.lastModifiedTime().toInstant().atOffset(ZoneOffset.UTC)));
+		response.setHeader("etag", "\"" + Long.toHexString(attributes.size()) + "-" + Long.toHexString(attributes.lastModifiedTime().toMillis())
+				+ (encoding != null ? "-" + encoding : "") + "\"");
+		if(encoding != null)
+			response.setHeader("content-encoding", encoding);
+		if(this.precompressed)
+			response.setHeader("vary", "accept-encoding");
+		if(this.cacheControl != null)
+			response.setHeader("cache-control", this.cacheControl);
+		this.responseCache.put(variant, response);
+		return response;
+	}
+
+
+	private static String getContentType(Path file) {
+		String name = file.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		String type = dot >= 0 ? contentTypes.get(name.substring(dot + 1).toLowerCase()) : null;
+		return type != null ? type : "application/octet-stream";
+	}
+
+	private static boolean acceptsEncoding(String acceptEncoding, String encoding) {
+		for(String part : acceptEncoding.split(",")){
+			String[] params = part.split(";");
+			if(!params[0].trim().equalsIgnoreCase(encoding))
+				continue;
+			for(int i = 1; i < params.length; i++){
+				String param = params[i].trim();
+				if(param.startsWith("q=")){
+					try{
+						return Double.parseDouble(param.substring(2)) > 0;
+					}catch(NumberFormatException e){
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A {@link MessageCodec} for strings sent as WebSocket "text" messages.<br>
+ * <br>
+ * Strings are encoded to UTF-8 directly into the frame, without creating an intermediate array like {@link String#getBytes(java.nio.charset.Charset)}. The encoded size is
+ * computed from the characters beforehand, so the frame is allocated with its exact size and the payload is never copied. Unpaired surrogates are encoded as
+ * <code>'?'</code>. Received messages that are not valid UTF-8 are rejected.<br>
+ * <br>
+ * Note that the JVM encodes a <code>String</code> consisting only of Latin-1 characters with <code>getBytes</code> much faster than the character-by-character encoding
+ * of this codec, so for such strings, {@link WebSocketChannel#write(String)} is faster despite the additional copy. This codec avoids the temporary array, which reduces
+ * garbage for large messages.
+ */
+public final class TextCodec implements MessageCodec<CharSequence> {
+
+	/**
+	 * The <code>TextCodec</code> instance.
+	 */
+	public static final TextCodec INSTANCE = new TextCodec();
+
+	private static final ThreadLocal<CharsetDecoder> decoders = ThreadLocal.withInitial(() -> StandardCharsets.UTF_8.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT));
+
+	private TextCodec() {
+	}
+
+
+	@Override
+	public boolean isBinary() {
+		return false;
+	}
+
+	@Override
+	public int getEncodedSize(CharSequence message) {
+		int length = message.length();
+		long size = 0;
+		for(int i = 0; i < length; i++){
+			char c = message.charAt(i);
+			if(c < 0x80)
+				size += 1;
+			else if(c < 0x800)
+				size += 2;
+			else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(message.charAt(i + 1))){
+				size += 4;
+				i++;
+			}else if(Character.isSurrogate(c))
+				size += 1; // unpaired surrogate, replaced with '?'
+			else
+				size += 3;
+		}
+		if(size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Encoded message too large");
+		return (int) size;
+	}
+
+	@Override
+	public void encode(CharSequence message, ByteBuffer buffer) {
+		int length = message.length();
+		if(buffer.hasArray()){
+			byte[] array = buffer.array();
+			int start = buffer.arrayOffset() + buffer.position();
+			int end = buffer.arrayOffset() + buffer.limit();
+			int index = start;
+			int i = 0;
+			// ASCII fast path
+			for(; i < length && index < end; i++, index++){
+				char c = message.charAt(i);
+				if(c >= 0x80)
+					break;
+				array[index] = (byte) c;
+			}
+			for(; i < length; i++){
+				int cp = codePoint(message, i);
+				if(cp > 0xffff)
+					i++;
+				index = putCodePoint(array, index, end, cp);
+			}
+			buffer.position(index - buffer.arrayOffset());
+		}else{
+			byte[] bytes = new byte[4];
+			for(int i = 0; i < length; i++){
+				int cp = codePoint(message, i);
+				if(cp > 0xffff)
+					i++;
+				buffer.put(bytes, 0, putCodePoint(bytes, 0, bytes.length, cp));
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * @return The message as a {@link String}
+	 */
+	@Override
+	public CharSequence decode(ByteBuffer buffer) {
+		try{
+			return decoders.get().reset().decode(buffer).toString();
+		}catch(CharacterCodingException e){
+			throw new IllegalArgumentException("Invalid UTF-8 data", e);
+		}
+	}
+
+
+	private static int codePoint(CharSequence message, int index) {
+		char c = message.charAt(index);
+		if(!Character.isSurrogate(c))
+			return c;
+		if(Character.isHighSurrogate(c) && index + 1 < message.length() && Character.isLowSurrogate(message.charAt(index + 1)))
+			return Character.toCodePoint(c, message.charAt(index + 1));
+		return '?'; // unpaired surrogate
+	}
+
+	private static int putCodePoint(byte[] array, int index, int end, int cp) {
+		if(cp < 0x80){
+			if(index >= end)
+				throw new BufferOverflowException();
+			array[index++] = (byte) cp;
+		}else if(cp < 0x800){
+			if(index + 2 > end)
+				throw new BufferOverflowException();
+			array[index++] = (byte) (0xc0 | (cp >> 6));
+			array[index++] = (byte) (0x80 | (cp & 0x3f));
+		}else if(cp < 0x10000){
+			if(index + 3 > end)
+				throw new BufferOverflowException();
+			array[index++] = (byte) (0xe0 | (cp >> 12));
+			array[index++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+			array[index++] = (byte) (0x80 | (cp & 0x3f));
+		}else{
+			if(index + 4 > end)
+				throw new BufferOverflowException();
+			array[index++] = (byte) (0xf0 | (cp >> 18));
+			array[index++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+			array[index++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+			array[index++] = (byte) (0x80 | (cp & 0x3f));
+		}
+		return index;
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.omegazero.common.util.PropertyUtil;
+import org.omegazero.net.client.NetClientManager;
+import org.omegazero.net.socket.SocketConnection;
+
+/**
+ * Creates {@link WebSocketClient}s without blocking the calling thread on host name resolution.<br>
+ * <br>
+ * Host names are resolved on a small, dedicated thread pool. Resolved addresses are cached for a configurable amount of time, and concurrent lookups of the same host name
+ * are merged into a single lookup. Unlike {@link WSUtil#createClient(NetClientManager, URL)}, which resolves the host name synchronously on every call, opening many
+ * connections to the same host using this class only causes a single lookup per cache period.
+ */
+public class WSClientFactory implements AutoCloseable {
+
+	private static final int defaultResolverThreads = PropertyUtil.getInt("xyz.warp03.netutil.websocket.resolverThreads", 2);
+	private static final long defaultCacheTTL = PropertyUtil.getLong("xyz.warp03.netutil.websocket.resolverCacheTTL", 60000);
+	private static final int maxCacheSize = PropertyUtil.getInt("xyz.warp03.netutil.websocket.resolverCacheSize", 4096);
+
+	private static final AtomicInteger factoryIndex = new AtomicInteger();
+
+
+	private final NetClientManager clientManager;
+	private final long cacheTTL;
+	private final ExecutorService resolverExecutor;
+
+	private final Map<String, CachedAddress> cache = new ConcurrentHashMap<>();
+	private final Map<String, CompletableFuture<InetAddress>> pendingLookups = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates a new <code>WSClientFactory</code> with the default number of resolver threads and the default cache TTL.
+	 *
+	 * @param clientManager The client manager to create connections with
+	 * @see #WSClientFactory(NetClientManager, int, long)
+	 */
+	public WSClientFactory(NetClientManager clientManager) {
+		this(clientManager, defaultResolverThreads, defaultCacheTTL);
+	}
+
+	/**
+	 * Creates a new <code>WSClientFactory</code>.
+	 *
+	 * @param clientManager   The client manager to create connections with
+	 * @param resolverThreads The number of threads used for resolving host names
+	 * @param cacheTTL        The time in milliseconds a resolved address is cached. If <code>0</code>, addresses are not cached, but concurrent lookups of the same host
+	 *                        name are still merged
+	 */
+	public WSClientFactory(NetClientManager clientManager, int resolverThreads, long cacheTTL) {
+		if(resolverThreads <= 0)
+			throw new IllegalArgumentException("resolverThreads must be positive");
+		if(cacheTTL < 0)
+			throw new IllegalArgumentException("cacheTTL must not be negative");
+		this.clientManager = Objects.requireNonNull(clientManager);
+		this.cacheTTL = cacheTTL;
+		String threadPrefix = "WSClientFactoryResolver-" + factoryIndex.incrementAndGet() + "-";
+		AtomicInteger threadIndex = new AtomicInteger();
+		this.resolverExecutor = Executors.newFixedThreadPool(resolverThreads, (r) -> {
+			Thread t = new Thread(r, threadPrefix + threadIndex.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+
+	/**
+	 * Creates a WebSocket client based on the given <b>target</b> URL.<br>
+	 * <br>
+	 * This method returns immediately. The returned future completes with the new {@link WebSocketClient} once the host name of the URL is resolved and the underlying
+	 * <code>SocketConnection</code> was created, or exceptionally if either of those steps fails. As with {@link WSUtil#createClient(NetClientManager, URL)}, the caller must
+	 * still call {@link SocketConnection#connect(int)} and {@link WebSocketClient#start()} to start the connection.<br>
+	 * <br>
+	 * The connection uses the explicit port of the URL, if present, and TLS only if the URL has a secure protocol scheme.
+	 *
+	 * @param target The target URL
+	 * @return A future completing with the new {@link WebSocketClient} instance
+	 * @see WSUtil#createConnectionParameters(URL, InetAddress)
+	 */
+	public CompletableFuture<WebSocketClient> createClient(URL target) {
+		return this.resolve(target.getHost()).thenApply((address) -> {
+			try{
+				SocketConnection conn = this.clientManager.connection(WSUtil.createConnectionParameters(target, address));
+				return new WebSocketClient(conn, target);
+			}catch(IOException e){
+				throw new CompletionException(e);
+			}
+		});
+	}
+
+	/**
+	 * Resolves the given <b>host</b> name asynchronously.<br>
+	 * <br>
+	 * If the address of the host is cached and the cache entry has not expired, the returned future is already completed. Otherwise, if there is no other lookup of the same
+	 * host name in progress, a new lookup is started. Lookup failures are not cached.
+	 *
+	 * @param host The host name or address literal
+	 * @return A future completing with the resolved address, or exceptionally with an {@link UnknownHostException} if the host name could not be resolved
+	 */
+	public CompletableFuture<InetAddress> resolve(String host) {
+		String key = host.toLowerCase();
+		CachedAddress cached = this.cache.get(key);
+		if(cached != null){
+			if(cached.expires - System.nanoTime() > 0)
+				return CompletableFuture.completedFuture(cached.address);
+			this.cache.remove(key, cached);
+		}
+
+		CompletableFuture<InetAddress> future = new CompletableFuture<>();
+		CompletableFuture<InetAddress> existing = this.pendingLookups.putIfAbsent(key, future);
+		if(existing != null)
+			return existing;
+		try{
+			this.resolverExecutor.execute(() -> {
+				this.lookup(key, future);
+			});
+		}catch(RejectedExecutionException e){
+			this.pendingLookups.remove(key, future);
+			future.completeExceptionally(new IllegalStateException("WSClientFactory is closed", e));
+		}
+		return future;
+	}
+
+	private void lookup(String key, CompletableFuture<InetAddress> future) {
+		try{
+			InetAddress address = InetAddress.getByName(key);
+			if(this.cacheTTL > 0){
+				if(this.cache.size() >= maxCacheSize)
+					this.purgeExpired();
+				this.cache.put(key, new CachedAddress(address, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.cacheTTL)));
+			}
+			// remove only after inserting into the cache, so that a concurrent call to resolve either sees the cache entry or joins this lookup
+			this.pendingLookups.remove(key, future);
+			future.complete(address);
+		}catch(Throwable e){
+			future.completeExceptionally(e);
+			if(e instanceof Error)
+				throw (Error) e;
+		}finally{
+			// a pending entry left behind would be returned by every later call to resolve for this host
+			this.pendingLookups.remove(key, future);
+		}
+	}
+
+	private void purgeExpired() {
+		long now = System.nanoTime();
+		this.cache.values().removeIf((c) -> c.expires - now <= 0);
+		if(this.cache.size() >= maxCacheSize)
+			this.cache.clear();
+	}
+
+
+	/**
+	 * Removes all cached addresses.
+	 */
+	public void clearCache() {
+		this.cache.clear();
+	}
+
+
+	/**
+	 * Stops the resolver threads. Lookups that are already in progress are completed, but new calls to {@link #createClient(URL)} or {@link #resolve(String)} that require a
+	 * lookup will fail.
+	 */
+	@Override
+	public void close() {
+		this.resolverExecutor.shutdown();
+	}
+
+
+	private static class CachedAddress {
+
+		public final InetAddress address;
+		public final long expires;
+
+		public CachedAddress(InetAddress address, long expires) {
+			this.address = address;
+			this.expires = expires;
+		}
+	}
+}
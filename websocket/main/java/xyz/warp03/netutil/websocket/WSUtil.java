@@ -31,7 +31,9 @@ public final class WSUtil {
 	 * Creates a WebSocket client based on the given <b>clientManager</b> and <b>target</b> URL.<br>
 	 * <br>
 	 * This function only creates a <code>SocketConnection</code> with several default settings derived from the given URL and using that to create a new
-	 * {@link WebSocketClient}. The caller must still call {@link SocketConnection#connect(int)} and {@link WebSocketClient#start()} to start the connection.
+	 * {@link WebSocketClient}. The caller must still call {@link SocketConnection#connect(int)} and {@link WebSocketClient#start()} to start the connection.<br>
+	 * <br>
+	 * The host name of the URL is resolved synchronously. To avoid blocking the calling thread, a {@link WSClientFactory} may be used instead.
 	 * 
 	 * @param clientManager The client manager to create a connection with
 	 * @param target        The target URL
@@ -41,14 +43,53 @@ public final class WSUtil {
 	 * @see WebSocketClient#WebSocketClient(SocketConnection, URL)
 	 */
 	public static WebSocketClient createClient(NetClientManager clientManager, URL target) throws IOException {
-		SocketAddress remote = new InetSocketAddress(InetAddress.getByName(target.getHost()), target.getDefaultPort());
-		TLSConnectionParameters tlsparams = new TLSConnectionParameters(remote);
-		tlsparams.setAlpnNames(new String[] { "http/1.1" });
-		tlsparams.setSniOptions(new String[] { target.getHost() });
-		SocketConnection conn = clientManager.connection(tlsparams);
+		SocketConnection conn = clientManager.connection(createConnectionParameters(target, InetAddress.getByName(target.getHost())));
 		return new WebSocketClient(conn, target);
 	}
 
+	/**
+	 * Creates the <code>ConnectionParameters</code> for a connection to the given <b>target</b> URL, whose host name has already been resolved to <b>address</b>.<br>
+	 * <br>
+	 * The port is the explicit port of the URL, or the default port of the protocol scheme if none is given. For secure schemes (see {@link #isSecure(URL)}),
+	 * {@link TLSConnectionParameters} with the host name as SNI option are returned, otherwise plain <code>ConnectionParameters</code>.
+	 * 
+	 * @param target  The target URL
+	 * @param address The resolved address of the host of <b>target</b>
+	 * @return The new <code>ConnectionParameters</code>
+	 */
+	public static ConnectionParameters createConnectionParameters(URL target, InetAddress address) {
+		SocketAddress remote = new InetSocketAddress(address, getPort(target));
+		if(isSecure(target)){
+			TLSConnectionParameters tlsparams = new TLSConnectionParameters(remote);
+			tlsparams.setAlpnNames(new String[] { "http/1.1" });
+			tlsparams.setSniOptions(new String[] { target.getHost() });
+			return tlsparams;
+		}else
+			return new ConnectionParameters(remote);
+	}
+
+	/**
+	 * 
+	 * @param target The URL
+	 * @return The explicit port of the given URL, or the default port of its protocol scheme if the URL does not contain a port
+	 */
+	public static int getPort(URL target) {
+		int port = target.getPort();
+		if(port < 0)
+			port = target.getDefaultPort();
+		return port;
+	}
+
+	/**
+	 * 
+	 * @param target The URL
+	 * @return <code>true</code> if the protocol scheme of the given URL is <code>wss:</code> or <code>https:</code>
+	 */
+	public static boolean isSecure(URL target) {
+		String protocol = target.getProtocol();
+		return "wss".equalsIgnoreCase(protocol) || "https".equalsIgnoreCase(protocol);
+	}
+
 
 	/**
 	 * Sets a dummy {@link URLStreamHandlerFactory} creating {@link URLStreamHandler}s for <code>ws:</code> and <code>wss:</code> URL protocol schemes.
@@ -9,48 +9,138 @@ package xyz.warp03.netutil.websocket;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.Random;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 import org.omegazero.common.util.PropertyUtil;
 import org.omegazero.net.socket.SocketConnection;
 
+import xyz.warp03.netutil.websocket.capture.CaptureJournal;
+import xyz.warp03.netutil.websocket.http.HTTPMessage;
+import xyz.warp03.netutil.websocket.jfr.CloseEvent;
+
 public class WebSocketChannel {
 
 	private static final int maxPayloadSize = PropertyUtil.getInt("xyz.warp03.netutil.websocket.maxPayloadSize", 0);
 
+	private static final int defaultDirectMessageThreshold = PropertyUtil.getInt("xyz.warp03.netutil.websocket.directMessageThreshold", 1 << 20);
+	private static final int defaultMaxDirectMessageSize = PropertyUtil.getInt("xyz.warp03.netutil.websocket.maxDirectMessageSize", 64 << 20);
+
+	private static final long defaultSpillThreshold = PropertyUtil.getLong("xyz.warp03.netutil.websocket.spillThreshold", 64L << 20);
+	private static final String defaultSpillDirectory = PropertyUtil.getString("xyz.warp03.netutil.websocket.spillDirectory", null);
+
+	private static final int defaultFragmentSize = PropertyUtil.getInt("xyz.warp03.netutil.websocket.fragmentSize", 65536);
+
+	private static final int MAX_FRAME_HEADER_SIZE = 14;
+	private static final int CODEC_BUFFER_SIZE = 8192;
+	private static final int CODEC_BUFFER_RETAINED_SIZE = 1 << 20;
+
+	// used by codecs that do not know the encoded size of a message in advance
+	private static final ThreadLocal<byte[]> codecBuffers = ThreadLocal.withInitial(() -> new byte[CODEC_BUFFER_SIZE]);
+
+	static final int READ_BLOCK_RELAY = 1;
+	static final int READ_BLOCK_QUOTA = 2;
+
+	private static final AtomicLong nextChannelId = new AtomicLong();
+
+	private final long channelId = nextChannelId.incrementAndGet();
 	protected final SocketConnection connection;
 	private final boolean client;
 	private URI resource;
 
-	private boolean handshakeComplete = false;
+	private volatile boolean handshakeComplete = false;
 	private String wsProtocol;
 
 	private BiConsumer<byte[], Boolean> onMessage;
 	private Consumer<byte[]> onPong;
 	private Consumer<Throwable> onError;
 	private Consumer<Integer> onClose;
+	private BiConsumer<DirectMessage, Boolean> onDirectMessage;
+	private BiConsumer<SpilledMessage, Boolean> onSpilledMessage;
+	private Consumer<MessageBatch> onBatch;
+	private volatile Consumer<ReceivedMessages> onMessages;
 
-	private ResizableByteBuffer frameBuffer = new ResizableByteBuffer();
+	private int directMessageThreshold = defaultDirectMessageThreshold;
+	private int maxDirectMessageSize = defaultMaxDirectMessageSize;
+	private DirectBufferPool directBufferPool = DirectBufferPool.getDefault();
+	private long spillThreshold = defaultSpillThreshold;
+	private Path spillDirectory = defaultSpillDirectory != null ? Paths.get(defaultSpillDirectory) : null;
+
+	private SlabBuffer frameBuffer = new SlabBuffer(SlabPool.getDefault());
 
 	private int lastFrameFlags = -1;
 	private long lastFrameLength = -1;
 	private long lastFrameMKey = -1;
 	private boolean frameComplete = false;
+	private long lastFrameRead = 0;
+	private FrameSink frameSink;
 	private ByteArrayOutputStream lastFramePayload = new ByteArrayOutputStream();
 
+	private final FrameSink heapSink = new HeapSink();
+	private final FrameSink receivedSink = new ReceivedSink();
+	private final FrameSink directSink = new DirectSink();
+	private final FrameSink spillSink = new SpillSink();
+	private final FrameSink relaySink = new RelaySink();
+	private final FrameSink dropSink = new DropSink();
+
 	private boolean lastMessageBinary = false;
 	private ByteArrayOutputStream lastMessage = new ByteArrayOutputStream();
+	private ReceivedMessages receivedMessages;
+	private ByteBuffer directMessage;
+	private Path spillPath;
+	private FileChannel spillChannel;
+	private long spillSize;
 	private boolean messageStarted = false;
+	private boolean messageDropped = false;
+	// set once a close frame was received or a frame was invalid; any data received after that is ignored
+	private boolean inputClosed = false;
+
+	private RateLimiter rateLimiter;
+	private int readBlockReasons = 0;
+
+	private final OutboundQueue outboundQueue;
+	private final AtomicReference<FragmentStream> outboundFragment = new AtomicReference<>();
+	private volatile int fragmentSize = defaultFragmentSize;
+	private volatile int[] laneWeights = { 1 };
+	private final MessageBatcher batcher = new MessageBatcher(this);
+	private volatile boolean batching = false;
 
-	private boolean closed = false;
+	private volatile CaptureJournal captureJournal;
+	private volatile WebSocketRelay.Direction relay;
+	private volatile ResumeSession resumeSession;
+	private volatile OutboundPolicy outboundPolicy;
+	private HTTPMessage handshakeRequest;
+	private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+
+	private final AtomicBoolean closing = new AtomicBoolean();
+	private volatile int closeStatus;
+	private volatile boolean closeReceived = false;
+	private volatile String closeInitiator;
+	private volatile boolean closed = false;
 
 	public WebSocketChannel(SocketConnection connection, boolean client, URI resource) {
 		this.connection = connection;
 		this.client = client;
 		this.resource = resource;
+		this.outboundQueue = new OutboundQueue(this, connection);
 	}
 
 
@@ -59,47 +149,115 @@ public class WebSocketChannel {
 			this.wsProtocol = proto;
 		else
 			this.wsProtocol = "";
+		this.batching = MessageBatch.PROTOCOL.equals(this.wsProtocol);
 
 		this.connection.setOnData(this::incomingData);
 		this.connection.setOnClose(this::connectionClose);
+		this.connection.setOnWritable(this.outboundQueue::flush);
 
 		this.handshakeComplete = true;
 	}
 
 
 	protected void incomingData(byte[] data) throws IOException {
-		if(this.closed)
+		if(this.closed || this.inputClosed)
+			return;
+		CaptureJournal journal = this.captureJournal;
+		if(journal != null)
+			journal.append(this.channelId, this.client ? CaptureJournal.FLAG_CLIENT : 0, data);
+		this.frameBuffer.write(data);
+		this.decodeBuffered();
+	}
+
+	/**
+	 * Same as {@link #incomingData(byte[])}, but reads the data from a buffer, which may be reused by the caller after this method returns.
+	 */
+	void incomingData(ByteBuffer data) throws IOException {
+		if(this.closed || this.inputClosed)
 			return;
+		CaptureJournal journal = this.captureJournal;
+		if(journal != null)
+			journal.append(this.channelId, this.client ? CaptureJournal.FLAG_CLIENT : 0, data);
 		this.frameBuffer.write(data);
-		while(this.frameBuffer.remaining() > 0){
+		this.decodeBuffered();
+	}
+
+	private void decodeBuffered() throws IOException {
+		while(!this.inputClosed && this.frameBuffer.remaining() > 0){
 			if(!this.frameComplete){
 				if(!this.readNextFrameHeader())
 					break;
+				if(!this.frameComplete) // need more data
+					break;
+				if(!this.beginFrame())
+					break;
 			}else{
-				this.frameBuffer.readIntoOutputStream(this.lastFramePayload,
-						(int) Math.min(this.frameBuffer.remaining(), this.lastFrameLength - this.lastFramePayload.size()));
+				int length = (int) Math.min(this.frameBuffer.remaining(), this.lastFrameLength - this.lastFrameRead);
+				if(!this.frameSink.payload(length))
+					break;
+				this.lastFrameRead += length;
 			}
-			if(this.lastFramePayload.size() == this.lastFrameLength){
-				if(!this.handleFrame())
+			if(this.lastFrameRead == this.lastFrameLength){
+				if(!this.frameSink.end())
 					break;
 				this.lastFrameFlags = -1;
 				this.lastFrameLength = -1;
 				this.lastFrameMKey = -1;
 				this.frameComplete = false;
+				this.lastFrameRead = 0;
+				this.frameSink = null;
 				this.lastFramePayload.reset();
 			}
 		}
+		if(!this.closed)
+			this.deliverReceivedMessages();
+		if(this.closed || this.inputClosed)
+			this.frameBuffer.release();
+	}
+
+	/**
+	 * Called by {@link #beginFrame()} for frames that are not sent to another sink. If the frame is a complete, small data message that will be delivered to the
+	 * <code>onMessages</code> callback, its payload is decoded directly into the <code>ReceivedMessages</code>.
+	 */
+	private void beginReceivedFrame(int opcode, boolean fin) {
+		if(this.onMessages == null || !fin || (opcode != WSCommon.WS_OPCODE_TEXT && opcode != WSCommon.WS_OPCODE_BINARY)
+				|| this.lastFrameLength > ReceivedMessages.MAX_RESERVED_LENGTH)
+			return;
+		if(this.batching && opcode == WSCommon.WS_OPCODE_BINARY && this.onBatch != null)
+			return;
+		if(this.receivedMessages == null)
+			this.receivedMessages = new ReceivedMessages();
+		this.receivedMessages.reserve((int) this.lastFrameLength);
+		this.frameSink = this.receivedSink;
+	}
+
+	private void deliverReceivedMessages() {
+		ReceivedMessages messages = this.receivedMessages;
+		if(messages == null || messages.size() == 0)
+			return;
+		try{
+			Consumer<ReceivedMessages> onMessages = this.onMessages;
+			if(onMessages != null)
+				onMessages.accept(messages);
+		}finally{
+			boolean framePending = this.frameSink == this.receivedSink;
+			messages.clear(framePending ? (int) this.lastFrameRead : 0);
+			if(framePending)
+				messages.reserve((int) this.lastFrameLength);
+		}
 	}
 
 	protected void connectionClose() {
 		if(!this.closed)
 			this.close0(WSCommon.WS_STATUS_ABNORMAL_CLOSE);
+		// called by the same thread as incomingData, so the buffer is not in use
+		this.frameBuffer.release();
 	}
 
 
 	private boolean readNextFrameHeader() throws InvalidWSFrameException {
 		if(this.lastFrameFlags < 0 && this.frameBuffer.remaining() >= 2){
-			this.lastFrameFlags = this.frameBuffer.read() & 0xff | (this.frameBuffer.read() << 8);
+			this.lastFrameFlags = this.frameBuffer.read() & 0xff | ((this.frameBuffer.read() & 0xff) << 8);
 			if((this.lastFrameFlags & 0x70) != 0)
 				return this.wsProtocolError("RSV bits must be clear");
 			if((this.lastFrameFlags & 0x8000) != 0){
@@ -140,43 +298,298 @@ public class WebSocketChannel {
 		return true;
 	}
 
+	/**
+	 * Called once the header of a frame was read. Checks that the frame is valid in the current state of the fragmented message, then selects the {@link FrameSink} the
+	 * payload of the frame is read into.
+	 */
+	private boolean beginFrame() throws InvalidWSFrameException {
+		int opcode = this.lastFrameFlags & 0xf;
+		boolean fin = (this.lastFrameFlags & 0x80) != 0;
+		boolean data = false;
+		if(opcode == WSCommon.WS_OPCODE_CONTINUATION){
+			if(!this.messageStarted && !this.messageDropped)
+				return this.wsProtocolError("Unexpected continuation frame");
+			data = true;
+		}else if(opcode == WSCommon.WS_OPCODE_TEXT || opcode == WSCommon.WS_OPCODE_BINARY){
+			if(this.messageStarted || this.messageDropped)
+				return this.wsProtocolError("Unterminated message fragment sequence");
+			data = true;
+		}else if(opcode == WSCommon.WS_OPCODE_CLOSE || opcode == WSCommon.WS_OPCODE_PING || opcode == WSCommon.WS_OPCODE_PONG){
+			if(!fin)
+				return this.wsProtocolError("Control frame is fragmented");
+		}else
+			return this.wsProtocolError("Reserved opcode " + opcode);
+
+		if(this.rateLimiter != null || this.messageDropped){
+			if(!this.checkRateQuota(opcode, fin))
+				return false;
+			if(this.frameSink == this.dropSink)
+				return true;
+		}
+		WebSocketRelay.Direction relay = this.relay;
+		if(relay != null && data){
+			this.messageStarted = !fin;
+			relay.frameStart(opcode, fin, this.lastFrameLength, (int) this.lastFrameMKey, this.lastFrameMKey >= 0);
+			this.frameSink = this.relaySink;
+			return true;
+		}
+		if(data && this.onSpilledMessage != null && this.spillThreshold > 0 && !this.beginSpilledFrame())
+			return false;
+		if(data && this.frameSink == null && this.onDirectMessage != null && this.directMessageThreshold > 0 && !this.beginDirectFrame())
+			return false;
+		if(this.frameSink == null)
+			this.beginReceivedFrame(opcode, fin);
+		if(this.frameSink == null)
+			this.frameSink = this.heapSink;
+		return true;
+	}
+
+	private boolean beginDirectFrame() throws InvalidWSFrameException {
+		long size = this.lastFrameLength + (this.directMessage != null ? this.directMessage.position() : this.lastMessage.size());
+		if(this.directMessage == null && size < this.directMessageThreshold)
+			return true;
+		if(size > this.maxDirectMessageSize)
+			return this.wsFrameError("Message too large", WSCommon.WS_STATUS_MSG_TOO_BIG);
+		if(this.directMessage == null && this.lastMessage.size() > 0){
+			if(!this.growDirectMessage(this.lastMessage.size()))
+				return false;
+			this.directMessage.put(this.lastMessage.toByteArray());
+			this.lastMessage.reset();
+		}
+		this.frameSink = this.directSink;
+		return true;
+	}
+
+	/**
+	 * Ensures that the direct message buffer has space for at least <b>length</b> more bytes. The buffer is grown based on the data actually received, because the length in a
+	 * frame header is only an upper bound until the payload arrives.
+	 */
+	private boolean growDirectMessage(int length) throws InvalidWSFrameException {
+		ByteBuffer current = this.directMessage;
+		if(current != null && current.remaining() >= length)
+			return true;
+		int position = current != null ? current.position() : 0;
+		long required = (long) position + length;
+		long frameEnd = position + this.lastFrameLength - this.lastFrameRead;
+		// double the capacity, but never beyond the end of the current frame; the pool rounds up to a power of two
+		long size = Math.max(required, Math.min(current != null ? current.capacity() * 2L : 0, frameEnd));
+		if(size > this.maxDirectMessageSize)
+			return this.wsFrameError("Message too large", WSCommon.WS_STATUS_MSG_TOO_BIG);
+		ByteBuffer buf = this.directBufferPool.allocate((int) size);
+		if(buf == null)
+			return this.wsFrameError("Direct memory limit reached", WSCommon.WS_STATUS_MSG_TOO_BIG);
+		if(current != null){
+			current.flip();
+			buf.put(current);
+			this.directBufferPool.release(current);
+		}
+		this.directMessage = buf;
+		return true;
+	}
+
+	private boolean checkRateQuota(int opcode, boolean fin) throws InvalidWSFrameException {
+		if(opcode == WSCommon.WS_OPCODE_CONTINUATION && this.messageDropped){
+			this.dropFrame();
+			this.messageDropped = !fin;
+			return true;
+		}
+		RateLimiter limiter = this.rateLimiter;
+		if(limiter == null || opcode == WSCommon.WS_OPCODE_CLOSE)
+			return true;
+		RateQuota.Action action = limiter.getQuota().getAction();
+		if(action == RateQuota.Action.DROP && this.relay != null)
+			action = RateQuota.Action.PAUSE;
+		boolean newMessage = opcode == WSCommon.WS_OPCODE_TEXT || opcode == WSCommon.WS_OPCODE_BINARY;
+		if(limiter.acquire((opcode & 0x8) != 0, newMessage, this.lastFrameLength, action == RateQuota.Action.PAUSE))
+			return true;
+		if(action == RateQuota.Action.PAUSE){
+			limiter.pause();
+			return true;
+		}else if(action == RateQuota.Action.DROP){
+			if((opcode & 0x8) == 0){
+				this.discardMessage();
+				this.messageDropped = !fin;
+			}
+			this.dropFrame();
+			return true;
+		}else{
+			limiter.getQuota().channelClosed();
+			return this.wsFrameError("Rate quota exceeded", WSCommon.WS_STATUS_POLICY_VIOLATION);
+		}
+	}
+
+	private void dropFrame() {
+		this.frameSink = this.dropSink;
+		RateLimiter limiter = this.rateLimiter;
+		if(limiter != null)
+			limiter.getQuota().frameDropped();
+	}
+
+	private void discardMessage() {
+		this.lastMessage.reset();
+		this.releaseDirectMessage();
+		this.releaseSpill();
+		this.messageStarted = false;
+	}
+
+	private boolean beginSpilledFrame() throws InvalidWSFrameException {
+		if(this.spillChannel == null){
+			long size = this.lastFrameLength + (this.directMessage != null ? this.directMessage.position() : this.lastMessage.size());
+			if(size < this.spillThreshold)
+				return true;
+			try{
+				Path path = this.spillDirectory != null ? Files.createTempFile(this.spillDirectory, "wsmsg-", ".tmp") : Files.createTempFile("wsmsg-", ".tmp");
+				this.spillPath = path;
+				this.spillChannel = FileChannel.open(path, StandardOpenOption.WRITE);
+				this.spillSize = 0;
+				if(this.directMessage != null){
+					this.directMessage.flip();
+					this.writeSpill(this.directMessage);
+					this.releaseDirectMessage();
+				}else if(this.lastMessage.size() > 0){
+					this.writeSpill(ByteBuffer.wrap(this.lastMessage.toByteArray()));
+					this.lastMessage.reset();
+				}
+			}catch(IOException e){
+				this.releaseSpill();
+				return this.wsFrameError("Failed to write message to disk: " + e, WSCommon.WS_STATUS_UNEXPECTED_ERROR);
+			}
+		}
+		this.frameSink = this.spillSink;
+		return true;
+	}
+
+	private boolean readSpilledPayload(int length) throws InvalidWSFrameException {
+		byte[] data = this.frameBuffer.readBytes(length);
+		if(this.lastFrameMKey >= 0)
+			maskData(data, 0, length, Integer.rotateLeft((int) this.lastFrameMKey, (int) (this.lastFrameRead & 3) * 8));
+		try{
+			this.writeSpill(ByteBuffer.wrap(data));
+		}catch(IOException e){
+			this.releaseSpill();
+			return this.wsFrameError("Failed to write message to disk: " + e, WSCommon.WS_STATUS_UNEXPECTED_ERROR);
+		}
+		return true;
+	}
+
+	private void writeSpill(ByteBuffer data) throws IOException {
+		while(data.hasRemaining())
+			this.spillSize += this.spillChannel.write(data);
+	}
+
+	private void releaseSpill() {
+		if(this.spillPath == null)
+			return;
+		try{
+			if(this.spillChannel != null)
+				this.spillChannel.close();
+		}catch(IOException e){
+			// the file is deleted anyway
+		}
+		SpilledMessage.deleteFile(this.spillPath);
+		this.spillChannel = null;
+		this.spillPath = null;
+	}
+
+	private boolean readDirectPayload(int length) throws InvalidWSFrameException {
+		if(!this.growDirectMessage(length))
+			return false;
+		int start = this.directMessage.position();
+		this.frameBuffer.readIntoBuffer(this.directMessage, length);
+		if(this.lastFrameMKey >= 0)
+			maskData(this.directMessage, start, start + length, Integer.rotateLeft((int) this.lastFrameMKey, (int) (this.lastFrameRead & 3) * 8));
+		return true;
+	}
+
+	private void releaseDirectMessage() {
+		if(this.directMessage != null){
+			this.directBufferPool.release(this.directMessage);
+			this.directMessage = null;
+		}
+	}
+
 	private boolean handleFrame() throws IOException {
 		boolean fin = (this.lastFrameFlags & 0x80) != 0;
 		int opcode = this.lastFrameFlags & 0xf;
-		if((opcode & 0x8) != 0 && !fin)
-			return this.wsProtocolError("Control frame is fragmented");
+		JfrEvents.frameDecoded(this.channelId, opcode, fin, this.lastFrameLength, this.lastFrameMKey >= 0);
+		if(opcode == WSCommon.WS_OPCODE_CLOSE || opcode == WSCommon.WS_OPCODE_PONG)
+			this.deliverReceivedMessages();
 		byte[] frameData = this.lastFramePayload.toByteArray();
 		if(this.lastFrameMKey >= 0)
 			WebSocketChannel.maskData(frameData, (int) this.lastFrameMKey);
 		if(opcode == WSCommon.WS_OPCODE_TEXT || opcode == WSCommon.WS_OPCODE_BINARY){
-			if(this.lastMessage.size() > 0)
-				return this.wsProtocolError("Unterminated message fragment sequence");
 			this.lastMessageBinary = opcode == WSCommon.WS_OPCODE_BINARY;
 			this.lastMessage.write(frameData);
 			this.messageStarted = true;
 		}else if(opcode == WSCommon.WS_OPCODE_CONTINUATION){
-			if(!this.messageStarted)
-				return this.wsProtocolError("Unexpected continuation frame");
 			this.lastMessage.write(frameData);
 		}else if(opcode == WSCommon.WS_OPCODE_CLOSE){
-			if(!this.closed){
-				if(frameData.length >= 2){
-					int status = (frameData[0] << 8) | frameData[1] & 0xff;
-					this.close(status);
-				}else
-					this.close(-1);
-			}
+			this.closeReceived = true;
+			this.inputClosed = true;
+			if(this.relay != null)
+				this.relay.forwardClose(frameData);
+			if(frameData.length >= 2){
+				int status = (frameData[0] << 8) | frameData[1] & 0xff;
+				this.startClose(status);
+			}else
+				this.startClose(-1);
 		}else if(opcode == WSCommon.WS_OPCODE_PING){
-			this.write(WSCommon.WS_OPCODE_PONG, frameData);
+			if(this.relay != null)
+				this.relay.forwardControl(opcode, frameData); // the pong is sent by the peer of the other channel
+			else if(!this.closing.get())
+				this.write(WSCommon.WS_OPCODE_PONG, frameData);
 		}else if(opcode == WSCommon.WS_OPCODE_PONG){
+			if(this.relay != null)
+				this.relay.forwardControl(opcode, frameData);
 			if(this.onPong != null)
 				this.onPong.accept(frameData);
 		}
 		if((opcode & 0x8) == 0 && fin){
-			if(!this.messageStarted)
-				return this.wsProtocolError("Unexpected FIN frame");
-			if(this.onMessage != null)
-				this.onMessage.accept(this.lastMessage.toByteArray(), this.lastMessageBinary);
+			if(this.spillChannel != null || this.directMessage != null || (this.batching && this.lastMessageBinary && this.onBatch != null))
+				this.deliverReceivedMessages();
+			Object messageEvent = JfrEvents.beginMessage();
+			long messageSize = 0;
+			boolean direct = false;
+			boolean spilled = false;
+			if(this.spillChannel != null){
+				Path path = this.spillPath;
+				long size = this.spillSize;
+				try{
+					this.spillChannel.close();
+				}catch(IOException e){
+					this.releaseSpill();
+					return this.wsFrameError("Failed to write message to disk: " + e, WSCommon.WS_STATUS_UNEXPECTED_ERROR);
+				}
+				this.spillChannel = null;
+				this.spillPath = null;
+				messageSize = size;
+				spilled = true;
+				this.onSpilledMessage.accept(new SpilledMessage(path, size), this.lastMessageBinary);
+			}else if(this.directMessage != null){
+				ByteBuffer buf = this.directMessage;
+				this.directMessage = null;
+				buf.flip();
+				messageSize = buf.limit();
+				direct = true;
+				this.onDirectMessage.accept(new DirectMessage(this.directBufferPool, buf), this.lastMessageBinary);
+			}else if(this.batching && this.lastMessageBinary && this.onBatch != null){
+				byte[] message = this.lastMessage.toByteArray();
+				MessageBatch batch = MessageBatch.parse(message);
+				if(batch == null)
+					return this.wsFrameError("Invalid message batch", WSCommon.WS_STATUS_INVALID_DATA);
+				messageSize = message.length;
+				this.onBatch.accept(batch);
+			}else if(this.onMessages != null){
+				if(this.receivedMessages == null)
+					this.receivedMessages = new ReceivedMessages();
+				messageSize = this.lastMessage.size();
+				this.receivedMessages.add(this.lastMessage, this.lastMessageBinary);
+			}else if(this.onMessage != null){
+				byte[] message = this.lastMessage.toByteArray();
+				messageSize = message.length;
+				this.onMessage.accept(message, this.lastMessageBinary);
+			}
+			JfrEvents.endMessage(messageEvent, this.channelId, messageSize, this.lastMessageBinary, direct, spilled);
 			this.lastMessage.reset();
 			this.messageStarted = false;
 		}
@@ -190,10 +603,10 @@ public class WebSocketChannel {
 		// (because errors there are not really intended to indicate application layer protocol errors), so the close message needs to be written before the error is generated,
 		// but this causes onClose to be called before onError
 		// this provides a way to receive an onError before onClose (if no onError was set here, it will still be passed onto netlib)
+		this.inputClosed = true;
 		if(this.onError != null)
 			this.onError.accept(e);
-		if(!this.closed)
-			this.close(status);
+		this.startClose(status);
 		if(this.onError == null)
 			throw e;
 		return false;
@@ -205,50 +618,297 @@ public class WebSocketChannel {
 
 
 	protected void close0(int status) {
-		this.closed = true;
+		synchronized(this.closing){
+			if(this.closed)
+				return;
+			this.closed = true;
+		}
+		this.closing.set(true);
+		JfrEvents.close(this.channelId, status, this.closeInitiator != null ? this.closeInitiator : CloseEvent.INITIATOR_TRANSPORT);
+		this.releaseDirectMessage();
+		this.releaseSpill();
+		this.batcher.discard();
+		if(this.receivedMessages != null)
+			this.receivedMessages.clear(0);
+		if(this.rateLimiter != null)
+			this.rateLimiter.close();
+		if(this.relay != null)
+			this.relay.sourceClosed(status);
+		ResumeSession session = this.resumeSession;
+		if(session != null)
+			session.detach(this);
+		// the queue discards all remaining messages once it sees that this channel is closed
+		this.outboundQueue.flush();
 		this.connection.close();
 		if(this.onClose != null)
 			this.onClose.accept(status);
 	}
 
 	protected void write(int opcode, byte[] data) {
+		this.checkWritable();
+		if((opcode & 0x8) == 0)
+			this.checkDataFrame(opcode, true);
+		byte[] frame = this.encodeFrame(opcode, data);
+		if((opcode & 0x8) != 0)
+			this.outboundQueue.add(frame);
+		else
+			this.queueData(frame);
+	}
+
+	/**
+	 * Encodes a single frame with the FIN bit set containing the given <b>data</b>.
+	 */
+	byte[] encodeFrame(int opcode, byte[] data) {
+		int mkey = this.client ? newMaskingKey() : 0;
+		byte[] frame = this.newFrame(opcode, true, data.length, mkey);
+		this.frameEncoded(opcode, true, data.length);
+		int index = frame.length - data.length;
+		System.arraycopy(data, 0, frame, index, data.length);
+		if(this.client)
+			maskData(frame, index, frame.length, mkey);
+		return frame;
+	}
+
+	/**
+	 * Encodes a single frame with the FIN bit set containing the given <b>message</b> encoded using the given <b>codec</b>.
+	 */
+	<T> byte[] encodeFrame(MessageCodec<T> codec, T message) {
+		int opcode = codec.isBinary() ? WSCommon.WS_OPCODE_BINARY : WSCommon.WS_OPCODE_TEXT;
+		int mkey = this.client ? newMaskingKey() : 0;
+		byte[] frame;
+		int length = codec.getEncodedSize(message);
+		if(length >= 0){
+			frame = this.newFrame(opcode, true, length, mkey);
+			ByteBuffer buf = ByteBuffer.wrap(frame, frame.length - length, length);
+			codec.encode(message, buf);
+			if(buf.hasRemaining())
+				throw new IllegalStateException("Codec wrote " + (length - buf.remaining()) + " bytes, but the encoded size is " + length);
+		}else{
+			byte[] encodeBuffer = codecBuffers.get();
+			ByteBuffer buf;
+			while(true){
+				buf = ByteBuffer.wrap(encodeBuffer);
+				try{
+					codec.encode(message, buf);
+					break;
+				}catch(BufferOverflowException e){
+					if(encodeBuffer.length >= Integer.MAX_VALUE / 2 - MAX_FRAME_HEADER_SIZE)
+						throw new IllegalArgumentException("Encoded message too large", e);
+					encodeBuffer = new byte[encodeBuffer.length * 2];
+				}
+			}
+			length = buf.position();
+			frame = this.newFrame(opcode, true, length, mkey);
+			System.arraycopy(encodeBuffer, 0, frame, frame.length - length, length);
+			codecBuffers.set(encodeBuffer.length <= CODEC_BUFFER_RETAINED_SIZE ? encodeBuffer : new byte[CODEC_BUFFER_SIZE]);
+		}
+		this.frameEncoded(opcode, true, length);
+		if(this.client)
+			maskData(frame, frame.length - length, frame.length, mkey);
+		return frame;
+	}
+
+	protected void writeFrame(int opcode, boolean fin, ByteBuffer... data) {
+		this.checkWritable();
+		long length = 0;
+		for(ByteBuffer buf : data)
+			length += buf.remaining();
+		if(length > Integer.MAX_VALUE - MAX_FRAME_HEADER_SIZE)
+			throw new IllegalArgumentException("Payload too large: " + length);
+		this.checkDataFrame(opcode, fin);
+		int mkey = this.client ? newMaskingKey() : 0;
+		byte[] frame = this.newFrame(opcode, fin, (int) length, mkey);
+		this.frameEncoded(opcode, fin, length);
+		int start = frame.length - (int) length;
+		int index = start;
+		for(ByteBuffer buf : data){
+			int n = buf.remaining();
+			buf.get(frame, index, n);
+			index += n;
+		}
+		if(this.client)
+			maskData(frame, start, frame.length, mkey);
+		if(opcode == WSCommon.WS_OPCODE_CONTINUATION){
+			FragmentStream stream = fin ? this.outboundFragment.getAndSet(null) : this.outboundFragment.get();
+			if(stream == null) // aborted by a concurrent close
+				throw new IllegalStateException("Connection is closed");
+			stream.add(frame);
+			this.outboundQueue.flush();
+		}else if(!fin){
+			FragmentStream stream = new FragmentStream();
+			stream.add(frame);
+			if(!this.outboundFragment.compareAndSet(null, stream))
+				throw new IllegalStateException("A fragmented message is being sent");
+			this.queueData(stream);
+		}else
+			this.queueData(frame);
+	}
+
+	/**
+	 * Adds a data message to the outbound queue and records it in the resume session of this channel, if there is one. The element is an encoded frame, a
+	 * {@link PreparedFrame} or an {@link OutboundStream}.
+	 */
+	void queueData(Object element) {
+		ResumeSession session = this.resumeSession;
+		if(session != null){
+			session.record(element, this.outboundQueue);
+			this.outboundQueue.flush();
+		}else if(element instanceof PreparedFrame)
+			this.outboundQueue.add(((PreparedFrame) element).getFrame());
+		else
+			this.outboundQueue.add(element);
+	}
+
+	void frameEncoded(int opcode, boolean fin, long length) {
+		JfrEvents.frameEncoded(this.channelId, opcode, fin, length, this.client);
+	}
+
+	void transportWrite(byte[] data) {
+		CaptureJournal journal = this.captureJournal;
+		if(journal != null)
+			journal.append(this.channelId, this.client ? (CaptureJournal.FLAG_CLIENT | CaptureJournal.FLAG_OUTBOUND) : CaptureJournal.FLAG_OUTBOUND, data);
+		this.connection.writeQueue(data);
+	}
+
+	/**
+	 * Called by the outbound queue after the close frame was passed to the connection.
+	 */
+	void closeFrameWritten() {
+		this.close0(this.closeStatus);
+	}
+
+	/**
+	 * Called by the outbound queue if an outbound stream failed between two frames.
+	 */
+	void streamFailed() {
+		this.startClose(WSCommon.WS_STATUS_UNEXPECTED_ERROR);
+	}
+
+	void setRelay(WebSocketRelay.Direction relay) {
+		this.relay = relay;
+	}
+
+	void setResumeSession(ResumeSession resumeSession) {
+		this.resumeSession = resumeSession;
+	}
+
+	void setHandshakeRequest(HTTPMessage handshakeRequest) {
+		this.handshakeRequest = handshakeRequest;
+		this.attributes.putAll(handshakeRequest.getAttributes());
+	}
+
+	private void write(int opcode, byte[] data, int lane) {
+		if(lane < 0 || lane >= this.laneWeights.length)
+			throw new IllegalArgumentException("Invalid lane: " + lane);
+		if(lane == 0 || this.resumeSession != null){
+			// the resume buffer must contain the frames in the order they are sent
+			this.write(opcode, data);
+			return;
+		}
+		this.checkWritable();
+		this.checkDataFrame(opcode, true);
+		this.outboundQueue.add(this.encodeFrame(opcode, data), lane);
+	}
+
+	private void writeQueued(int opcode, Object key, byte[] data) {
+		this.checkWritable();
+		this.checkDataFrame(opcode, true);
+		if(this.resumeSession != null){
+			// the resume buffer must contain the frames as sent
+			this.queueData(this.encodeFrame(opcode, data));
+			return;
+		}
+		this.outboundQueue.addMessage(new QueuedMessage(key, opcode, data), this.outboundPolicy);
+	}
+
+	OutboundQueue getOutboundQueue() {
+		return this.outboundQueue;
+	}
+
+	boolean isClosed() {
+		return this.closed;
+	}
+
+	private CompletableFuture<Void> sendFile0(FileChannel file, long position, long length, boolean closeFile) {
+		this.checkWritable();
+		FileTransfer transfer = new FileTransfer(file, position, length, closeFile);
+		this.queueData(transfer);
+		return transfer.getFuture();
+	}
+
+	private void checkWritable() {
 		if(!this.handshakeComplete)
 			throw new IllegalStateException("Handshake not completed");
-		if(this.closed)
+		if(this.closing.get())
 			throw new IllegalStateException("Connection is closed");
-		int payloadLen = data.length;
-		byte[] payloadLenExt;
-		if(data.length > 0xffff){
-			payloadLenExt = numToArrayBE(payloadLen, 8);
-			payloadLen = 127;
-		}else if(data.length >= 126){
-			payloadLenExt = numToArrayBE(payloadLen, 2);
-			payloadLen = 126;
+	}
+
+	private void checkDataFrame(int opcode, boolean fin) {
+		if(opcode == WSCommon.WS_OPCODE_CONTINUATION){
+			if(this.outboundFragment.get() == null)
+				throw new IllegalStateException("No fragmented message is being sent");
+		}else if(opcode != WSCommon.WS_OPCODE_TEXT && opcode != WSCommon.WS_OPCODE_BINARY)
+			throw new IllegalArgumentException("Invalid data frame opcode: " + opcode);
+	}
+
+	/**
+	 * Allocates a new frame with enough space for a payload of the given length and writes the frame header to it. The payload starts at index
+	 * <code>frame.length - payloadLength</code>.
+	 */
+	byte[] newFrame(int opcode, boolean fin, int payloadLength, int mkey) {
+		byte[] frame = new byte[frameHeaderSize(payloadLength, this.client) + payloadLength];
+		writeFrameHeader(frame, opcode, fin, payloadLength, this.client, mkey);
+		return frame;
+	}
+
+	/**
+	 * Returns the size of the header of a frame with the given payload length.
+	 */
+	static int frameHeaderSize(long payloadLength, boolean masked) {
+		int size;
+		if(payloadLength > 0xffff)
+			size = 10;
+		else if(payloadLength >= 126)
+			size = 4;
+		else
+			size = 2;
+		return masked ? size + 4 : size;
+	}
+
+	/**
+	 * Writes a frame header to the start of the given array and returns its size.
+	 */
+	static int writeFrameHeader(byte[] dst, int opcode, boolean fin, long payloadLength, boolean masked, int mkey) {
+		int lenExtSize;
+		int lenField;
+		if(payloadLength > 0xffff){
+			lenExtSize = 8;
+			lenField = 127;
+		}else if(payloadLength >= 126){
+			lenExtSize = 2;
+			lenField = 126;
 		}else{
-			payloadLenExt = new byte[0];
+			lenExtSize = 0;
+			lenField = (int) payloadLength;
 		}
 		int index = 0;
-		byte[] frame = new byte[2 + payloadLenExt.length + (this.client ? 4 : 0) + data.length];
-		frame[index++] = (byte) (0x80 | (opcode & 0xf));
-		frame[index++] = (byte) (payloadLen | (this.client ? 0x80 : 0));
-		if(payloadLenExt.length > 0){
-			System.arraycopy(payloadLenExt, 0, frame, index, payloadLenExt.length);
-			index += payloadLenExt.length;
-		}
-		if(this.client){
-			int mkey = new Random().nextInt();
-			System.arraycopy(numToArrayBE(mkey, 4), 0, frame, index, 4);
-			index += 4;
-			System.arraycopy(data, 0, frame, index, data.length);
-			maskData(frame, index, frame.length, mkey);
-		}else
-			System.arraycopy(data, 0, frame, index, data.length);
-		this.connection.write(frame);
+		dst[index++] = (byte) ((fin ? 0x80 : 0) | (opcode & 0xf));
+		dst[index++] = (byte) (lenField | (masked ? 0x80 : 0));
+		for(int i = lenExtSize - 1; i >= 0; i--)
+			dst[index++] = (byte) (payloadLength >>> i * 8);
+		if(masked){
+			for(int i = 3; i >= 0; i--)
+				dst[index++] = (byte) (mkey >>> i * 8);
+		}
+		return index;
 	}
 
 
 	/**
-	 * Writes the given <b>data</b> to the WebSocket connection marked as "binary".
+	 * Writes the given <b>data</b> to the WebSocket connection marked as "binary".<br>
+	 * <br>
+	 * All <code>write</code> methods of this class may be called from any thread. The frame is encoded in the calling thread, so <b>data</b> may be reused after this method
+	 * returns. Messages are written in the order the calls were made; if another thread is currently writing to the connection, the frame is written by that thread.
 	 * 
 	 * @param data The binary data
 	 * @throws IllegalStateException If the WebSocket connection is not open ({@link #isOpen()} returns <code>false</code>)
@@ -268,124 +928,760 @@ public class WebSocketChannel {
 	}
 
 	/**
-	 * Sends a ping request with the given data. The peer must then send a "pong" message back with the same data, causing an <code>onPong</code> event.
+	 * Writes the given <b>data</b> to the WebSocket connection marked as "binary", in the given outbound lane.<br>
+	 * <br>
+	 * If the message can not be written immediately, it waits in the given lane, and waiting messages of all lanes are written according to the lane weights set using
+	 * {@link #setLaneWeights(int...)}. Messages in the same lane are written in the order the calls were made, but a message may be written before messages that were written
+	 * earlier in a different lane. Messages written using any other <code>write</code> method are in lane <code>0</code>. WebSocket does not allow the frames of different
+	 * messages to be interleaved, so a message can not be written in the middle of another message: large messages in a low-priority lane should be written as several
+	 * smaller messages to bound the latency of other lanes.<br>
+	 * <br>
+	 * If this channel has a resume session, all messages are written in lane <code>0</code>.
 	 * 
-	 * @param data The data to send with the ping request
-	 * @throws IllegalStateException If the WebSocket connection is not open ({@link #isOpen()} returns <code>false</code>)
+	 * @param data The binary data
+	 * @param lane The lane, between <code>0</code> (inclusive) and the number of lanes (exclusive)
+	 * @throws IllegalArgumentException If <b>lane</b> is out of range
+	 * @throws IllegalStateException    If the WebSocket connection is not open ({@link #isOpen()} returns <code>false</code>)
 	 */
-	public void ping(byte[] data) {
-		this.write(WSCommon.WS_OPCODE_PING, data);
+	public void write(byte[] data, int lane) {
+		this.write(WSCommon.WS_OPCODE_BINARY, data, lane);
 	}
 
 	/**
-	 * Closes the WebSocket connection by sending a "close" frame with the given status code (See <i>RFC 6455, Section 7.4.1</i> for a list of defined status codes).
+	 * Writes the given <b>string</b> to the WebSocket connection marked as "text", in the given outbound lane.
 	 * 
-	 * @param status The status code of the close message. If <code>0</code> or lower, no status code is sent
-	 * @throws IllegalStateException If the WebSocket connection is not open ({@link #isOpen()} returns <code>false</code>)
+	 * @param data The text data
+	 * @param lane The lane, between <code>0</code> (inclusive) and the number of lanes (exclusive)
+	 * @throws IllegalArgumentException If <b>lane</b> is out of range
+	 * @throws IllegalStateException    If the WebSocket connection is not open ({@link #isOpen()} returns <code>false</code>)
+	 * @see #write(byte[], int)
 	 */
-	public void close(int status) {
-		if(status > 0){
-			this.write(WSCommon.WS_OPCODE_CLOSE, new byte[] { (byte) (status >> 8), (byte) status });
-			this.close0(status);
-		}else{
-			this.write(WSCommon.WS_OPCODE_CLOSE, new byte[0]);
-			this.close0(WSCommon.WS_STATUS_NO_STATUS);
-		}
+	public void write(String string, int lane) {
+		this.write(WSCommon.WS_OPCODE_TEXT, string.getBytes(StandardCharsets.UTF_8), lane);
 	}
 
-
 	/**
+	 * Writes the given <b>message</b> to the WebSocket connection, encoded using the given <b>codec</b>.<br>
+	 * <br>
+	 * The message is encoded in the calling thread directly into the frame written to the connection, or, if the codec does not know the encoded size of the message in
+	 * advance, into a buffer that is reused by the calling thread and copied into the frame once.
 	 * 
-	 * @return <code>true</code> if this connection is open and any of the <code>write</code> methods may be used. A connection is open after the handshake has completed and
-	 *         before it is closed
+	 * @param <T>     The type of the message
+	 * @param codec   The codec
+	 * @param message The message
+	 * @throws IllegalStateException If the WebSocket connection is not open ({@link #isOpen()} returns <code>false</code>)
+	 * @see MessageCodec
 	 */
-	public boolean isOpen() {
-		return this.handshakeComplete && !this.closed;
+	public <T> void send(MessageCodec<T> codec, T message) {
+		this.checkWritable();
+		this.checkDataFrame(codec.isBinary() ? WSCommon.WS_OPCODE_BINARY : WSCommon.WS_OPCODE_TEXT, true);
+		this.queueData(this.encodeFrame(codec, message));
 	}
 
-
 	/**
+	 * Writes the given <b>data</b> to the WebSocket connection marked as "binary", as a message that may be replaced or dropped while it waits in the outbound queue because
+	 * the peer does not read fast enough.<br>
+	 * <br>
+	 * Unlike other <code>write</code> methods, the frame is only encoded when it is written to the connection, so <b>data</b> must not be modified after calling this method.
+	 * Until then, if <b>key</b> is not <code>null</code>, writing another message with an equal key replaces the data of this message, keeping its position in the queue.
+	 * Waiting messages are also dropped according to the {@link OutboundPolicy} of this channel. Messages are only queued if the connection is not writable or other
+	 * messages are queued; otherwise, they are written immediately like any other message.<br>
+	 * <br>
+	 * If this channel has a resume session, messages are encoded immediately and never replaced or dropped, so that the resume buffer contains the data as sent.
 	 * 
-	 * @return The underlying <code>SocketConnection</code> passed in the constructor
+	 * @param key  The conflation key, or <code>null</code> if this message should never be replaced
+	 * @param data The binary data
+	 * @throws IllegalStateException If the WebSocket connection is not open ({@link #isOpen()} returns <code>false</code>)
+	 * @see #setOutboundPolicy(OutboundPolicy)
 	 */
-	public SocketConnection getConnection() {
-		return this.connection;
+	public void writeQueued(Object key, byte[] data) {
+		this.writeQueued(WSCommon.WS_OPCODE_BINARY, key, data);
 	}
 
 	/**
+	 * Writes the given <b>string</b> to the WebSocket connection marked as "text", as a message that may be replaced or dropped while it waits in the outbound queue.
 	 * 
-	 * @return The resource-name of this WebSocket connection represented as a <code>URI</code> object
+	 * @param key  The conflation key, or <code>null</code> if this message should never be replaced
+	 * @param data The text data
+	 * @throws IllegalStateException If the WebSocket connection is not open ({@link #isOpen()} returns <code>false</code>)
+	 * @see #writeQueued(Object, byte[])
 	 */
-	public URI getResource() {
-		return this.resource;
+	public void writeQueued(Object key, String string) {
+		this.writeQueued(WSCommon.WS_OPCODE_TEXT, key, string.getBytes(StandardCharsets.UTF_8));
 	}
 
-
 	/**
+	 * Writes the given <b>data</b> segments to the WebSocket connection as a single message marked as "binary".<br>
+	 * <br>
+	 * The segments are copied into the frame in order. The position of each buffer is advanced by the number of bytes written, which is all remaining bytes. Both heap and
+	 * direct buffers are supported.
 	 * 
-	 * @return <code>true</code> if the handshake is complete
+	 * @param data The binary data segments
+	 * @throws IllegalStateException If the WebSocket connection is not open ({@link #isOpen()} returns <code>false</code>)
 	 */
-	public boolean isHandshakeComplete() {
-		return this.handshakeComplete;
+	public void write(ByteBuffer... data) {
+		this.writeFrame(WSCommon.WS_OPCODE_BINARY, true, data);
 	}
 
 	/**
+	 * Writes the given <b>data</b> segments to the WebSocket connection as a single message marked as "text". The segments must together contain valid UTF-8 encoded text.
 	 * 
-	 * @return The negotiated protocol name of this WebSocket connection (value of the <code>Sec-WebSocket-Protocol</code> header in the server response), an empty string if
-	 *         no negotiation occurred or <code>null</code> if the handshake has not yet completed
+	 * @param data The UTF-8 encoded text data segments
+	 * @throws IllegalStateException If the WebSocket connection is not open ({@link #isOpen()} returns <code>false</code>)
+	 * @see #write(ByteBuffer...)
 	 */
-	public String getWsProtocol() {
-		return this.wsProtocol;
+	public void writeText(ByteBuffer... data) {
+		this.writeFrame(WSCommon.WS_OPCODE_TEXT, true, data);
 	}
 
-
 	/**
-	 * Sets a callback that is called when a full message is received from the peer.<br>
+	 * Adds the given <b>data</b> to the pending {@link MessageBatch}, if the batching subprotocol {@value MessageBatch#PROTOCOL} was negotiated for this channel, otherwise
+	 * writes it as a single "binary" message like {@link #write(byte[])}.<br>
 	 * <br>
-	 * The first argument of the callback is the raw data, the second argument specifies if the message was received as a WebSocket "text" (<code>false</code>) or "binary"
-	 * (<code>true</code>) message.
+	 * The pending batch is written as a single "binary" message when adding another message would exceed the batch size (see {@link #setBatchSize(int)}), when the batch
+	 * delay elapsed after the first message was added (see {@link #setBatchDelay(long)}), when {@link #flushBatch()} is called or before this channel is closed using
+	 * {@link #close(int)}. Messages written using other <code>write</code> methods are not ordered relative to batched messages; call <code>flushBatch()</code> first if
+	 * order matters.<br>
+	 * <br>
+	 * The data is copied into the batch, so <b>data</b> may be reused after this method returns.
 	 * 
-	 * @param onMessage The callback
+	 * @param data The binary data
+	 * @throws IllegalStateException If the WebSocket connection is not open ({@link #isOpen()} returns <code>false</code>)
+	 * @see #setOnBatch(Consumer)
 	 */
-	public void setOnMessage(BiConsumer<byte[], Boolean> onMessage) {
-		this.onMessage = onMessage;
+	public void writeBatched(byte[] data) {
+		if(!this.batching){
+			this.write(data);
+			return;
+		}
+		this.checkWritable();
+		this.batcher.add(data);
 	}
 
 	/**
-	 * Sets a callback that is called when a WebSocket "pong" message is received from the peer, usually after a {@link #ping(byte[])} request.
+	 * Writes the pending {@link MessageBatch} immediately, if there is one.
 	 * 
-	 * @param onPong The callback
+	 * @throws IllegalStateException If the WebSocket connection is not open ({@link #isOpen()} returns <code>false</code>)
+	 * @see #writeBatched(byte[])
 	 */
-	public void setOnPong(Consumer<byte[]> onPong) {
-		this.onPong = onPong;
+	public void flushBatch() {
+		this.checkWritable();
+		this.batcher.flush();
 	}
 
 	/**
-	 * Sets a callback that is called when a WebSocket protocol error occurs. This method also sets the <code>onError</code> handler of the underlying
-	 * <code>SocketConnection</code> using {@link SocketConnection#setOnError(Consumer)}.
+	 * Writes the given prepared message to the WebSocket connection.<br>
+	 * <br>
+	 * If this is the server side of the connection, the encoded frame is written without copying it, so the same <code>PreparedFrame</code> can be written to many channels
+	 * at the cost of encoding it once. Client-side channels must mask the payload and copy it into a new frame.
 	 * 
-	 * @param onError The callback
+	 * @param frame The message
+	 * @throws IllegalStateException If the WebSocket connection is not open ({@link #isOpen()} returns <code>false</code>)
 	 */
-	public void setOnError(Consumer<Throwable> onError) {
-		this.onError = onError;
-		this.connection.setOnError(onError);
+	public void write(PreparedFrame frame) {
+		this.checkWritable();
+		if(!this.client){
+			this.frameEncoded(frame.getOpcode(), true, frame.getPayloadLength());
+			this.queueData(frame);
+		}else
+			this.write(frame.getOpcode(), Arrays.copyOfRange(frame.getFrame(), frame.getPayloadOffset(), frame.getEncodedLength()));
 	}
 
 	/**
-	 * Sets a callback that is called when the WebSocket connection closes (a "close" frame is sent or received or the underlying connection closed).<br>
+	 * Writes a single frame of a fragmented message containing the given <b>data</b> segments.<br>
 	 * <br>
-	 * The first argument of the callback is the WebSocket status code. The status code is <code>-1</code> if the connection closes before the WebSocket handshake has
-	 * completed.
+	 * A fragmented message is started with a frame with an <b>opcode</b> of {@link WSCommon#WS_OPCODE_TEXT} or {@link WSCommon#WS_OPCODE_BINARY}, followed by any number of
+	 * frames with opcode {@link WSCommon#WS_OPCODE_CONTINUATION}. The last frame of the message must have <b>fin</b> set to <code>true</code>. Only one fragmented message
+	 * may be written at a time. Other data messages written until the fragmented message is complete, by any thread, are queued and sent after it.
 	 * 
-	 * @param onClose The callback
+	 * @param opcode The frame opcode
+	 * @param fin    Whether this is the last frame of the message
+	 * @param data   The data segments
+	 * @throws IllegalArgumentException If the <b>opcode</b> is not one of the opcodes listed above
+	 * @throws IllegalStateException    If the WebSocket connection is not open ({@link #isOpen()} returns <code>false</code>), or the <b>opcode</b> does not match the
+	 *                                  fragmentation state (a message is started while another fragmented message is being sent, or a continuation frame is written while
+	 *                                  no fragmented message is being sent)
+	 * @see #write(ByteBuffer...)
 	 */
-	public void setOnClose(Consumer<Integer> onClose) {
-		this.onClose = onClose;
+	public void writeFragment(int opcode, boolean fin, ByteBuffer... data) {
+		this.writeFrame(opcode, fin, data);
 	}
 
-
 	/**
-	 * A call to this function of the form <code>maskData(data, mkey)</code> is exactly equivalent to a call of the form <code>{@link #maskData(byte[], int, int, int)
+	 * Sends the contents of the file at the given <b>path</b> as a single binary message.<br>
+	 * <br>
+	 * The file is sent as a fragmented message with frames of at most the fragment size of this channel (see {@link #setFragmentSize(int)}), which are read from the file
+	 * only when the underlying connection is writable. The memory used for sending the file therefore does not depend on the size of the file. Other data messages written
+	 * while the file is being sent are queued and sent after the file; control frames (for example "ping" requests) may be sent between the frames of the file.
+	 * 
+	 * @param path The path of the file
+	 * @return A future that completes when the last frame of the file was passed to the underlying connection, or completes exceptionally if the file could not be read or
+	 *         the connection closed before that
+	 * @throws IOException           If the file could not be opened
+	 * @throws IllegalStateException If the WebSocket connection is not open ({@link #isOpen()} returns <code>false</code>)
+	 */
+	public CompletableFuture<Void> sendFile(Path path) throws IOException {
+		FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+		try{
+			return this.sendFile0(file, 0, file.size(), true);
+		}catch(IOException | RuntimeException e){
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Sends <b>length</b> bytes of the given <b>file</b>, starting at <b>position</b>, as a single binary message. The file is not closed by this channel.
+	 * 
+	 * @param file     The file
+	 * @param position The position in the file to start reading at
+	 * @param length   The number of bytes to send
+	 * @return A future that completes when the last frame was passed to the underlying connection
+	 * @throws IllegalStateException If the WebSocket connection is not open ({@link #isOpen()} returns <code>false</code>)
+	 * @see #sendFile(Path)
+	 */
+	public CompletableFuture<Void> sendFile(FileChannel file, long position, long length) {
+		return this.sendFile0(file, position, length, false);
+	}
+
+	/**
+	 * Sends a ping request with the given data. The peer must then send a "pong" message back with the same data, causing an <code>onPong</code> event.
+	 * 
+	 * @param data The data to send with the ping request
+	 * @throws IllegalStateException If the WebSocket connection is not open ({@link #isOpen()} returns <code>false</code>)
+	 */
+	public void ping(byte[] data) {
+		this.write(WSCommon.WS_OPCODE_PING, data);
+	}
+
+	/**
+	 * Closes the WebSocket connection by sending a "close" frame with the given status code (See <i>RFC 6455, Section 7.4.1</i> for a list of defined status codes).<br>
+	 * <br>
+	 * The close frame is written after all data messages that were written before calling this method, including messages that are still queued because the peer is not
+	 * reading fast enough. If a fragmented message written using {@link #writeFragment(int, boolean, ByteBuffer...)} is not complete, the frames of it written so far are
+	 * sent and the rest of the message is abandoned, so the close frame follows an unterminated message. After calling this method, {@link #isOpen()} returns
+	 * <code>false</code> and no more messages may be written.
+	 * 
+	 * @param status The status code of the close message. If <code>0</code> or lower, no status code is sent
+	 * @throws IllegalStateException If the WebSocket connection is not open ({@link #isOpen()} returns <code>false</code>)
+	 */
+	public void close(int status) {
+		if(!this.handshakeComplete)
+			throw new IllegalStateException("Handshake not completed");
+		if(this.batching && !this.closing.get())
+			this.batcher.flush();
+		if(!this.startClose(status))
+			throw new IllegalStateException("Connection is closed");
+	}
+
+	/**
+	 * Queues a close frame with the given status code, unless this channel is already closing. The channel is closed after the close frame was written.
+	 */
+	private boolean startClose(int status) {
+		if(status > 0)
+			return this.startClose(status, new byte[] { (byte) (status >> 8), (byte) status });
+		else
+			return this.startClose(WSCommon.WS_STATUS_NO_STATUS, new byte[0]);
+	}
+
+	/**
+	 * Queues a close frame with the given payload, unless this channel is already closing. <b>status</b> is passed to the <code>onClose</code> callback.
+	 */
+	boolean startClose(int status, byte[] payload) {
+		if(!this.closing.compareAndSet(false, true))
+			return false;
+		this.closeStatus = status;
+		this.closeInitiator = this.closeReceived ? CloseEvent.INITIATOR_REMOTE : CloseEvent.INITIATOR_LOCAL;
+		int mkey = this.client ? newMaskingKey() : 0;
+		byte[] frame = this.newFrame(WSCommon.WS_OPCODE_CLOSE, true, payload.length, mkey);
+		this.frameEncoded(WSCommon.WS_OPCODE_CLOSE, true, payload.length);
+		System.arraycopy(payload, 0, frame, frame.length - payload.length, payload.length);
+		if(this.client)
+			maskData(frame, frame.length - payload.length, frame.length, mkey);
+		// the application can not write the rest of an unfinished fragmented message anymore, so it must not hold back the close frame
+		FragmentStream fragment = this.outboundFragment.getAndSet(null);
+		if(fragment != null)
+			fragment.abort();
+		this.outboundQueue.add(frame);
+		return true;
+	}
+
+
+	/**
+	 * 
+	 * @return <code>true</code> if this connection is open and any of the <code>write</code> methods may be used. A connection is open after the handshake has completed and
+	 *         before it is closed
+	 */
+	public boolean isOpen() {
+		return this.handshakeComplete && !this.closing.get();
+	}
+
+
+	/**
+	 * 
+	 * @return A number identifying this channel, unique among all channels created in this JVM
+	 */
+	public long getChannelId() {
+		return this.channelId;
+	}
+
+	/**
+	 * Pauses or resumes reading from the connection for the given <b>reason</b>. Reading is paused while at least one reason is set.
+	 */
+	synchronized void setReadBlocked(int reason, boolean block) {
+		int reasons = block ? (this.readBlockReasons | reason) : (this.readBlockReasons & ~reason);
+		if((reasons != 0) != (this.readBlockReasons != 0))
+			this.connection.setReadBlock(reasons != 0);
+		this.readBlockReasons = reasons;
+	}
+
+	/**
+	 * 
+	 * @return The underlying <code>SocketConnection</code> passed in the constructor
+	 */
+	public SocketConnection getConnection() {
+		return this.connection;
+	}
+
+	/**
+	 * 
+	 * @return The HTTP request that opened this WebSocket connection, or <code>null</code> if this is the client side of the connection
+	 */
+	public HTTPMessage getHandshakeRequest() {
+		return this.handshakeRequest;
+	}
+
+	/**
+	 * Returns the value of an application-defined attribute of this channel. On the server side, the attributes of the handshake request set by the <code>onRequest</code>
+	 * or <code>onRequestAsync</code> callbacks of the {@link WebSocketServer} using {@link HTTPMessage#setAttribute(String, Object)} are copied to the channel.
+	 * 
+	 * @param key The name of the attribute
+	 * @return The value of the attribute, or <code>null</code> if it is not set
+	 */
+	public Object getAttribute(String key) {
+		return this.attributes.get(key);
+	}
+
+	/**
+	 * Sets the value of an application-defined attribute of this channel.
+	 * 
+	 * @param key   The name of the attribute
+	 * @param value The value, or <code>null</code> to remove the attribute
+	 * @see #getAttribute(String)
+	 */
+	public void setAttribute(String key, Object value) {
+		if(value != null)
+			this.attributes.put(key, value);
+		else
+			this.attributes.remove(key);
+	}
+
+	/**
+	 * 
+	 * @return The resume session this channel is attached to, or <code>null</code>
+	 * @see ResumeManager
+	 */
+	public ResumeSession getResumeSession() {
+		return this.resumeSession;
+	}
+
+	/**
+	 * 
+	 * @return The resource-name of this WebSocket connection represented as a <code>URI</code> object
+	 */
+	public URI getResource() {
+		return this.resource;
+	}
+
+
+	/**
+	 * 
+	 * @return <code>true</code> if this is the client side of the WebSocket connection
+	 */
+	public boolean isClient() {
+		return this.client;
+	}
+
+	/**
+	 * 
+	 * @return <code>true</code> if the handshake is complete
+	 */
+	public boolean isHandshakeComplete() {
+		return this.handshakeComplete;
+	}
+
+	/**
+	 * 
+	 * @return The negotiated protocol name of this WebSocket connection (value of the <code>Sec-WebSocket-Protocol</code> header in the server response), an empty string if
+	 *         no negotiation occurred or <code>null</code> if the handshake has not yet completed
+	 */
+	public String getWsProtocol() {
+		return this.wsProtocol;
+	}
+
+
+	/**
+	 * Sets the maximum payload size of the frames of messages this channel fragments itself, for example files sent using {@link #sendFile(Path)}. The default is set using
+	 * the <code>xyz.warp03.netutil.websocket.fragmentSize</code> system property (default 64KiB).
+	 * 
+	 * @param fragmentSize The maximum frame payload size in bytes
+	 */
+	public void setFragmentSize(int fragmentSize) {
+		if(fragmentSize <= 0)
+			throw new IllegalArgumentException("fragmentSize must be positive");
+		this.fragmentSize = fragmentSize;
+	}
+
+	/**
+	 * Sets the number and weights of the outbound lanes of this channel (see {@link #write(byte[], int)}). The number of lanes is the number of given weights.<br>
+	 * <br>
+	 * When messages are waiting in several lanes, each lane may write up to its weight multiplied by the fragment size of this channel (see {@link #setFragmentSize(int)}) in
+	 * bytes before the next lane is served, in order of the lane index. For example, with weights <code>4, 1</code>, lane <code>0</code> gets about four fifths of the
+	 * bandwidth while both lanes have waiting messages, and lane <code>1</code> gets the rest. By default, there is a single lane.
+	 * 
+	 * @param weights The weight of each lane
+	 * @throws IllegalArgumentException If no weights are given or a weight is not positive
+	 */
+	public void setLaneWeights(int... weights) {
+		checkLaneWeights(weights);
+		this.laneWeights = weights.clone();
+	}
+
+	/**
+	 * 
+	 * @return The number of outbound lanes of this channel
+	 * @see #setLaneWeights(int...)
+	 */
+	public int getLaneCount() {
+		return this.laneWeights.length;
+	}
+
+	int[] getLaneWeights() {
+		return this.laneWeights;
+	}
+
+	static void checkLaneWeights(int[] weights) {
+		if(weights.length == 0)
+			throw new IllegalArgumentException("At least one lane is required");
+		for(int weight : weights){
+			if(weight <= 0)
+				throw new IllegalArgumentException("Lane weights must be positive");
+		}
+	}
+
+	/**
+	 * 
+	 * @return The maximum payload size of the frames of messages this channel fragments itself
+	 * @see #setFragmentSize(int)
+	 */
+	public int getFragmentSize() {
+		return this.fragmentSize;
+	}
+
+
+	/**
+	 * Sets the journal that all data received and sent by this channel after the WebSocket handshake is appended to.<br>
+	 * <br>
+	 * Inbound data is appended as received from the underlying connection, outbound data is appended as written to the connection, which is one complete frame per record.
+	 * Every byte sent and received is copied into the journal, so under heavy load, the throughput of capturing channels is limited by the write bandwidth of the storage
+	 * device the journal is stored on. The cost for a given workload can be measured with {@link xyz.warp03.netutil.websocket.load.CaptureBenchmark}.
+	 * 
+	 * @param captureJournal The journal, or <code>null</code> to stop capturing
+	 * @see CaptureJournal
+	 */
+	public void setCaptureJournal(CaptureJournal captureJournal) {
+		this.captureJournal = captureJournal;
+	}
+
+
+	/**
+	 * Sets a callback that is called when a full message is received from the peer.<br>
+	 * <br>
+	 * The first argument of the callback is the raw data, the second argument specifies if the message was received as a WebSocket "text" (<code>false</code>) or "binary"
+	 * (<code>true</code>) message.
+	 * 
+	 * @param onMessage The callback
+	 */
+	public void setOnMessage(BiConsumer<byte[], Boolean> onMessage) {
+		this.onMessage = onMessage;
+	}
+
+	/**
+	 * Sets the <code>onMessage</code> callback to a callback that decodes every received message using the given <b>codec</b> and passes it to the given callback.<br>
+	 * <br>
+	 * The payload is passed to the codec without copying it. If the codec rejects a message with an {@link IllegalArgumentException}, the exception is passed to the
+	 * <code>onError</code> callback, if set, and this channel is closed with status {@link WSCommon#WS_STATUS_INVALID_DATA}.
+	 * 
+	 * @param <T>       The type of messages
+	 * @param codec     The codec
+	 * @param onMessage The callback
+	 * @see #setOnMessage(BiConsumer)
+	 */
+	public <T> void setOnMessage(MessageCodec<T> codec, Consumer<T> onMessage) {
+		Objects.requireNonNull(codec);
+		Objects.requireNonNull(onMessage);
+		this.onMessage = (data, binary) -> {
+			T message;
+			try{
+				message = codec.decode(ByteBuffer.wrap(data));
+			}catch(IllegalArgumentException e){
+				if(this.onError != null)
+					this.onError.accept(e);
+				this.startClose(WSCommon.WS_STATUS_INVALID_DATA);
+				return;
+			}
+			onMessage.accept(message);
+		};
+	}
+
+	/**
+	 * Sets a callback that is called instead of the <code>onMessage</code> callback with all complete messages decoded from the data received in a single read from the
+	 * peer.<br>
+	 * <br>
+	 * Instead of calling a callback for each message, the messages are collected in a {@link ReceivedMessages}, which is passed to this callback once all received data was
+	 * decoded. Messages received in a single frame are decoded directly into a buffer that is reused for each read, so no array is allocated for them. The
+	 * <code>ReceivedMessages</code> and its data are only valid until the callback returns. If a control frame, or a message delivered to a different callback, is received
+	 * after some messages in the same read, the messages received before it are passed to this callback first, so the order of messages is retained.<br>
+	 * <br>
+	 * Messages delivered to the <code>onSpilledMessage</code>, <code>onDirectMessage</code> or <code>onBatch</code> callbacks are not passed to this callback. This callback
+	 * should be set before the handshake completes.
+	 * 
+	 * @param onMessages The callback
+	 */
+	public void setOnMessages(Consumer<ReceivedMessages> onMessages) {
+		this.onMessages = onMessages;
+	}
+
+	/**
+	 * Sets a callback that is called instead of the <code>onMessage</code> callback when a full message is received from the peer whose size is at least the direct message
+	 * threshold (see {@link #setDirectMessageThreshold(int)}).<br>
+	 * <br>
+	 * Once the size of a message being received reaches the threshold, the message and all following frames of it are reassembled in direct memory allocated from the
+	 * {@link DirectBufferPool} of this channel, instead of in heap memory. The first argument of the callback is the message, which must be released by the application using
+	 * {@link DirectMessage#release()}, the second argument specifies if the message was received as a WebSocket "text" (<code>false</code>) or "binary" (<code>true</code>)
+	 * message. If not enough direct memory is available in the pool or the message exceeds the maximum direct message size (see {@link #setMaxDirectMessageSize(int)}), the
+	 * connection is closed with status {@link WSCommon#WS_STATUS_MSG_TOO_BIG}.<br>
+	 * <br>
+	 * If this callback is not set, all messages are delivered to the <code>onMessage</code> callback.
+	 * 
+	 * @param onDirectMessage The callback
+	 */
+	public void setOnDirectMessage(BiConsumer<DirectMessage, Boolean> onDirectMessage) {
+		this.onDirectMessage = onDirectMessage;
+	}
+
+	/**
+	 * Sets a callback that is called instead of the <code>onMessage</code> and <code>onDirectMessage</code> callbacks when a full message is received from the peer whose size
+	 * is at least the spill threshold (see {@link #setSpillThreshold(long)}).<br>
+	 * <br>
+	 * Once the size of a message being received reaches the threshold, the data received so far and all following frames of the message are written to a temporary file
+	 * instead of being kept in memory, so the memory used for receiving a message is bounded by the threshold, regardless of the size of the message. The first argument of the
+	 * callback is the message, which must be released by the application using {@link SpilledMessage#release()} to delete the file, the second argument specifies if the
+	 * message was received as a WebSocket "text" (<code>false</code>) or "binary" (<code>true</code>) message. If the channel closes while a message is being received, the
+	 * file is deleted. If writing the file fails, the connection is closed with status {@link WSCommon#WS_STATUS_UNEXPECTED_ERROR}.<br>
+	 * <br>
+	 * If this callback is not set, messages are not written to disk.
+	 * 
+	 * @param onSpilledMessage The callback
+	 */
+	public void setOnSpilledMessage(BiConsumer<SpilledMessage, Boolean> onSpilledMessage) {
+		this.onSpilledMessage = onSpilledMessage;
+	}
+
+	/**
+	 * Sets a callback that is called instead of the <code>onMessage</code> callback when a "binary" message is received from the peer and the batching subprotocol
+	 * {@value MessageBatch#PROTOCOL} was negotiated for this channel. The message is passed to the callback as a {@link MessageBatch}, which reads the messages contained in
+	 * it without copying them. If the message is not a valid batch, the channel is closed with status {@link WSCommon#WS_STATUS_INVALID_DATA}.<br>
+	 * <br>
+	 * Batches whose size is at least the spill or direct message threshold are still delivered to the <code>onSpilledMessage</code> or <code>onDirectMessage</code> callback,
+	 * if set. "Text" messages are always delivered to the <code>onMessage</code> callback.
+	 * 
+	 * @param onBatch The callback
+	 * @see WebSocketClient#setBatchingRequested(boolean)
+	 * @see WebSocketServer#setBatchingEnabled(boolean)
+	 */
+	public void setOnBatch(Consumer<MessageBatch> onBatch) {
+		this.onBatch = onBatch;
+	}
+
+	/**
+	 * Sets the maximum size of a batch written by {@link #writeBatched(byte[])}. A single message larger than this size is written as a batch containing only that message.
+	 * The default is set using the <code>xyz.warp03.netutil.websocket.batchSize</code> system property (default 16KiB).
+	 * 
+	 * @param batchSize The maximum batch size in bytes
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batcher.setBatchSize(batchSize);
+	}
+
+	/**
+	 * Sets the maximum time a message written by {@link #writeBatched(byte[])} waits in the pending batch before the batch is written. The default is set using the
+	 * <code>xyz.warp03.netutil.websocket.batchDelay</code> system property (default 5ms).
+	 * 
+	 * @param batchDelay The delay in milliseconds, or <code>0</code> to only write a batch when it is full or {@link #flushBatch()} is called
+	 */
+	public void setBatchDelay(long batchDelay) {
+		this.batcher.setBatchDelay(batchDelay);
+	}
+
+	/**
+	 * 
+	 * @return <code>true</code> if the batching subprotocol {@value MessageBatch#PROTOCOL} was negotiated for this channel
+	 */
+	public boolean isBatching() {
+		return this.batching;
+	}
+
+	/**
+	 * Sets the limits on the rate of frames received from the peer. Channels created by a {@link WebSocketServer} use the quota of the server by default (see
+	 * {@link WebSocketServer#setRateQuota(RateQuota)}).
+	 * 
+	 * @param rateQuota The quota, or <code>null</code> to remove all limits
+	 * @see RateQuota
+	 */
+	public void setRateQuota(RateQuota rateQuota) {
+		if(this.rateLimiter != null)
+			this.rateLimiter.close();
+		this.rateLimiter = rateQuota != null ? new RateLimiter(rateQuota, this) : null;
+	}
+
+	/**
+	 * 
+	 * @return The quota set using {@link #setRateQuota(RateQuota)}, or <code>null</code> if there are no limits
+	 */
+	public RateQuota getRateQuota() {
+		RateLimiter limiter = this.rateLimiter;
+		return limiter != null ? limiter.getQuota() : null;
+	}
+
+	/**
+	 * Sets the limits on messages written using {@link #writeQueued(Object, byte[])} that wait in the outbound queue of this channel.
+	 * 
+	 * @param outboundPolicy The policy, or <code>null</code> to remove all limits
+	 * @see OutboundPolicy
+	 */
+	public void setOutboundPolicy(OutboundPolicy outboundPolicy) {
+		this.outboundPolicy = outboundPolicy;
+	}
+
+	/**
+	 * 
+	 * @return The outbound policy of this channel, or <code>null</code>
+	 */
+	public OutboundPolicy getOutboundPolicy() {
+		return this.outboundPolicy;
+	}
+
+	/**
+	 * Sets the minimum size of a message that is delivered to the <code>onSpilledMessage</code> callback. The default is set using the
+	 * <code>xyz.warp03.netutil.websocket.spillThreshold</code> system property (default 64MiB).
+	 * 
+	 * @param spillThreshold The threshold in bytes. If <code>0</code>, no messages are written to disk
+	 * @see #setOnSpilledMessage(BiConsumer)
+	 */
+	public void setSpillThreshold(long spillThreshold) {
+		if(spillThreshold < 0)
+			throw new IllegalArgumentException("spillThreshold must not be negative");
+		this.spillThreshold = spillThreshold;
+	}
+
+	/**
+	 * Sets the directory temporary files for messages delivered to the <code>onSpilledMessage</code> callback are created in. The default is set using the
+	 * <code>xyz.warp03.netutil.websocket.spillDirectory</code> system property, or the default temporary-file directory if it is not set.
+	 * 
+	 * @param spillDirectory The directory, or <code>null</code> to use the default temporary-file directory
+	 * @see #setOnSpilledMessage(BiConsumer)
+	 */
+	public void setSpillDirectory(Path spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+
+	/**
+	 * Sets the minimum size of a message that is delivered to the <code>onDirectMessage</code> callback. The default is set using the
+	 * <code>xyz.warp03.netutil.websocket.directMessageThreshold</code> system property (default 1MiB).
+	 * 
+	 * @param directMessageThreshold The threshold in bytes. If <code>0</code>, all messages are delivered to the <code>onMessage</code> callback
+	 * @see #setOnDirectMessage(BiConsumer)
+	 */
+	public void setDirectMessageThreshold(int directMessageThreshold) {
+		if(directMessageThreshold < 0)
+			throw new IllegalArgumentException("directMessageThreshold must not be negative");
+		this.directMessageThreshold = directMessageThreshold;
+	}
+
+	/**
+	 * Sets the maximum size of a message that is delivered to the <code>onDirectMessage</code> callback. This limits the amount of direct memory of the pool a single channel
+	 * may hold for receiving a message. If a message exceeds this size, the connection is closed with status {@link WSCommon#WS_STATUS_MSG_TOO_BIG}. The default is set using
+	 * the <code>xyz.warp03.netutil.websocket.maxDirectMessageSize</code> system property (default 64MiB).
+	 * 
+	 * @param maxDirectMessageSize The maximum size in bytes
+	 * @see #setOnDirectMessage(BiConsumer)
+	 */
+	public void setMaxDirectMessageSize(int maxDirectMessageSize) {
+		if(maxDirectMessageSize <= 0)
+			throw new IllegalArgumentException("maxDirectMessageSize must be positive");
+		this.maxDirectMessageSize = maxDirectMessageSize;
+	}
+
+	/**
+	 * Sets the pool direct memory for messages delivered to the <code>onDirectMessage</code> callback is allocated from. The default is
+	 * {@link DirectBufferPool#getDefault()}.
+	 * 
+	 * @param directBufferPool The pool
+	 * @see #setOnDirectMessage(BiConsumer)
+	 */
+	public void setDirectBufferPool(DirectBufferPool directBufferPool) {
+		if(this.directMessage != null)
+			throw new IllegalStateException("A direct message is being received");
+		this.directBufferPool = Objects.requireNonNull(directBufferPool);
+	}
+
+	/**
+	 * Sets the pool slabs for buffering received data not yet decoded are acquired from. The default is {@link SlabPool#getDefault()}.
+	 * 
+	 * @param slabPool The pool
+	 */
+	public void setSlabPool(SlabPool slabPool) {
+		if(this.frameBuffer.remaining() > 0)
+			throw new IllegalStateException("Received data is being buffered");
+		this.frameBuffer = new SlabBuffer(Objects.requireNonNull(slabPool));
+	}
+
+	/**
+	 * Sets a callback that is called when a WebSocket "pong" message is received from the peer, usually after a {@link #ping(byte[])} request.
+	 * 
+	 * @param onPong The callback
+	 */
+	public void setOnPong(Consumer<byte[]> onPong) {
+		this.onPong = onPong;
+	}
+
+	/**
+	 * Sets a callback that is called when a WebSocket protocol error occurs. This method also sets the <code>onError</code> handler of the underlying
+	 * <code>SocketConnection</code> using {@link SocketConnection#setOnError(Consumer)}.
+	 * 
+	 * @param onError The callback
+	 */
+	public void setOnError(Consumer<Throwable> onError) {
+		this.onError = onError;
+		this.connection.setOnError(onError);
+	}
+
+	/**
+	 * Sets a callback that is called when the WebSocket connection closes (a "close" frame is sent or received or the underlying connection closed).<br>
+	 * <br>
+	 * The first argument of the callback is the WebSocket status code. The status code is <code>-1</code> if the connection closes before the WebSocket handshake has
+	 * completed.
+	 * 
+	 * @param onClose The callback
+	 */
+	public void setOnClose(Consumer<Integer> onClose) {
+		this.onClose = onClose;
+	}
+
+
+	/**
+	 * A call to this function of the form <code>maskData(data, mkey)</code> is exactly equivalent to a call of the form <code>{@link #maskData(byte[], int, int, int)
 	 * maskData}(data, 0, data.length, mkey)</code>.
 	 * 
 	 * @param data The data to be masked
@@ -414,6 +1710,34 @@ public class WebSocketChannel {
 		}
 	}
 
+	/**
+	 * Masks the bytes between <b>start</b> (inclusive) and <b>end</b> (exclusive) in the given buffer with the given masking key (<b>mkey</b>). This method behaves like
+	 * {@link #maskData(byte[], int, int, int)} and does not change the position or limit of the buffer.
+	 * 
+	 * @param data  The data to be masked
+	 * @param start At which index to start masking
+	 * @param end   At which index to stop masking
+	 * @param mkey  The masking key
+	 */
+	public static void maskData(ByteBuffer data, int start, int end, int mkey) {
+		int i = start;
+		if(data.order() == ByteOrder.BIG_ENDIAN){
+			long mkeyL = ((long) mkey << 32) | (mkey & 0xffffffffL);
+			for(; i + 8 <= end; i += 8)
+				data.putLong(i, data.getLong(i) ^ mkeyL);
+		}
+		int mkeyI = 0;
+		for(; i < end; i++){
+			data.put(i, (byte) (data.get(i) ^ ((mkey >>> (3 - mkeyI++) * 8) & 0xff)));
+			if(mkeyI == 4)
+				mkeyI = 0;
+		}
+	}
+
+	static int newMaskingKey() {
+		return ThreadLocalRandom.current().nextInt();
+	}
+
 	public static byte[] numToArrayBE(long num, int len) {
 		byte[] a = new byte[len];
 		for(int i = 0; i < len; i++){
@@ -421,4 +1745,121 @@ public class WebSocketChannel {
 		}
 		return a;
 	}
+
+
+	/**
+	 * Receives the payload of a single frame. One sink is selected in {@link WebSocketChannel#beginFrame()} for each frame.
+	 */
+	private static interface FrameSink {
+
+		/**
+		 * Reads the next <b>length</b> bytes of the payload from the frame buffer.
+		 *
+		 * @return <code>false</code> if decoding must stop because the frame is invalid
+		 */
+		public boolean payload(int length) throws IOException;
+
+		/**
+		 * Called once the entire payload was read.
+		 *
+		 * @return <code>false</code> if decoding must stop because the frame is invalid
+		 */
+		public boolean end() throws IOException;
+	}
+
+	// the payload is collected on the heap and handled as a whole at the end of the frame
+	private class HeapSink implements FrameSink {
+
+		@Override
+		public boolean payload(int length) throws IOException {
+			WebSocketChannel.this.frameBuffer.readIntoOutputStream(WebSocketChannel.this.lastFramePayload, length);
+			return true;
+		}
+
+		@Override
+		public boolean end() throws IOException {
+			return WebSocketChannel.this.handleFrame();
+		}
+	}
+
+	// a complete message read directly into the space reserved in the ReceivedMessages
+	private class ReceivedSink implements FrameSink {
+
+		@Override
+		public boolean payload(int length) {
+			ReceivedMessages messages = WebSocketChannel.this.receivedMessages;
+			WebSocketChannel.this.frameBuffer.read(messages.array(), messages.pendingOffset() + (int) WebSocketChannel.this.lastFrameRead, length);
+			return true;
+		}
+
+		@Override
+		public boolean end() {
+			WebSocketChannel channel = WebSocketChannel.this;
+			ReceivedMessages messages = channel.receivedMessages;
+			int length = (int) channel.lastFrameLength;
+			boolean binary = (channel.lastFrameFlags & 0xf) == WSCommon.WS_OPCODE_BINARY;
+			JfrEvents.frameDecoded(channel.channelId, channel.lastFrameFlags & 0xf, true, length, channel.lastFrameMKey >= 0);
+			if(channel.lastFrameMKey >= 0)
+				maskData(messages.array(), messages.pendingOffset(), messages.pendingOffset() + length, (int) channel.lastFrameMKey);
+			messages.commit(length, binary);
+			JfrEvents.messageDelivered(channel.channelId, length, binary);
+			return true;
+		}
+	}
+
+	private class DirectSink implements FrameSink {
+
+		@Override
+		public boolean payload(int length) throws IOException {
+			return WebSocketChannel.this.readDirectPayload(length);
+		}
+
+		@Override
+		public boolean end() throws IOException {
+			return WebSocketChannel.this.handleFrame();
+		}
+	}
+
+	private class SpillSink implements FrameSink {
+
+		@Override
+		public boolean payload(int length) throws IOException {
+			return WebSocketChannel.this.readSpilledPayload(length);
+		}
+
+		@Override
+		public boolean end() throws IOException {
+			return WebSocketChannel.this.handleFrame();
+		}
+	}
+
+	// data frames forwarded to the other channel of a relay as they arrive
+	private class RelaySink implements FrameSink {
+
+		@Override
+		public boolean payload(int length) {
+			WebSocketChannel.this.relay.framePayload(WebSocketChannel.this.frameBuffer, length);
+			return true;
+		}
+
+		@Override
+		public boolean end() {
+			return true;
+		}
+	}
+
+	// frames dropped by the rate quota
+	private class DropSink implements FrameSink {
+
+		@Override
+		public boolean payload(int length) {
+			WebSocketChannel.this.frameBuffer.skip(length);
+			return true;
+		}
+
+		@Override
+		public boolean end() {
+			return true;
+		}
+	}
 }
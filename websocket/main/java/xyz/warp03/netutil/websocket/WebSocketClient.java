@@ -24,15 +24,18 @@ import org.omegazero.net.socket.SocketConnection;
 import xyz.warp03.netutil.websocket.http.HTTPMessage;
 import xyz.warp03.netutil.websocket.http.HTTPUtil;
 import xyz.warp03.netutil.websocket.http.InvalidMessageException;
+import xyz.warp03.netutil.websocket.jfr.HandshakeEvent;
 
 public class WebSocketClient extends WebSocketChannel {
 
 	private final URL target;
 
 	private String webSocketProtocol;
+	private boolean batchingRequested = false;
 	private Map<String, String> additionalHeaders = new HashMap<>();
 
 	private String wskeyStr;
+	private Object handshakeEvent;
 
 	private Runnable onConnect;
 
@@ -73,6 +76,18 @@ public class WebSocketClient extends WebSocketChannel {
 		this.webSocketProtocol = webSocketProtocol;
 	}
 
+	/**
+	 * Sets whether the batching subprotocol {@value MessageBatch#PROTOCOL} is offered to the server. If enabled, it is offered before the protocol set using
+	 * {@link #setWebSocketProtocol(String)}; since only one protocol can be negotiated, the application protocol is not used if the server accepts batching.
+	 * 
+	 * @param batchingRequested <code>true</code> to request batching. Default is <code>false</code>
+	 * @see #writeBatched(byte[])
+	 * @see #setOnBatch(java.util.function.Consumer)
+	 */
+	public void setBatchingRequested(boolean batchingRequested) {
+		this.batchingRequested = batchingRequested;
+	}
+
 	/**
 	 * Sets a HTTP header which is sent in the initial HTTP request in addition to the default headers.
 	 * 
@@ -122,21 +137,31 @@ public class WebSocketClient extends WebSocketChannel {
 		request.setHeader("connection", "upgrade");
 		request.setHeader("sec-websocket-key", this.wskeyStr);
 		request.setHeader("sec-websocket-version", "13");
-		if(this.webSocketProtocol != null)
-			request.setHeader("sec-websocket-protocol", this.webSocketProtocol);
+		String protocols = this.webSocketProtocol;
+		if(this.batchingRequested)
+			protocols = protocols != null ? MessageBatch.PROTOCOL + ", " + protocols : MessageBatch.PROTOCOL;
+		if(protocols != null)
+			request.setHeader("sec-websocket-protocol", protocols);
 		for(Map.Entry<String, String> header : this.additionalHeaders.entrySet()){
 			request.setHeader(header.getKey(), header.getValue());
 		}
+		this.handshakeEvent = JfrEvents.beginHandshake();
 		super.connection.write(request.toBytes());
 	}
 
 	private void responseData(byte[] data) throws IOException {
 		HTTPMessage response = HTTPUtil.parseMessage(data);
-		this.validateServerResponse(response);
+		try{
+			this.validateServerResponse(response);
+		}catch(IOException e){
+			this.commitHandshakeEvent(HandshakeEvent.OUTCOME_INVALID, null);
+			throw e;
+		}
 
 		String wsProto = response.getHeader("sec-websocket-protocol");
 
 		super.handshakeComplete(wsProto);
+		this.commitHandshakeEvent(HandshakeEvent.OUTCOME_ACCEPTED, wsProto);
 		if(this.onConnect != null)
 			this.onConnect.run();
 
@@ -146,6 +171,14 @@ public class WebSocketClient extends WebSocketChannel {
 			super.incomingData(response.getData());
 	}
 
+	private void commitHandshakeEvent(String outcome, String protocol) {
+		Object event = this.handshakeEvent;
+		if(event == null)
+			return;
+		this.handshakeEvent = null;
+		JfrEvents.endHandshake(event, true, outcome, super.connection.getApparentRemoteAddress(), this.target, protocol);
+	}
+
 	private void validateServerResponse(HTTPMessage response) throws IOException {
 		if(response == null)
 			throw new InvalidMessageException("Invalid HTTP response");
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.omegazero.common.util.PropertyUtil;
+
+/**
+ * Forwards WebSocket frames between two {@link WebSocketChannel}s, for example between a client connected to a {@link WebSocketServer} and a {@link WebSocketClient}
+ * connected to a backend server.<br>
+ * <br>
+ * Data frames are forwarded as they arrive, without reassembling messages: every chunk of payload received on one channel is passed to the other channel immediately, and the
+ * fragmentation of messages is kept. The payload is only rewritten if the masking requirements of the two connections differ, in which case unmasking and masking with a new
+ * key is done in a single pass. Other data messages written to a channel by the application while a relayed message is being forwarded are sent after it.<br>
+ * <br>
+ * Control frames are forwarded as single frames: "ping" and "pong" frames are passed to the other channel unchanged (pings are not answered by the relay itself, but by the
+ * peer of the other channel), and a "close" frame received on one channel, including its status code and reason, is forwarded to the other channel, after which both
+ * channels close. If one channel closes without a close frame, the other channel is closed with status {@link WSCommon#WS_STATUS_GOING_AWAY}.<br>
+ * <br>
+ * To keep memory usage small, reading from a channel is paused while the data forwarded from it that is not yet written to the other connection exceeds the buffer limit
+ * (see {@link #setMaxBufferedBytes(long)}), and resumed once half of it was written.
+ */
+public class WebSocketRelay {
+
+	private static final long defaultMaxBufferedBytes = PropertyUtil.getLong("xyz.warp03.netutil.websocket.relayMaxBuffered", 256 << 10);
+
+
+	private final WebSocketChannel first;
+	private final WebSocketChannel second;
+
+	private long maxBufferedBytes = defaultMaxBufferedBytes;
+	private boolean started = false;
+
+	/**
+	 * Creates a new <code>WebSocketRelay</code>. The relay is started using {@link #start()}.
+	 *
+	 * @param first  One channel
+	 * @param second The other channel
+	 */
+	public WebSocketRelay(WebSocketChannel first, WebSocketChannel second) {
+		if(first == second)
+			throw new IllegalArgumentException("Cannot relay a channel to itself");
+		this.first = Objects.requireNonNull(first);
+		this.second = Objects.requireNonNull(second);
+	}
+
+
+	/**
+	 * Sets the maximum number of bytes received on one channel that may be waiting to be written to the other connection before reading from the first channel is paused. The
+	 * default is set using the <code>xyz.warp03.netutil.websocket.relayMaxBuffered</code> system property (default 256KiB).
+	 *
+	 * @param maxBufferedBytes The limit in bytes
+	 * @throws IllegalStateException If the relay was already started
+	 */
+	public void setMaxBufferedBytes(long maxBufferedBytes) {
+		if(maxBufferedBytes <= 0)
+			throw new IllegalArgumentException("maxBufferedBytes must be positive");
+		if(this.started)
+			throw new IllegalStateException("Relay was already started");
+		this.maxBufferedBytes = maxBufferedBytes;
+	}
+
+	/**
+	 * Starts forwarding frames between the two channels. After this method is called, messages received on either channel are no longer delivered to the
+	 * <code>onMessage</code> or <code>onDirectMessage</code> callbacks.<br>
+	 * <br>
+	 * This method must be called after the handshake of both channels completed and before any data message was received on either channel. If one channel is ready before
+	 * the other, reading from its connection may be paused until this method is called using {@link org.omegazero.net.socket.SocketConnection#setReadBlock(boolean)}.
+	 *
+	 * @throws IllegalStateException If the handshake of either channel has not completed, or the relay was already started
+	 */
+	public synchronized void start() {
+		if(this.started)
+			throw new IllegalStateException("Relay was already started");
+		if(!this.first.isHandshakeComplete() || !this.second.isHandshakeComplete())
+			throw new IllegalStateException("Handshake not completed");
+		this.started = true;
+		this.first.setRelay(new Direction(this.first, this.second, this.maxBufferedBytes));
+		this.second.setRelay(new Direction(this.second, this.first, this.maxBufferedBytes));
+	}
+
+
+	/**
+	 *
+	 * @return The first channel passed in the constructor
+	 */
+	public WebSocketChannel getFirst() {
+		return this.first;
+	}
+
+	/**
+	 *
+	 * @return The second channel passed in the constructor
+	 */
+	public WebSocketChannel getSecond() {
+		return this.second;
+	}
+
+
+	private static boolean isSendableStatus(int status) {
+		return status >= 1000 && status < 5000 && status != 1004 && status != WSCommon.WS_STATUS_NO_STATUS && status != WSCommon.WS_STATUS_ABNORMAL_CLOSE && status != 1015;
+	}
+
+
+	/**
+	 * Forwards frames received on the <b>source</b> channel to the <b>target</b> channel. Except where noted, methods are called by the thread reading from the source
+	 * channel.
+	 */
+	static final class Direction {
+
+		private final WebSocketChannel source;
+		private final WebSocketChannel target;
+		private final long maxBufferedBytes;
+
+		private final AtomicLong bufferedBytes = new AtomicLong();
+		private volatile boolean readBlocked = false;
+
+		private RelayStream message;
+		private boolean frameFin;
+		private long frameRemaining;
+		private long frameOffset;
+		private int xorKey;
+
+		public Direction(WebSocketChannel source, WebSocketChannel target, long maxBufferedBytes) {
+			this.source = source;
+			this.target = target;
+			this.maxBufferedBytes = maxBufferedBytes;
+		}
+
+
+		public void frameStart(int opcode, boolean fin, long length, int mkey, boolean masked) {
+			boolean targetMasked = this.target.isClient();
+			int outKey = targetMasked ? WebSocketChannel.newMaskingKey() : 0;
+			// unmasking with the received key and masking with the new key can be done in one pass with the combined key
+			this.xorKey = (masked ? mkey : 0) ^ outKey;
+			this.frameFin = fin;
+			this.frameRemaining = length;
+			this.frameOffset = 0;
+
+			boolean newMessage = opcode != WSCommon.WS_OPCODE_CONTINUATION;
+			if(newMessage)
+				this.message = this.target.isClosed() ? null : new RelayStream(this);
+			if(this.message == null)
+				return;
+			byte[] header = new byte[WebSocketChannel.frameHeaderSize(length, targetMasked)];
+			WebSocketChannel.writeFrameHeader(header, opcode, fin, length, targetMasked, outKey);
+			this.forward(header, newMessage);
+		}
+
+		public void framePayload(SlabBuffer buffer, int length) {
+			if(this.message == null){
+				buffer.skip(length);
+				this.frameRemaining -= length;
+				return;
+			}
+			byte[] chunk = buffer.readBytes(length);
+			if(this.xorKey != 0)
+				WebSocketChannel.maskData(chunk, 0, length, Integer.rotateLeft(this.xorKey, (int) (this.frameOffset & 3) * 8));
+			this.frameOffset += length;
+			this.frameRemaining -= length;
+			this.forward(chunk, false);
+		}
+
+		private void forward(byte[] data, boolean newMessage) {
+			RelayStream stream = this.message;
+			boolean frameEnd = this.frameRemaining == 0;
+			if(frameEnd && this.frameFin)
+				this.message = null;
+			stream.add(new Chunk(data, frameEnd, frameEnd && this.frameFin));
+			if(this.bufferedBytes.addAndGet(data.length) > this.maxBufferedBytes && !this.readBlocked)
+				this.updateReadBlock();
+			if(newMessage)
+				this.target.queueData(stream);
+			else
+				this.target.getOutboundQueue().flush();
+		}
+
+		/**
+		 * Called by the thread writing to the target channel.
+		 */
+		void written(long length) {
+			if(this.bufferedBytes.addAndGet(-length) <= this.maxBufferedBytes / 2 && this.readBlocked)
+				this.updateReadBlock();
+		}
+
+		private synchronized void updateReadBlock() {
+			long buffered = this.bufferedBytes.get();
+			boolean block = this.readBlocked ? buffered > this.maxBufferedBytes / 2 : buffered > this.maxBufferedBytes;
+			if(block != this.readBlocked){
+				this.readBlocked = block;
+				this.source.setReadBlocked(WebSocketChannel.READ_BLOCK_RELAY, block);
+			}
+		}
+
+
+		public void forwardControl(int opcode, byte[] data) {
+			if(!this.target.isOpen())
+				return;
+			try{
+				this.target.write(opcode, data);
+			}catch(IllegalStateException e){
+				// target started closing concurrently
+			}
+		}
+
+		public void forwardClose(byte[] payload) {
+			int status = payload.length >= 2 ? ((payload[0] & 0xff) << 8) | (payload[1] & 0xff) : WSCommon.WS_STATUS_NO_STATUS;
+			this.target.startClose(status, payload);
+		}
+
+		/**
+		 * Called when the source channel closed, by any thread.
+		 */
+		public void sourceClosed(int status) {
+			RelayStream stream = this.message;
+			this.message = null;
+			if(!isSendableStatus(status))
+				status = WSCommon.WS_STATUS_GOING_AWAY;
+			this.target.startClose(status, new byte[] { (byte) (status >> 8), (byte) status });
+			if(stream != null)
+				stream.abort();
+		}
+	}
+
+	private static final class Chunk {
+
+		public final byte[] data;
+		public final boolean frameEnd;
+		public final boolean messageEnd;
+
+		public Chunk(byte[] data, boolean frameEnd, boolean messageEnd) {
+			this.data = data;
+			this.frameEnd = frameEnd;
+			this.messageEnd = messageEnd;
+		}
+	}
+
+	/**
+	 * A single relayed message in the outbound queue of the target channel.
+	 */
+	private static final class RelayStream extends OutboundStream {
+
+		private final Direction direction;
+		private final Queue<Chunk> chunks = new ConcurrentLinkedQueue<>();
+		private volatile boolean aborted = false;
+		private boolean atFrameBoundary = true;
+
+		public RelayStream(Direction direction) {
+			this.direction = direction;
+		}
+
+
+		public void add(Chunk chunk) {
+			this.chunks.add(chunk);
+		}
+
+		public void abort() {
+			this.aborted = true;
+			this.direction.target.getOutboundQueue().flush();
+		}
+
+
+		@Override
+		public int writeNext(WebSocketChannel channel) throws IOException {
+			Chunk chunk = this.chunks.poll();
+			if(chunk == null){
+				if(this.aborted)
+					throw new IOException("Source channel closed while a message was being relayed");
+				return WAITING;
+			}
+			channel.transportWrite(chunk.data);
+			this.atFrameBoundary = chunk.frameEnd;
+			this.direction.written(chunk.data.length);
+			return chunk.messageEnd ? DONE : MORE;
+		}
+
+		@Override
+		public boolean isAtFrameBoundary() {
+			return this.atFrameBoundary;
+		}
+
+		@Override
+		public void fail(Throwable cause) {
+			Chunk chunk;
+			while((chunk = this.chunks.poll()) != null)
+				this.direction.written(chunk.data.length);
+		}
+	}
+}
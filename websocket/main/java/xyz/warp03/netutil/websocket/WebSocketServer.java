@@ -6,43 +6,69 @@
  */
 package xyz.warp03.netutil.websocket;
 
+import java.io.IOException;
 import java.net.URI;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
 import org.omegazero.common.logging.Logger;
 import org.omegazero.common.logging.LoggerUtil;
+import org.omegazero.common.util.PropertyUtil;
 import org.omegazero.net.server.NetServer;
 import org.omegazero.net.socket.SocketConnection;
 
 import xyz.warp03.netutil.websocket.http.HTTPMessage;
 import xyz.warp03.netutil.websocket.http.HTTPUtil;
 import xyz.warp03.netutil.websocket.http.InvalidMessageException;
+import xyz.warp03.netutil.websocket.jfr.HandshakeEvent;
 
 public class WebSocketServer {
 
 	private static final Logger logger = LoggerUtil.createLogger();
 
+	private static final long defaultHandshakeTimeout = PropertyUtil.getLong("xyz.warp03.netutil.websocket.handshakeTimeout", 10000);
+	private static final int defaultMaxPendingHandshakes = PropertyUtil.getInt("xyz.warp03.netutil.websocket.maxPendingHandshakes", 1024);
 
-	private Map<String, String> additionalHeaders = new HashMap<>();
+	// replaced instead of modified, so that the identity of the map identifies its content (see FileResponse)
+	private volatile Map<String, String> additionalHeaders = new HashMap<>();
+	private final Map<String, BiFunction<URI, HTTPMessage, HTTPMessage>> httpHandlers = new ConcurrentHashMap<>();
 
 	private Function<String[], String> onProtocolRequest;
 	private BiFunction<URI, HTTPMessage, HTTPMessage> onRequest;
+	private BiFunction<URI, HTTPMessage, CompletionStage<HTTPMessage>> onRequestAsync;
 	private Consumer<WebSocketChannel> onClient;
 
+	private RateQuota rateQuota;
+	private OutboundPolicy outboundPolicy;
+	private boolean batchingEnabled = false;
+	private int[] laneWeights;
+
+	private long handshakeTimeout = defaultHandshakeTimeout;
+	private int maxPendingHandshakes = defaultMaxPendingHandshakes;
+	private final AtomicInteger pendingHandshakes = new AtomicInteger();
+
 	/**
 	 * Creates a new WebSocket server.<br>
 	 * <br>
 	 * This instance is intended to be used with a {@link NetServer}, which accepts {@link SocketConnection}s that must then be passed to
-	 * {@link #newConnection(SocketConnection)}.
+	 * {@link #newConnection(SocketConnection)}. Alternatively, a {@link NioWebSocketEngine} may be used to accept connections.
 	 */
 	public WebSocketServer() {
 	}
@@ -56,11 +82,35 @@ public class WebSocketServer {
 	 * @param key   The HTTP header name
 	 * @param value The HTTP header value
 	 */
-	public void setAdditionalHeader(String key, String value) {
+	public synchronized void setAdditionalHeader(String key, String value) {
+		Map<String, String> headers = new HashMap<>(this.additionalHeaders);
 		if(value != null)
-			this.additionalHeaders.put(Objects.requireNonNull(key), value);
+			headers.put(Objects.requireNonNull(key), value);
 		else
-			this.additionalHeaders.remove(key);
+			headers.remove(key);
+		this.additionalHeaders = headers;
+	}
+
+	/**
+	 * Sets a handler for plain HTTP requests (requests that do not contain an <code>Upgrade: websocket</code> header) for the given <b>path</b>, so that such requests, for
+	 * example health checks, can be served on the same port as WebSocket connections. Requests without a matching handler are answered with status 400, as before.<br>
+	 * <br>
+	 * If <b>path</b> ends with a <code>/</code>, the handler also receives requests for all paths starting with <b>path</b>, unless there is a handler for a longer matching
+	 * path. Only <code>GET</code> requests are supported.<br>
+	 * <br>
+	 * The first argument of the handler is the request {@link URI}, the second argument is the {@link HTTPMessage} representing the request. The handler returns the
+	 * response, or <code>null</code> to respond with status 404. The <code>Content-Length</code> header is set automatically if the response does not contain it. The
+	 * connection remains open after the response, so further requests may be sent on it.
+	 * 
+	 * @param path    The request path
+	 * @param handler The handler, or <code>null</code> to remove the handler for <b>path</b>
+	 * @see StaticFileHandler
+	 */
+	public void setHTTPHandler(String path, BiFunction<URI, HTTPMessage, HTTPMessage> handler) {
+		if(handler != null)
+			this.httpHandlers.put(Objects.requireNonNull(path), handler);
+		else
+			this.httpHandlers.remove(path);
 	}
 
 	/**
@@ -75,6 +125,18 @@ public class WebSocketServer {
 		this.onProtocolRequest = onProtocolRequest;
 	}
 
+	/**
+	 * Sets whether the batching subprotocol {@value MessageBatch#PROTOCOL} is accepted. If enabled and a client offers it, it is selected without calling the
+	 * <code>onProtocolRequest</code> callback.
+	 * 
+	 * @param batchingEnabled <code>true</code> to accept batching. Default is <code>false</code>
+	 * @see WebSocketChannel#setOnBatch(Consumer)
+	 * @see WebSocketChannel#writeBatched(byte[])
+	 */
+	public void setBatchingEnabled(boolean batchingEnabled) {
+		this.batchingEnabled = batchingEnabled;
+	}
+
 	/**
 	 * Sets a callback that is called when a HTTP handshake request is received by a client.<br>
 	 * <br>
@@ -90,6 +152,59 @@ public class WebSocketServer {
 		this.onRequest = onRequest;
 	}
 
+	/**
+	 * Sets a callback that is called when a HTTP handshake request is received by a client, whose result is only available later, for example because a database or an
+	 * identity provider needs to be queried. This callback is called after the <code>onRequest</code> callback, if the request was not rejected by it.<br>
+	 * <br>
+	 * The arguments of the callback are the same as those of the <code>onRequest</code> callback. The callback must not block, and instead return a
+	 * {@link CompletionStage} that completes with <code>null</code> if the handshake should continue, or with a <code>HTTPMessage</code> that is returned to the client
+	 * instead. Reading from the connection is paused until then. If the stage completes exceptionally, the client receives a <i>500</i> response. The handshake is completed
+	 * by the thread completing the stage, which therefore also calls the <code>onClient</code> callback.<br>
+	 * <br>
+	 * If the stage does not complete within the handshake timeout (see {@link #setHandshakeTimeout(long)}), the client receives a <i>504</i> response. If the maximum number
+	 * of pending handshakes is reached (see {@link #setMaxPendingHandshakes(int)}), new requests receive a <i>503</i> response without calling this callback.
+	 * 
+	 * @param onRequestAsync The callback
+	 * @see #setOnRequest(BiFunction)
+	 */
+	public void setOnRequestAsync(BiFunction<URI, HTTPMessage, CompletionStage<HTTPMessage>> onRequestAsync) {
+		this.onRequestAsync = onRequestAsync;
+	}
+
+	/**
+	 * Sets the maximum time the {@link CompletionStage} returned by the <code>onRequestAsync</code> callback may take to complete. The default is set using the
+	 * <code>xyz.warp03.netutil.websocket.handshakeTimeout</code> system property (default 10 seconds).
+	 * 
+	 * @param handshakeTimeout The timeout in milliseconds
+	 * @see #setOnRequestAsync(BiFunction)
+	 */
+	public void setHandshakeTimeout(long handshakeTimeout) {
+		if(handshakeTimeout <= 0)
+			throw new IllegalArgumentException("handshakeTimeout must be positive");
+		this.handshakeTimeout = handshakeTimeout;
+	}
+
+	/**
+	 * Sets the maximum number of handshakes waiting for the <code>onRequestAsync</code> callback at the same time. The default is set using the
+	 * <code>xyz.warp03.netutil.websocket.maxPendingHandshakes</code> system property (default 1024).
+	 * 
+	 * @param maxPendingHandshakes The maximum number of pending handshakes, or <code>0</code> for no limit
+	 * @see #setOnRequestAsync(BiFunction)
+	 */
+	public void setMaxPendingHandshakes(int maxPendingHandshakes) {
+		if(maxPendingHandshakes < 0)
+			throw new IllegalArgumentException("maxPendingHandshakes must not be negative");
+		this.maxPendingHandshakes = maxPendingHandshakes;
+	}
+
+	/**
+	 * 
+	 * @return The number of handshakes currently waiting for the <code>onRequestAsync</code> callback
+	 */
+	public int getPendingHandshakes() {
+		return this.pendingHandshakes.get();
+	}
+
 	/**
 	 * Sets a callback that is called when a WebSocket handshake with a client completed successfully.<br>
 	 * <br>
@@ -102,6 +217,57 @@ public class WebSocketServer {
 	}
 
 
+	/**
+	 * Sets the limits on the rate of frames received from clients, which is applied to every new channel. The statistics of the quota, for example the number of channels
+	 * whose reading is currently paused, are the totals of all channels of this server.
+	 * 
+	 * @param rateQuota The quota, or <code>null</code> to not limit new channels
+	 * @see WebSocketChannel#setRateQuota(RateQuota)
+	 */
+	public void setRateQuota(RateQuota rateQuota) {
+		this.rateQuota = rateQuota;
+	}
+
+	/**
+	 * 
+	 * @return The quota set using {@link #setRateQuota(RateQuota)}, or <code>null</code>
+	 */
+	public RateQuota getRateQuota() {
+		return this.rateQuota;
+	}
+
+	/**
+	 * Sets the limits on queued outbound messages, which are applied to every new channel. The statistics of the policy are the totals of all channels of this server.
+	 * 
+	 * @param outboundPolicy The policy, or <code>null</code> to not limit new channels
+	 * @see WebSocketChannel#setOutboundPolicy(OutboundPolicy)
+	 */
+	public void setOutboundPolicy(OutboundPolicy outboundPolicy) {
+		this.outboundPolicy = outboundPolicy;
+	}
+
+	/**
+	 * 
+	 * @return The policy set using {@link #setOutboundPolicy(OutboundPolicy)}, or <code>null</code>
+	 */
+	public OutboundPolicy getOutboundPolicy() {
+		return this.outboundPolicy;
+	}
+
+	/**
+	 * Sets the outbound lane weights of every new channel.
+	 * 
+	 * @param weights The weight of each lane, or <code>null</code> to use a single lane
+	 * @throws IllegalArgumentException If no weights are given or a weight is not positive
+	 * @see WebSocketChannel#setLaneWeights(int...)
+	 */
+	public void setLaneWeights(int... weights) {
+		if(weights != null)
+			WebSocketChannel.checkLaneWeights(weights);
+		this.laneWeights = weights != null ? weights.clone() : null;
+	}
+
+
 	/**
 	 * Accepts a {@link SocketConnection} to be processed by this <code>WebSocketServer</code>. This <i>must</i> be a <code>SocketConnection</code> instance received through
 	 * the callback set in {@link NetServer#setConnectionCallback(Consumer)}, otherwise behavior is undefined.<br>
@@ -113,14 +279,24 @@ public class WebSocketServer {
 	 */
 	public void newConnection(SocketConnection connection) {
 		connection.setOnData((data) -> {
-			if(this.onClient == null)
-				return;
-			WebSocketChannel channel = this.processClientRequest(connection, data);
-			if(channel != null)
-				this.onClient.accept(channel);
+			this.handshakeData(connection, data);
 		});
 	}
 
+	/**
+	 * Processes a handshake request received on the given <b>connection</b>.
+	 *
+	 * @return The new channel, or <code>null</code> if the handshake did not complete (yet)
+	 */
+	WebSocketChannel handshakeData(SocketConnection connection, byte[] data) {
+		if(this.onClient == null && this.httpHandlers.isEmpty())
+			return null;
+		WebSocketChannel channel = this.processClientRequest(connection, data);
+		if(channel != null)
+			this.onClient.accept(channel);
+		return channel;
+	}
+
 	private void respondHTTP(SocketConnection connection, HTTPMessage http) {
 		for(Map.Entry<String, String> header : this.additionalHeaders.entrySet()){
 			if(!http.headerExists(header.getKey()))
@@ -129,15 +305,66 @@ public class WebSocketServer {
 		connection.write(http.toBytes());
 	}
 
+	private BiFunction<URI, HTTPMessage, HTTPMessage> getHTTPHandler(String path) {
+		if(path == null)
+			return null;
+		BiFunction<URI, HTTPMessage, HTTPMessage> handler = this.httpHandlers.get(path);
+		int index = path.length();
+		while(handler == null && index > 0){
+			index = path.lastIndexOf('/', index - 1);
+			if(index < 0)
+				break;
+			handler = this.httpHandlers.get(path.substring(0, index + 1));
+		}
+		return handler;
+	}
+
+	private void processHTTPRequest(SocketConnection connection, BiFunction<URI, HTTPMessage, HTTPMessage> handler, URI requestURI, HTTPMessage request) {
+		HTTPMessage response = handler.apply(requestURI, request);
+		if(response == null){
+			response = HTTPUtil.newResponse(404, "Not Found".getBytes(StandardCharsets.UTF_8));
+			response.setHeader("content-type", "text/plain; utf-8");
+		}
+		if(response instanceof FileResponse){
+			FileResponse fileResponse = (FileResponse) response;
+			FileChannel file;
+			try{
+				file = FileChannel.open(fileResponse.getPath(), StandardOpenOption.READ);
+			}catch(IOException e){
+				logger.warn("Failed to open ", fileResponse.getPath(), ": ", e);
+				this.respondHTTP(connection, newErrorResponse(500, "Internal Server Error"));
+				return;
+			}
+			byte[] head = fileResponse.getHead(this.additionalHeaders);
+			if(connection instanceof NioConnection)
+				((NioConnection) connection).writeFile(head, file, fileResponse.getSize());
+			else
+				new MappedFileWriter(connection, file, fileResponse.getSize()).start(head);
+		}else{
+			if(!response.headerExists("content-length"))
+				response.setHeader("content-length", String.valueOf(response.getData() != null ? response.getData().length : 0));
+			this.respondHTTP(connection, response);
+		}
+	}
+
 	private WebSocketChannel processClientRequest(SocketConnection connection, byte[] data) {
+		Object event = JfrEvents.beginHandshake();
+		URI requestURI = null;
 		try{
 			HTTPMessage request = HTTPUtil.parseMessage(data);
 			if(request == null)
 				throw new InvalidMessageException("Invalid HTTP request");
-			URI requestURI = HTTPUtil.getGETRequestURI(request);
+			requestURI = HTTPUtil.getGETRequestURI(request);
 
-			if(!"websocket".equalsIgnoreCase(request.getHeader("upgrade")))
-				throw new InvalidMessageException("Expected upgrade websocket header");
+			if(!"websocket".equalsIgnoreCase(request.getHeader("upgrade"))){
+				BiFunction<URI, HTTPMessage, HTTPMessage> handler = this.getHTTPHandler(requestURI.getPath());
+				if(handler == null)
+					throw new InvalidMessageException("Expected upgrade websocket header");
+				this.processHTTPRequest(connection, handler, requestURI, request);
+				return null;
+			}
+			if(this.onClient == null)
+				throw new InvalidMessageException("WebSocket connections are not accepted");
 			String connHeader = request.getHeader("connection");
 			if(connHeader == null || !connHeader.toLowerCase().contains("upgrade"))
 				throw new InvalidMessageException("Expected upgrade in connection header");
@@ -157,48 +384,145 @@ public class WebSocketServer {
 
 			String nproto = null;
 			String protos = request.getHeader("sec-websocket-protocol");
-			if(protos != null && this.onProtocolRequest != null){
+			if(protos != null){
 				String[] opts = protos.split(",");
-				for(int i = 0; i < opts.length; i++)
+				for(int i = 0; i < opts.length; i++){
 					opts[i] = opts[i].trim();
-				nproto = this.onProtocolRequest.apply(opts);
+					if(this.batchingEnabled && MessageBatch.PROTOCOL.equals(opts[i]))
+						nproto = MessageBatch.PROTOCOL;
+				}
+				if(nproto == null && this.onProtocolRequest != null)
+					nproto = this.onProtocolRequest.apply(opts);
 			}
 
 			if(this.onRequest != null){
 				HTTPMessage errResp = this.onRequest.apply(requestURI, request);
 				if(errResp != null){
 					this.respondHTTP(connection, errResp);
+					commitHandshakeEvent(event, connection, HandshakeEvent.OUTCOME_REJECTED, requestURI, null);
 					return null;
 				}
 			}
 
-			String acceptStr = keyStr + WSCommon.WS_ACCEPT_STRING;
-			MessageDigest md;
-			try{
-				md = MessageDigest.getInstance("SHA-1");
-			}catch(NoSuchAlgorithmException e){
-				throw new RuntimeException(e);
+			if(this.onRequestAsync != null){
+				this.processAsyncRequest(connection, event, requestURI, request, keyStr, nproto);
+				return null;
 			}
-			md.update(acceptStr.getBytes(StandardCharsets.ISO_8859_1));
-			String keyhash = Base64.getEncoder().encodeToString(md.digest());
-
-			HTTPMessage response = HTTPUtil.newResponse(101);
-			response.setHeader("upgrade", "websocket");
-			response.setHeader("connection", "upgrade");
-			response.setHeader("sec-websocket-accept", keyhash);
-			if(nproto != null)
-				response.setHeader("sec-websocket-protocol", nproto);
-			this.respondHTTP(connection, response);
-
-			WebSocketChannel wsc = new WebSocketChannel(connection, false, requestURI);
-			wsc.handshakeComplete(nproto);
-			return wsc;
+			return this.acceptHandshake(connection, event, requestURI, request, keyStr, nproto);
 		}catch(InvalidMessageException e){
 			logger.debug("Invalid request from ", connection.getApparentRemoteAddress(), ": ", e.getMessage());
-			HTTPMessage response = HTTPUtil.newResponse(400, "Bad Request".getBytes(StandardCharsets.UTF_8));
-			response.setHeader("content-type", "text/plain; utf-8");
-			this.respondHTTP(connection, response);
+			this.respondHTTP(connection, newErrorResponse(400, "Bad Request"));
+			commitHandshakeEvent(event, connection, HandshakeEvent.OUTCOME_INVALID, requestURI, null);
 			return null;
 		}
 	}
+
+	private void processAsyncRequest(SocketConnection connection, Object event, URI requestURI, HTTPMessage request, String keyStr, String nproto) {
+		int max = this.maxPendingHandshakes;
+		if(this.pendingHandshakes.incrementAndGet() > max && max > 0){
+			this.pendingHandshakes.decrementAndGet();
+			logger.debug("Rejecting request from ", connection.getApparentRemoteAddress(), ": Too many pending handshakes");
+			this.respondHTTP(connection, newErrorResponse(503, "Service Unavailable"));
+			commitHandshakeEvent(event, connection, HandshakeEvent.OUTCOME_REJECTED, requestURI, null);
+			return;
+		}
+		connection.setReadBlock(true);
+		CompletableFuture<HTTPMessage> result = new CompletableFuture<>();
+		// the handshake does not complete if the connection closes, so the slot can be released immediately
+		connection.setOnClose(() -> result.cancel(false));
+		try{
+			this.onRequestAsync.apply(requestURI, request).whenComplete((errResp, err) -> {
+				if(err != null)
+					result.completeExceptionally(err);
+				else
+					result.complete(errResp);
+			});
+		}catch(RuntimeException e){
+			result.completeExceptionally(e);
+		}
+		result.orTimeout(this.handshakeTimeout, TimeUnit.MILLISECONDS).whenComplete((errResp, err) -> {
+			this.pendingHandshakes.decrementAndGet();
+			try{
+				this.completeAsyncRequest(connection, event, requestURI, request, keyStr, nproto, errResp, err);
+			}catch(Throwable e){
+				logger.warn("Error while completing handshake with ", connection.getApparentRemoteAddress(), ": ", e);
+				connection.close();
+			}
+		});
+	}
+
+	private void completeAsyncRequest(SocketConnection connection, Object event, URI requestURI, HTTPMessage request, String keyStr, String nproto,
+			HTTPMessage errResp, Throwable err) {
+		connection.setOnClose(null);
+		if(!connection.isConnected())
+			return;
+		if(err instanceof CompletionException && err.getCause() != null)
+			err = err.getCause();
+		if(err != null){
+			HTTPMessage response;
+			if(err instanceof TimeoutException){
+				logger.debug("Handshake with ", connection.getApparentRemoteAddress(), " timed out");
+				response = newErrorResponse(504, "Gateway Timeout");
+			}else{
+				logger.warn("Error in onRequestAsync callback: ", err);
+				response = newErrorResponse(500, "Internal Server Error");
+			}
+			this.respondHTTP(connection, response);
+			commitHandshakeEvent(event, connection, HandshakeEvent.OUTCOME_REJECTED, requestURI, null);
+		}else if(errResp != null){
+			this.respondHTTP(connection, errResp);
+			commitHandshakeEvent(event, connection, HandshakeEvent.OUTCOME_REJECTED, requestURI, null);
+		}else{
+			WebSocketChannel channel = this.acceptHandshake(connection, event, requestURI, request, keyStr, nproto);
+			this.onClient.accept(channel);
+		}
+		connection.setReadBlock(false);
+	}
+
+	private WebSocketChannel acceptHandshake(SocketConnection connection, Object event, URI requestURI, HTTPMessage request, String keyStr, String nproto) {
+		String acceptStr = keyStr + WSCommon.WS_ACCEPT_STRING;
+		MessageDigest md;
+		try{
+			md = MessageDigest.getInstance("SHA-1");
+		}catch(NoSuchAlgorithmException e){
+			throw new RuntimeException(e);
+		}
+		md.update(acceptStr.getBytes(StandardCharsets.ISO_8859_1));
+		String keyhash = Base64.getEncoder().encodeToString(md.digest());
+
+		HTTPMessage response = HTTPUtil.newResponse(101);
+		response.setHeader("upgrade", "websocket");
+		response.setHeader("connection", "upgrade");
+		response.setHeader("sec-websocket-accept", keyhash);
+		if(nproto != null)
+			response.setHeader("sec-websocket-protocol", nproto);
+		this.respondHTTP(connection, response);
+
+		WebSocketChannel wsc = new WebSocketChannel(connection, false, requestURI);
+		wsc.setHandshakeRequest(request);
+		if(this.rateQuota != null)
+			wsc.setRateQuota(this.rateQuota);
+		wsc.setOutboundPolicy(this.outboundPolicy);
+		if(this.laneWeights != null)
+			wsc.setLaneWeights(this.laneWeights);
+		wsc.handshakeComplete(nproto);
+		if(connection instanceof NioConnection)
+			((NioConnection) connection).setChannel(wsc);
+		commitHandshakeEvent(event, connection, HandshakeEvent.OUTCOME_ACCEPTED, requestURI, nproto);
+		return wsc;
+	}
+
+
+	private static HTTPMessage newErrorResponse(int status, String message) {
+		HTTPMessage response = HTTPUtil.newResponse(status, message.getBytes(StandardCharsets.UTF_8));
+		response.setHeader("content-type", "text/plain; utf-8");
+		response.setHeader("content-length", String.valueOf(response.getData().length));
+		return response;
+	}
+
+
+	private static void commitHandshakeEvent(Object event, SocketConnection connection, String outcome, URI resource, String protocol) {
+		if(event != null)
+			JfrEvents.endHandshake(event, false, outcome, connection.getApparentRemoteAddress(), resource, protocol);
+	}
 }
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket.broadcast;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * A transport used by a {@link BroadcastBridge} to exchange broadcast envelopes with the bridges on other nodes.<br>
+ * <br>
+ * Transports deliver envelopes on a best-effort basis: an envelope sent while a peer is unreachable may be lost. Every envelope passed to {@link #send(byte[])} must be
+ * delivered to the receiver of each peer node at most once and unchanged, but never to the receiver of the sending node itself.
+ */
+public interface BridgeTransport extends AutoCloseable {
+
+	/**
+	 * Starts this transport. Envelopes received from other nodes are passed to the given <b>receiver</b>, which may be called by any thread, including concurrently.
+	 *
+	 * @param receiver The receiver of envelopes from other nodes
+	 * @throws IOException If the transport could not be started
+	 */
+	public void start(Consumer<byte[]> receiver) throws IOException;
+
+	/**
+	 * Sends the given envelope to all other nodes. This method is only called by one thread at a time.
+	 *
+	 * @param envelope The envelope. The array must not be modified
+	 */
+	public void send(byte[] envelope);
+
+	/**
+	 * Stops this transport and releases all resources used by it.
+	 */
+	@Override
+	public void close();
+}
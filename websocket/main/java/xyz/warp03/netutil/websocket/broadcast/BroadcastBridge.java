@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket.broadcast;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.omegazero.common.logging.Logger;
+import org.omegazero.common.logging.LoggerUtil;
+import org.omegazero.common.util.PropertyUtil;
+
+import xyz.warp03.netutil.websocket.PreparedFrame;
+
+/**
+ * Connects a {@link BroadcastHub} to the hubs on other nodes, so that messages published on any node are delivered to the subscribers on all nodes.<br>
+ * <br>
+ * Messages published on the local hub are collected into batches, which are sent to the other nodes as a single envelope using a {@link BridgeTransport}. A batch is sent
+ * once it contains the maximum number of messages (see {@link #setMaxBatchSize(int)}), or after the maximum delay since the first message was added to it (see
+ * {@link #setMaxBatchDelay(long)}), whichever happens first. Larger batches and longer delays reduce the overhead per message, at the cost of latency.<br>
+ * <br>
+ * <b>Envelope format</b><br>
+ * An envelope consists of a version byte ({@value #ENVELOPE_VERSION}), the 2-byte number of messages, and the messages. Each message consists of the 2-byte length of the
+ * UTF-8 encoded topic name, the topic name, the 4-byte length of the encoded frame and the frame, as returned by {@link PreparedFrame#getEncoded()}. All numbers are
+ * big-endian. Because the messages already contain complete WebSocket frames, received messages are delivered to local subscribers without encoding them again.
+ */
+public class BroadcastBridge implements AutoCloseable {
+
+	private static final Logger logger = LoggerUtil.createLogger();
+
+	private static final int defaultMaxBatchSize = PropertyUtil.getInt("xyz.warp03.netutil.websocket.broadcastBatchSize", 64);
+	private static final long defaultMaxBatchDelay = PropertyUtil.getLong("xyz.warp03.netutil.websocket.broadcastBatchDelay", 5);
+
+	/**
+	 * The envelope format version.
+	 */
+	public static final int ENVELOPE_VERSION = 1;
+
+	private static final int MAX_MESSAGES_PER_ENVELOPE = 0xffff;
+	// batches are sent early once they reach this size, regardless of the number of messages
+	private static final int MAX_BATCH_BYTES = 1 << 20;
+
+
+	private final BroadcastHub hub;
+	private final BridgeTransport transport;
+	private final ScheduledExecutorService executor;
+
+	private int maxBatchSize = defaultMaxBatchSize;
+	private long maxBatchDelay = defaultMaxBatchDelay;
+
+	private List<Entry> batch = new ArrayList<>();
+	private int batchBytes = 0;
+	private ScheduledFuture<?> batchTimeout;
+	private boolean started = false;
+	private boolean closed = false;
+
+	private final AtomicLong envelopesSent = new AtomicLong();
+	private final AtomicLong messagesSent = new AtomicLong();
+	private final AtomicLong envelopesReceived = new AtomicLong();
+	private final AtomicLong invalidEnvelopes = new AtomicLong();
+
+	/**
+	 * Creates a new <code>BroadcastBridge</code>. The bridge is attached to the <b>hub</b> when it is started using {@link #start()}.
+	 *
+	 * @param hub       The local hub
+	 * @param transport The transport to exchange envelopes with other nodes
+	 */
+	public BroadcastBridge(BroadcastHub hub, BridgeTransport transport) {
+		this.hub = Objects.requireNonNull(hub);
+		this.transport = Objects.requireNonNull(transport);
+		this.executor = Executors.newSingleThreadScheduledExecutor((r) -> {
+			Thread t = new Thread(r, "BroadcastBridge");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+
+	/**
+	 * Sets the maximum number of messages sent in one envelope. The default is set using the <code>xyz.warp03.netutil.websocket.broadcastBatchSize</code> system property
+	 * (default <code>64</code>).
+	 *
+	 * @param maxBatchSize The maximum number of messages. If <code>1</code>, every message is sent in its own envelope immediately
+	 */
+	public synchronized void setMaxBatchSize(int maxBatchSize) {
+		if(maxBatchSize <= 0 || maxBatchSize > MAX_MESSAGES_PER_ENVELOPE)
+			throw new IllegalArgumentException("maxBatchSize must be between 1 and " + MAX_MESSAGES_PER_ENVELOPE);
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * Sets the maximum time in milliseconds a message is held back to be sent together with other messages. The default is set using the
+	 * <code>xyz.warp03.netutil.websocket.broadcastBatchDelay</code> system property (default <code>5</code>).
+	 *
+	 * @param maxBatchDelay The maximum delay in milliseconds. If <code>0</code>, a batch is sent as soon as the bridge thread is idle
+	 */
+	public synchronized void setMaxBatchDelay(long maxBatchDelay) {
+		if(maxBatchDelay < 0)
+			throw new IllegalArgumentException("maxBatchDelay must not be negative");
+		this.maxBatchDelay = maxBatchDelay;
+	}
+
+
+	/**
+	 * Starts the transport and attaches this bridge to the hub.
+	 *
+	 * @throws IOException If the transport could not be started
+	 */
+	public synchronized void start() throws IOException {
+		if(this.started)
+			throw new IllegalStateException("Bridge was already started");
+		this.transport.start(this::receive);
+		this.hub.setBridge(this);
+		this.started = true;
+	}
+
+	/**
+	 * Detaches this bridge from the hub, sends the current batch and closes the transport.
+	 */
+	@Override
+	public void close() {
+		synchronized(this){
+			if(this.closed)
+				return;
+			this.closed = true;
+			if(this.started)
+				this.hub.setBridge(null);
+		}
+		try{
+			this.executor.submit(this::sendBatch).get();
+		}catch(Exception e){
+			logger.debug("Failed to send last batch: ", e);
+		}
+		this.executor.shutdown();
+		this.transport.close();
+	}
+
+
+	/**
+	 * Adds a message to the current batch. Called by the hub for every message published on it.
+	 */
+	synchronized void send(String topic, PreparedFrame frame) {
+		if(this.closed)
+			return;
+		byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+		if(topicBytes.length > 0xffff)
+			throw new IllegalArgumentException("Topic name is too long");
+		this.batch.add(new Entry(topicBytes, frame));
+		this.batchBytes += 6 + topicBytes.length + frame.getEncodedLength();
+		if(this.batch.size() >= this.maxBatchSize || this.batchBytes >= MAX_BATCH_BYTES){
+			List<Entry> entries = this.takeBatch();
+			int size = this.batchBytes;
+			this.batchBytes = 0;
+			this.executor.execute(() -> {
+				this.sendEntries(entries, size);
+			});
+		}else if(this.batchTimeout == null)
+			this.batchTimeout = this.executor.schedule(this::sendBatch, this.maxBatchDelay, TimeUnit.MILLISECONDS);
+	}
+
+	private List<Entry> takeBatch() {
+		List<Entry> entries = this.batch;
+		this.batch = new ArrayList<>();
+		if(this.batchTimeout != null){
+			this.batchTimeout.cancel(false);
+			this.batchTimeout = null;
+		}
+		return entries;
+	}
+
+	private void sendBatch() {
+		List<Entry> entries;
+		int size;
+		synchronized(this){
+			if(this.batch.isEmpty())
+				return;
+			size = this.batchBytes;
+			this.batchBytes = 0;
+			entries = this.takeBatch();
+		}
+		this.sendEntries(entries, size);
+	}
+
+	private void sendEntries(List<Entry> entries, int size) {
+		try{
+			this.transport.send(encodeEnvelope(entries, size));
+			this.envelopesSent.incrementAndGet();
+			this.messagesSent.addAndGet(entries.size());
+		}catch(RuntimeException e){
+			logger.warn("Failed to send broadcast envelope: ", e);
+		}
+	}
+
+	private void receive(byte[] envelope) {
+		this.envelopesReceived.incrementAndGet();
+		try{
+			ByteBuffer buf = ByteBuffer.wrap(envelope);
+			if(buf.get() != ENVELOPE_VERSION)
+				throw new IllegalArgumentException("Unsupported envelope version");
+			int count = buf.getShort() & 0xffff;
+			for(int i = 0; i < count; i++){
+				byte[] topic = new byte[buf.getShort() & 0xffff];
+				buf.get(topic);
+				int frameLength = buf.getInt();
+				if(frameLength < 0 || frameLength > buf.remaining())
+					throw new IllegalArgumentException("Invalid frame length");
+				byte[] frame = new byte[frameLength];
+				buf.get(frame);
+				this.hub.deliverLocal(new String(topic, StandardCharsets.UTF_8), PreparedFrame.fromEncoded(frame));
+			}
+		}catch(RuntimeException e){
+			this.invalidEnvelopes.incrementAndGet();
+			logger.warn("Received invalid broadcast envelope: ", e.toString());
+		}
+	}
+
+
+	private static byte[] encodeEnvelope(List<Entry> entries, int size) {
+		ByteBuffer buf = ByteBuffer.allocate(3 + size);
+		buf.put((byte) ENVELOPE_VERSION);
+		buf.putShort((short) entries.size());
+		for(Entry entry : entries){
+			buf.putShort((short) entry.topic.length);
+			buf.put(entry.topic);
+			buf.putInt(entry.frame.getEncodedLength());
+			buf.put(entry.frame.getEncoded());
+		}
+		return buf.array();
+	}
+
+
+	/**
+	 *
+	 * @return The number of envelopes sent to other nodes
+	 */
+	public long getEnvelopesSent() {
+		return this.envelopesSent.get();
+	}
+
+	/**
+	 *
+	 * @return The number of messages sent to other nodes
+	 */
+	public long getMessagesSent() {
+		return this.messagesSent.get();
+	}
+
+	/**
+	 *
+	 * @return The number of envelopes received from other nodes
+	 */
+	public long getEnvelopesReceived() {
+		return this.envelopesReceived.get();
+	}
+
+	/**
+	 *
+	 * @return The number of received envelopes that could not be decoded. Messages of an invalid envelope before the invalid part are still delivered
+	 */
+	public long getInvalidEnvelopes() {
+		return this.invalidEnvelopes.get();
+	}
+
+
+	private static class Entry {
+
+		public final byte[] topic;
+		public final PreparedFrame frame;
+
+		public Entry(byte[] topic, PreparedFrame frame) {
+			this.topic = topic;
+			this.frame = frame;
+		}
+	}
+}
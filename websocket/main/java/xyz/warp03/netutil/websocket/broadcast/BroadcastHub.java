@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket.broadcast;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import xyz.warp03.netutil.websocket.PreparedFrame;
+import xyz.warp03.netutil.websocket.WebSocketChannel;
+
+/**
+ * A thread-safe registry of channels subscribed to named topics, which delivers messages published to a topic to all channels subscribed to it.<br>
+ * <br>
+ * A message is encoded once as a {@link PreparedFrame} and the same frame is written to all subscribers. If a {@link BroadcastBridge} is attached, published messages are
+ * additionally forwarded to the hubs on other nodes. Channels are removed from all topics automatically once they are no longer open.
+ */
+public class BroadcastHub {
+
+	private final Map<String, Set<WebSocketChannel>> topics = new ConcurrentHashMap<>();
+
+	private volatile BroadcastBridge bridge;
+
+	/**
+	 * Creates a new <code>BroadcastHub</code>.
+	 */
+	public BroadcastHub() {
+	}
+
+
+	/**
+	 * Subscribes the given <b>channel</b> to a topic.
+	 *
+	 * @param topic   The topic name
+	 * @param channel The channel
+	 */
+	public void subscribe(String topic, WebSocketChannel channel) {
+		Objects.requireNonNull(channel);
+		// the channel is added inside the map operation, so a concurrent unsubscribe can not remove the set between creating and using it
+		this.topics.compute(Objects.requireNonNull(topic), (k, subscribers) -> {
+			if(subscribers == null)
+				subscribers = ConcurrentHashMap.newKeySet();
+			subscribers.add(channel);
+			return subscribers;
+		});
+	}
+
+	/**
+	 * Unsubscribes the given <b>channel</b> from a topic.
+	 *
+	 * @param topic   The topic name
+	 * @param channel The channel
+	 */
+	public void unsubscribe(String topic, WebSocketChannel channel) {
+		this.topics.computeIfPresent(topic, (k, subscribers) -> {
+			subscribers.remove(channel);
+			return subscribers.isEmpty() ? null : subscribers;
+		});
+	}
+
+	/**
+	 * Unsubscribes the given <b>channel</b> from all topics.
+	 *
+	 * @param channel The channel
+	 */
+	public void unsubscribeAll(WebSocketChannel channel) {
+		for(String topic : this.topics.keySet())
+			this.unsubscribe(topic, channel);
+	}
+
+	/**
+	 *
+	 * @param topic The topic name
+	 * @return The number of channels currently subscribed to the topic on this node
+	 */
+	public int getSubscriberCount(String topic) {
+		Set<WebSocketChannel> subscribers = this.topics.get(topic);
+		return subscribers != null ? subscribers.size() : 0;
+	}
+
+
+	/**
+	 * Publishes a binary message to a topic.
+	 *
+	 * @param topic The topic name
+	 * @param data  The message data
+	 * @return The number of channels on this node the message was written to
+	 * @see #publish(String, PreparedFrame)
+	 */
+	public int publish(String topic, byte[] data) {
+		return this.publish(topic, PreparedFrame.binary(data));
+	}
+
+	/**
+	 * Publishes a text message to a topic.
+	 *
+	 * @param topic The topic name
+	 * @param text  The message text
+	 * @return The number of channels on this node the message was written to
+	 * @see #publish(String, PreparedFrame)
+	 */
+	public int publish(String topic, String text) {
+		return this.publish(topic, PreparedFrame.text(text));
+	}
+
+	/**
+	 * Publishes a message to a topic. The message is written to all channels subscribed to the topic on this node and, if a bridge is attached, passed to the bridge to be
+	 * delivered on the other nodes.
+	 *
+	 * @param topic The topic name
+	 * @param frame The message
+	 * @return The number of channels on this node the message was written to
+	 */
+	public int publish(String topic, PreparedFrame frame) {
+		BroadcastBridge bridge = this.bridge;
+		if(bridge != null)
+			bridge.send(topic, frame);
+		return this.deliverLocal(topic, frame);
+	}
+
+	/**
+	 * Writes a message to all channels subscribed to a topic on this node only.
+	 *
+	 * @param topic The topic name
+	 * @param frame The message
+	 * @return The number of channels the message was written to
+	 */
+	public int deliverLocal(String topic, PreparedFrame frame) {
+		Set<WebSocketChannel> subscribers = this.topics.get(topic);
+		if(subscribers == null)
+			return 0;
+		int count = 0;
+		for(WebSocketChannel channel : subscribers){
+			try{
+				if(channel.isOpen()){
+					channel.write(frame);
+					count++;
+					continue;
+				}
+			}catch(IllegalStateException e){
+				// channel closed concurrently
+			}
+			if(!channel.isOpen())
+				this.unsubscribe(topic, channel);
+		}
+		return count;
+	}
+
+
+	void setBridge(BroadcastBridge bridge) {
+		if(bridge != null && this.bridge != null)
+			throw new IllegalStateException("A bridge is already attached to this hub");
+		this.bridge = bridge;
+	}
+}
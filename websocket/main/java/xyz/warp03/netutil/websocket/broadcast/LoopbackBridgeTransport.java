@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket.broadcast;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * A {@link BridgeTransport} that connects bridges in the same JVM, for example for testing. Envelopes are passed to the receivers of all other transports of the same
+ * {@link Network} synchronously in the thread sending them.
+ */
+public class LoopbackBridgeTransport implements BridgeTransport {
+
+	private final Network network;
+	private volatile Consumer<byte[]> receiver;
+
+	/**
+	 * Creates a new <code>LoopbackBridgeTransport</code>.
+	 *
+	 * @param network The network to join when this transport is started
+	 */
+	public LoopbackBridgeTransport(Network network) {
+		this.network = network;
+	}
+
+
+	@Override
+	public void start(Consumer<byte[]> receiver) {
+		if(this.receiver != null)
+			throw new IllegalStateException("Transport was already started");
+		this.receiver = receiver;
+		this.network.members.add(this);
+	}
+
+	@Override
+	public void send(byte[] envelope) {
+		for(LoopbackBridgeTransport member : this.network.members){
+			if(member != this)
+				member.receiver.accept(envelope);
+		}
+	}
+
+	@Override
+	public void close() {
+		this.network.members.remove(this);
+	}
+
+
+	/**
+	 * A group of {@link LoopbackBridgeTransport}s that exchange envelopes with each other.
+	 */
+	public static class Network {
+
+		private final List<LoopbackBridgeTransport> members = new CopyOnWriteArrayList<>();
+	}
+}
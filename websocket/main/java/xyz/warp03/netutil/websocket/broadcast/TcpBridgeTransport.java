@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket.broadcast;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.omegazero.common.logging.Logger;
+import org.omegazero.common.logging.LoggerUtil;
+import org.omegazero.common.util.PropertyUtil;
+
+/**
+ * A {@link BridgeTransport} that exchanges envelopes with a fixed set of peer nodes over plain TCP connections.<br>
+ * <br>
+ * Each node listens on a local address for connections from its peers, and opens one outgoing connection to each peer, which is only used for sending. Each envelope is
+ * sent as a 4-byte big-endian length followed by the envelope. Every peer has its own sender thread with a bounded queue of envelopes, so a slow or unreachable peer does not
+ * delay sending to the other peers; envelopes for a peer whose queue is full are dropped. If sending to a peer fails, the connection is closed and reopened when the next
+ * envelope is sent, but not before the reconnect delay has passed; envelopes sent to a peer while it is unreachable are lost.<br>
+ * <br>
+ * Connections are neither encrypted nor authenticated, so this transport must only be used in a trusted network.
+ */
+public class TcpBridgeTransport implements BridgeTransport {
+
+	private static final Logger logger = LoggerUtil.createLogger();
+
+	private static final int defaultMaxEnvelopeSize = PropertyUtil.getInt("xyz.warp03.netutil.websocket.broadcastMaxEnvelopeSize", 16 << 20);
+
+	private static final long ACCEPT_RETRY_MIN_DELAY = 10;
+	private static final long ACCEPT_RETRY_MAX_DELAY = 1000;
+
+
+	private final InetSocketAddress bindAddress;
+	private final List<Peer> peers = new ArrayList<>();
+	private final Set<Socket> inboundSockets = ConcurrentHashMap.newKeySet();
+
+	private int connectTimeout = 5000;
+	private long reconnectDelay = 1000;
+	private int maxEnvelopeSize = defaultMaxEnvelopeSize;
+	private int maxQueuedEnvelopes = 1024;
+
+	private final AtomicLong droppedEnvelopes = new AtomicLong();
+
+	private ServerSocket serverSocket;
+	private Consumer<byte[]> receiver;
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates a new <code>TcpBridgeTransport</code>.
+	 *
+	 * @param bindAddress The local address to accept connections from peers on
+	 * @param peers       The addresses of the other nodes
+	 */
+	public TcpBridgeTransport(InetSocketAddress bindAddress, Collection<InetSocketAddress> peers) {
+		this.bindAddress = bindAddress;
+		for(InetSocketAddress address : peers)
+			this.peers.add(new Peer(address));
+	}
+
+
+	/**
+	 *
+	 * @param connectTimeout The timeout in milliseconds for connecting to a peer. Default is <code>5000</code>
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 *
+	 * @param reconnectDelay The minimum time in milliseconds between two attempts to connect to the same peer. Default is <code>1000</code>
+	 */
+	public void setReconnectDelay(long reconnectDelay) {
+		this.reconnectDelay = reconnectDelay;
+	}
+
+	/**
+	 * Sets the maximum size of a received envelope. A peer sending a larger envelope is disconnected. The default is set using the
+	 * <code>xyz.warp03.netutil.websocket.broadcastMaxEnvelopeSize</code> system property (default 16MiB).
+	 *
+	 * @param maxEnvelopeSize The maximum size in bytes
+	 */
+	public void setMaxEnvelopeSize(int maxEnvelopeSize) {
+		this.maxEnvelopeSize = maxEnvelopeSize;
+	}
+
+	/**
+	 * Sets the maximum number of envelopes waiting to be sent to a single peer. This must be set before the transport is started.
+	 *
+	 * @param maxQueuedEnvelopes The maximum number of envelopes. Default is <code>1024</code>
+	 */
+	public void setMaxQueuedEnvelopes(int maxQueuedEnvelopes) {
+		if(maxQueuedEnvelopes <= 0)
+			throw new IllegalArgumentException("maxQueuedEnvelopes must be positive");
+		this.maxQueuedEnvelopes = maxQueuedEnvelopes;
+	}
+
+	/**
+	 *
+	 * @return The number of envelopes that were not sent to a peer, because its queue was full or it was unreachable
+	 */
+	public long getDroppedEnvelopes() {
+		return this.droppedEnvelopes.get();
+	}
+
+
+	@Override
+	public synchronized void start(Consumer<byte[]> receiver) throws IOException {
+		if(this.receiver != null)
+			throw new IllegalStateException("Transport was already started");
+		this.receiver = receiver;
+		this.serverSocket = new ServerSocket();
+		this.serverSocket.bind(this.bindAddress);
+		Thread acceptThread = new Thread(this::acceptLoop, "TcpBridgeTransport-accept");
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+		for(Peer peer : this.peers)
+			peer.start(this.maxQueuedEnvelopes);
+	}
+
+	@Override
+	public void send(byte[] envelope) {
+		for(Peer peer : this.peers)
+			peer.enqueue(envelope);
+	}
+
+	@Override
+	public void close() {
+		this.closed = true;
+		try{
+			if(this.serverSocket != null)
+				this.serverSocket.close();
+		}catch(IOException e){
+			logger.debug("Error while closing server socket: ", e);
+		}
+		for(Socket socket : this.inboundSockets)
+			closeSocket(socket);
+		for(Peer peer : this.peers)
+			peer.stop();
+	}
+
+
+	private void acceptLoop() {
+		long retryDelay = 0;
+		while(!this.closed){
+			Socket socket;
+			try{
+				socket = this.serverSocket.accept();
+			}catch(IOException e){
+				if(this.closed)
+					break;
+				// the error may persist for a while (for example, no file descriptors left), so back off instead of spinning
+				retryDelay = Math.min(Math.max(retryDelay * 2, ACCEPT_RETRY_MIN_DELAY), ACCEPT_RETRY_MAX_DELAY);
+				logger.warn("Failed to accept connection, retrying in ", retryDelay, "ms: ", e);
+				try{
+					Thread.sleep(retryDelay);
+				}catch(InterruptedException ie){
+					break;
+				}
+				continue;
+			}
+			retryDelay = 0;
+			this.inboundSockets.add(socket);
+			Thread readThread = new Thread(() -> {
+				this.readLoop(socket);
+			}, "TcpBridgeTransport-" + socket.getRemoteSocketAddress());
+			readThread.setDaemon(true);
+			readThread.start();
+		}
+	}
+
+	private void readLoop(Socket socket) {
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))){
+			while(!this.closed){
+				int length;
+				try{
+					length = in.readInt();
+				}catch(EOFException e){
+					break;
+				}
+				if(length < 0 || length > this.maxEnvelopeSize)
+					throw new IOException("Invalid envelope length: " + length);
+				byte[] envelope = new byte[length];
+				in.readFully(envelope);
+				this.receiver.accept(envelope);
+			}
+		}catch(IOException e){
+			if(!this.closed)
+				logger.debug("Connection from peer ", socket.getRemoteSocketAddress(), " failed: ", e.toString());
+		}finally{
+			this.inboundSockets.remove(socket);
+			closeSocket(socket);
+		}
+	}
+
+
+	private static void closeSocket(Socket socket) {
+		try{
+			socket.close();
+		}catch(IOException e){
+			logger.debug("Error while closing socket: ", e);
+		}
+	}
+
+
+	private class Peer {
+
+		private final InetSocketAddress address;
+
+		private volatile BlockingQueue<byte[]> queue;
+		private volatile Thread thread;
+		private volatile Socket socket;
+		private DataOutputStream out;
+		private long nextConnectAttempt = 0;
+
+		public Peer(InetSocketAddress address) {
+			this.address = address;
+		}
+
+
+		public void start(int capacity) {
+			this.queue = new ArrayBlockingQueue<>(capacity);
+			this.thread = new Thread(this::sendLoop, "TcpBridgeTransport-" + this.address);
+			this.thread.setDaemon(true);
+			this.thread.start();
+		}
+
+		public void enqueue(byte[] envelope) {
+			BlockingQueue<byte[]> queue = this.queue;
+			if(queue == null || !queue.offer(envelope))
+				TcpBridgeTransport.this.droppedEnvelopes.incrementAndGet();
+		}
+
+		public void stop() {
+			if(this.thread != null)
+				this.thread.interrupt();
+			// also aborts a connection attempt in progress
+			Socket socket = this.socket;
+			if(socket != null)
+				closeSocket(socket);
+		}
+
+		private void sendLoop() {
+			try{
+				while(!TcpBridgeTransport.this.closed){
+					byte[] envelope;
+					try{
+						envelope = this.queue.take();
+					}catch(InterruptedException e){
+						break;
+					}
+					this.send(envelope);
+				}
+			}finally{
+				this.disconnect();
+			}
+		}
+
+		private void send(byte[] envelope) {
+			if(this.out == null && !this.connect()){
+				TcpBridgeTransport.this.droppedEnvelopes.incrementAndGet();
+				return;
+			}
+			try{
+				this.out.writeInt(envelope.length);
+				this.out.write(envelope);
+				if(this.queue.isEmpty())
+					this.out.flush();
+			}catch(IOException e){
+				logger.debug("Failed to send envelope to peer ", this.address, ": ", e.toString());
+				this.disconnect();
+			}
+		}
+
+		private boolean connect() {
+			long now = System.currentTimeMillis();
+			if(now < this.nextConnectAttempt || TcpBridgeTransport.this.closed)
+				return false;
+			this.nextConnectAttempt = now + TcpBridgeTransport.this.reconnectDelay;
+			Socket socket = new Socket();
+			this.socket = socket;
+			try{
+				socket.setTcpNoDelay(true);
+				socket.connect(this.address, TcpBridgeTransport.this.connectTimeout);
+				this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				return true;
+			}catch(IOException e){
+				if(!TcpBridgeTransport.this.closed)
+					logger.debug("Failed to connect to peer ", this.address, ": ", e.toString());
+				this.disconnect();
+				return false;
+			}
+		}
+
+		private void disconnect() {
+			Socket socket = this.socket;
+			if(socket != null){
+				closeSocket(socket);
+				this.socket = null;
+				this.out = null;
+			}
+		}
+	}
+}
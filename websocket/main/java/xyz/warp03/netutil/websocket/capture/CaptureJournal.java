@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket.capture;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.omegazero.common.util.PropertyUtil;
+
+/**
+ * An append-only journal of WebSocket traffic, stored in a directory of memory-mapped segment files of a fixed size.<br>
+ * <br>
+ * Appending a record does not acquire any locks: space in the current segment is reserved with a single atomic operation, after which the record is copied into the mapped
+ * segment. Only the thread whose record crosses the end of a segment creates the next segment, while other threads appending at the same time wait for it.<br>
+ * <br>
+ * The number of segment files is limited: when a new segment would exceed the limit, the oldest segment file is deleted, so the journal only keeps the most recent traffic.
+ * Each segment is flushed to the storage device when it becomes full.<br>
+ * <br>
+ * <b>Journal format</b><br>
+ * Each segment starts with a {@value #SEGMENT_HEADER_SIZE}-byte header consisting of the magic number {@value #MAGIC}, a 4-byte version number and the wall clock time in
+ * milliseconds at which the journal was opened. The header is followed by records, each consisting of a 4-byte data length, a flags byte (see {@link #FLAG_OUTBOUND} and
+ * {@link #FLAG_CLIENT}), 3 reserved bytes, an 8-byte timestamp in nanoseconds relative to the time the journal was opened, the 8-byte id of the channel, and the data. Records
+ * are aligned to 8 bytes. A data length of <code>0</code> marks the end of the written records, a data length of <code>-1</code> marks the end of a segment. All numbers are
+ * big-endian.
+ *
+ * @see xyz.warp03.netutil.websocket.WebSocketChannel#setCaptureJournal(CaptureJournal)
+ * @see JournalReader
+ */
+public class CaptureJournal implements AutoCloseable {
+
+	private static final int defaultSegmentSize = PropertyUtil.getInt("xyz.warp03.netutil.websocket.captureSegmentSize", 64 << 20);
+	private static final int defaultMaxSegments = PropertyUtil.getInt("xyz.warp03.netutil.websocket.captureMaxSegments", 16);
+
+	private static final VarHandle INT_HANDLE = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+	/**
+	 * The magic number at the start of every segment file.
+	 */
+	public static final int MAGIC = 0x57534a4c;
+	/**
+	 * The version of the journal format.
+	 */
+	public static final int VERSION = 1;
+	/**
+	 * The size of the header of each segment file.
+	 */
+	public static final int SEGMENT_HEADER_SIZE = 16;
+	/**
+	 * The size of the header of each record.
+	 */
+	public static final int RECORD_HEADER_SIZE = 24;
+
+	/**
+	 * Record flag indicating that the data was sent by the channel. If not set, the data was received by the channel.
+	 */
+	public static final int FLAG_OUTBOUND = 0x1;
+	/**
+	 * Record flag indicating that the channel is the client side of the WebSocket connection.
+	 */
+	public static final int FLAG_CLIENT = 0x2;
+
+	static final String SEGMENT_FILE_PREFIX = "segment-";
+	static final String SEGMENT_FILE_SUFFIX = ".wsj";
+
+
+	private final Path directory;
+	private final int segmentSize;
+	private final int maxSegments;
+	private final long startTimeMillis;
+	private final long startTimeNanos;
+
+	private final AtomicLong droppedRecords = new AtomicLong();
+
+	private volatile Segment currentSegment;
+	private final Deque<Path> segmentFiles = new ArrayDeque<>();
+	private int nextSegmentIndex = 0;
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates a new <code>CaptureJournal</code> with the default segment size and maximum number of segments.
+	 *
+	 * @param directory The directory to create segment files in
+	 * @throws IOException If the directory or the first segment file could not be created
+	 * @see #CaptureJournal(Path, int, int)
+	 */
+	public CaptureJournal(Path directory) throws IOException {
+		this(directory, defaultSegmentSize);
+	}
+
+	/**
+	 * Creates a new <code>CaptureJournal</code> with the default maximum number of segments.
+	 *
+	 * @param directory   The directory to create segment files in
+	 * @param segmentSize The size of each segment file in bytes. Records larger than a segment are dropped
+	 * @throws IOException If the directory or the first segment file could not be created
+	 * @see #CaptureJournal(Path, int, int)
+	 */
+	public CaptureJournal(Path directory, int segmentSize) throws IOException {
+		this(directory, segmentSize, defaultMaxSegments);
+	}
+
+	/**
+	 * Creates a new <code>CaptureJournal</code>. Existing segment files in the <b>directory</b> are deleted.<br>
+	 * <br>
+	 * The default segment size and maximum number of segments are set using the <code>xyz.warp03.netutil.websocket.captureSegmentSize</code> (default 64MiB) and
+	 * <code>xyz.warp03.netutil.websocket.captureMaxSegments</code> (default 16) system properties.
+	 *
+	 * @param directory   The directory to create segment files in
+	 * @param segmentSize The size of each segment file in bytes. Records larger than a segment are dropped
+	 * @param maxSegments The maximum number of segment files kept in the <b>directory</b>. The oldest segment file is deleted when a new segment would exceed this number
+	 * @throws IOException If the directory or the first segment file could not be created
+	 */
+	public CaptureJournal(Path directory, int segmentSize, int maxSegments) throws IOException {
+		if(segmentSize < SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE)
+			throw new IllegalArgumentException("segmentSize is too small");
+		if(maxSegments <= 0)
+			throw new IllegalArgumentException("maxSegments must be positive");
+		this.maxSegments = maxSegments;
+		this.directory = Files.createDirectories(directory);
+		for(Path file : JournalReader.listSegments(this.directory))
+			Files.delete(file);
+		this.segmentSize = segmentSize & ~7;
+		this.startTimeMillis = System.currentTimeMillis();
+		this.startTimeNanos = System.nanoTime();
+		this.currentSegment = this.newSegment();
+	}
+
+
+	/**
+	 * Appends a record to this journal. If the journal is closed or the record does not fit into a segment, the record is dropped.
+	 *
+	 * @param channelId The id of the channel the data belongs to
+	 * @param flags     The record flags
+	 * @param data      The data
+	 * @param offset    The offset in <b>data</b> to start at
+	 * @param length    The number of bytes of <b>data</b> to append
+	 * @throws UncheckedIOException If a new segment file could not be created or the oldest segment file could not be deleted
+	 */
+	public void append(long channelId, int flags, byte[] data, int offset, int length) {
+		this.append0(channelId, flags, data, offset, null, length);
+	}
+
+	/**
+	 * Appends a record to this journal.
+	 *
+	 * @param channelId The id of the channel the data belongs to
+	 * @param flags     The record flags
+	 * @param data      The data
+	 * @see #append(long, int, byte[], int, int)
+	 */
+	public void append(long channelId, int flags, byte[] data) {
+		this.append(channelId, flags, data, 0, data.length);
+	}
+
+	/**
+	 * Appends a record containing the remaining bytes of the given buffer to this journal. The position of <b>data</b> is not changed.
+	 *
+	 * @param channelId The id of the channel the data belongs to
+	 * @param flags     The record flags
+	 * @param data      The data
+	 * @see #append(long, int, byte[], int, int)
+	 */
+	public void append(long channelId, int flags, ByteBuffer data) {
+		this.append0(channelId, flags, null, 0, data, data.remaining());
+	}
+
+	private void append0(long channelId, int flags, byte[] array, int offset, ByteBuffer buffer, int length) {
+		if(this.closed)
+			return;
+		long timestamp = System.nanoTime() - this.startTimeNanos;
+		int recordSize = (RECORD_HEADER_SIZE + length + 7) & ~7;
+		if(length <= 0 || recordSize > this.segmentSize - SEGMENT_HEADER_SIZE){
+			if(length > 0)
+				this.droppedRecords.incrementAndGet();
+			return;
+		}
+		while(true){
+			Segment segment = this.currentSegment;
+			long position = segment.tail.getAndAdd(recordSize);
+			if(position + recordSize <= this.segmentSize){
+				if(buffer != null)
+					segment.write((int) position, length, flags, timestamp, channelId, buffer);
+				else
+					segment.write((int) position, length, flags, timestamp, channelId, array, offset);
+				return;
+			}else if(position <= this.segmentSize){
+				// this record is the first one that does not fit: this thread is responsible for starting the next segment
+				if(position + 4 <= this.segmentSize)
+					INT_HANDLE.setRelease(segment.buffer, (int) position, -1);
+				this.rollSegment(segment);
+			}else{
+				while(this.currentSegment == segment && !this.closed)
+					Thread.onSpinWait();
+			}
+			if(this.closed)
+				return;
+		}
+	}
+
+
+	private synchronized void rollSegment(Segment full) {
+		if(this.currentSegment != full)
+			return;
+		try{
+			this.currentSegment = this.newSegment();
+		}catch(IOException e){
+			this.closed = true;
+			throw new UncheckedIOException("Failed to create new journal segment", e);
+		}
+		// appenders that reserved space in the full segment before it was replaced may still be copying their records, but those are written back by the operating system
+		// eventually anyway; the mapping itself is released once the segment is garbage collected
+		full.buffer.force();
+		while(this.segmentFiles.size() > this.maxSegments){
+			Path oldest = this.segmentFiles.removeFirst();
+			try{
+				Files.deleteIfExists(oldest);
+			}catch(IOException e){
+				this.closed = true;
+				throw new UncheckedIOException("Failed to delete old journal segment", e);
+			}
+		}
+	}
+
+	private Segment newSegment() throws IOException {
+		Path file = this.directory.resolve(String.format("%s%08d%s", SEGMENT_FILE_PREFIX, this.nextSegmentIndex++, SEGMENT_FILE_SUFFIX));
+		MappedByteBuffer buffer;
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)){
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.segmentSize);
+		}
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		buffer.putLong(8, this.startTimeMillis);
+		this.segmentFiles.addLast(file);
+		return new Segment(buffer);
+	}
+
+
+	/**
+	 * Flushes the current segment to the storage device.
+	 */
+	public void flush() {
+		this.currentSegment.buffer.force();
+	}
+
+	/**
+	 * Closes this journal. Records appended after calling this method are dropped.
+	 */
+	@Override
+	public synchronized void close() {
+		if(this.closed)
+			return;
+		this.closed = true;
+		this.flush();
+	}
+
+
+	/**
+	 *
+	 * @return The directory segment files of this journal are stored in
+	 */
+	public Path getDirectory() {
+		return this.directory;
+	}
+
+	/**
+	 *
+	 * @return The number of records that were dropped because they were larger than a segment
+	 */
+	public long getDroppedRecords() {
+		return this.droppedRecords.get();
+	}
+
+
+	private static class Segment {
+
+		public final MappedByteBuffer buffer;
+		public final AtomicLong tail = new AtomicLong(SEGMENT_HEADER_SIZE);
+
+		public Segment(MappedByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+
+		public void write(int position, int length, int flags, long timestamp, long channelId, byte[] data, int offset) {
+			ByteBuffer buf = this.writeHeader(position, flags, timestamp, channelId);
+			buf.put(data, offset, length);
+			// the length is written last, so readers never see a partially written record
+			INT_HANDLE.setRelease(this.buffer, position, length);
+		}
+
+		public void write(int position, int length, int flags, long timestamp, long channelId, ByteBuffer data) {
+			ByteBuffer buf = this.writeHeader(position, flags, timestamp, channelId);
+			int dataPosition = data.position();
+			buf.put(data);
+			data.position(dataPosition);
+			INT_HANDLE.setRelease(this.buffer, position, length);
+		}
+
+		private ByteBuffer writeHeader(int position, int flags, long timestamp, long channelId) {
+			ByteBuffer buf = this.buffer.duplicate();
+			buf.position(position + 4);
+			buf.put((byte) flags);
+			buf.position(position + 8);
+			buf.putLong(timestamp);
+			buf.putLong(channelId);
+			return buf;
+		}
+	}
+}
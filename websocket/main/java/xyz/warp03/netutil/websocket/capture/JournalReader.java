@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket.capture;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Reads the records of a {@link CaptureJournal} in the order they were appended.
+ */
+public class JournalReader {
+
+	private final Iterator<Path> segments;
+
+	private MappedByteBuffer currentSegment;
+	private long startTimeMillis = -1;
+
+	/**
+	 * Creates a new <code>JournalReader</code> reading the segment files in the given <b>directory</b>.
+	 *
+	 * @param directory The directory of the journal
+	 * @throws IOException If the directory could not be listed
+	 */
+	public JournalReader(Path directory) throws IOException {
+		this.segments = listSegments(directory).iterator();
+	}
+
+
+	/**
+	 * Reads the next record.
+	 *
+	 * @return The next record, or <code>null</code> if there are no more records
+	 * @throws IOException If a segment file could not be read or is invalid
+	 */
+	public JournalRecord next() throws IOException {
+		while(true){
+			if(this.currentSegment == null){
+				if(!this.segments.hasNext())
+					return null;
+				this.currentSegment = openSegment(this.segments.next());
+				this.startTimeMillis = this.currentSegment.getLong(8);
+			}
+			MappedByteBuffer buf = this.currentSegment;
+			int length = buf.remaining() >= CaptureJournal.RECORD_HEADER_SIZE ? buf.getInt(buf.position()) : 0;
+			if(length <= 0){
+				// end of segment, or end of written records (for example, because the journal was not closed properly)
+				this.currentSegment = null;
+				continue;
+			}
+			if(length > buf.remaining() - CaptureJournal.RECORD_HEADER_SIZE)
+				throw new IOException("Invalid record length " + length + " at position " + buf.position());
+			int start = buf.position();
+			buf.getInt();
+			int flags = buf.get() & 0xff;
+			buf.position(start + 8);
+			long timestamp = buf.getLong();
+			long channelId = buf.getLong();
+			byte[] data = new byte[length];
+			buf.get(data);
+			buf.position(Math.min(buf.limit(), (buf.position() + 7) & ~7));
+			return new JournalRecord(channelId, flags, timestamp, data);
+		}
+	}
+
+
+	/**
+	 *
+	 * @return The wall clock time in milliseconds at which the journal was opened, or <code>-1</code> if no segment has been read yet
+	 */
+	public long getStartTimeMillis() {
+		return this.startTimeMillis;
+	}
+
+
+	private static MappedByteBuffer openSegment(Path file) throws IOException {
+		MappedByteBuffer buf;
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if(buf.remaining() < CaptureJournal.SEGMENT_HEADER_SIZE || buf.getInt(0) != CaptureJournal.MAGIC)
+			throw new IOException("Not a journal segment: " + file);
+		if(buf.getInt(4) != CaptureJournal.VERSION)
+			throw new IOException("Unsupported journal version " + buf.getInt(4) + ": " + file);
+		buf.position(CaptureJournal.SEGMENT_HEADER_SIZE);
+		return buf;
+	}
+
+	static List<Path> listSegments(Path directory) throws IOException {
+		List<Path> segments = new ArrayList<>();
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+				CaptureJournal.SEGMENT_FILE_PREFIX + "*" + CaptureJournal.SEGMENT_FILE_SUFFIX)){
+			for(Path file : stream)
+				segments.add(file);
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket.capture;
+
+/**
+ * A single record read from a {@link CaptureJournal}.
+ */
+public class JournalRecord {
+
+	private final long channelId;
+	private final int flags;
+	private final long timestamp;
+	private final byte[] data;
+
+	public JournalRecord(long channelId, int flags, long timestamp, byte[] data) {
+		this.channelId = channelId;
+		this.flags = flags;
+		this.timestamp = timestamp;
+		this.data = data;
+	}
+
+
+	/**
+	 *
+	 * @return The id of the channel the data belongs to
+	 */
+	public long getChannelId() {
+		return this.channelId;
+	}
+
+	/**
+	 *
+	 * @return The record flags
+	 */
+	public int getFlags() {
+		return this.flags;
+	}
+
+	/**
+	 *
+	 * @return <code>true</code> if the data was sent by the channel, <code>false</code> if it was received
+	 */
+	public boolean isOutbound() {
+		return (this.flags & CaptureJournal.FLAG_OUTBOUND) != 0;
+	}
+
+	/**
+	 *
+	 * @return <code>true</code> if the channel is the client side of the WebSocket connection
+	 */
+	public boolean isClient() {
+		return (this.flags & CaptureJournal.FLAG_CLIENT) != 0;
+	}
+
+	/**
+	 *
+	 * @return The time in nanoseconds between opening the journal and appending this record
+	 */
+	public long getTimestamp() {
+		return this.timestamp;
+	}
+
+	/**
+	 * Returns the captured data. For outbound records, this is one or more complete WebSocket frames as written to the connection. For inbound records, this is the data as
+	 * received from the connection in a single read event, which may contain partial frames.
+	 *
+	 * @return The data
+	 */
+	public byte[] getData() {
+		return this.data;
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket.capture;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongFunction;
+
+import xyz.warp03.netutil.websocket.WebSocketChannel;
+
+/**
+ * Replays the traffic recorded in a {@link CaptureJournal}.<br>
+ * <br>
+ * The data of the selected records is written unchanged to the connections of target channels, preserving the original chunking of the data and, unless a different
+ * speed is set, the original timing. For example, to replay the traffic a <code>WebSocketServer</code> received, inbound records of a journal captured on the server are
+ * replayed to new {@link xyz.warp03.netutil.websocket.WebSocketClient}s connected to the server under test. Since the data consists of raw WebSocket frames, the target
+ * channels must be on the same side of the connection as the peer that originally sent the data.
+ */
+public class JournalReplayer {
+
+	private final Path directory;
+
+	private double speed = 1;
+	private boolean replayOutbound = false;
+
+	/**
+	 * Creates a new <code>JournalReplayer</code>.
+	 *
+	 * @param directory The directory of the journal
+	 */
+	public JournalReplayer(Path directory) {
+		this.directory = directory;
+	}
+
+
+	/**
+	 *
+	 * @param speed The replay speed relative to the original timing. If <code>0</code>, records are replayed as fast as possible. Default is <code>1</code>
+	 */
+	public void setSpeed(double speed) {
+		if(speed < 0)
+			throw new IllegalArgumentException("speed must not be negative");
+		this.speed = speed;
+	}
+
+	/**
+	 *
+	 * @param replayOutbound If <code>true</code>, data sent by the captured channels is replayed; otherwise, data received by the captured channels is replayed. Default is
+	 *                       <code>false</code>
+	 */
+	public void setReplayOutbound(boolean replayOutbound) {
+		this.replayOutbound = replayOutbound;
+	}
+
+
+	/**
+	 * Replays the journal. This method blocks until all records were replayed.<br>
+	 * <br>
+	 * For each channel id in the journal, <b>targets</b> is called once with the id to get the channel to write the data of that channel to. If it returns
+	 * <code>null</code>, all records of that channel are skipped.
+	 *
+	 * @param targets The function returning the target channel for each captured channel id
+	 * @return The number of records replayed
+	 * @throws IOException              If the journal could not be read
+	 * @throws InterruptedException     If the calling thread was interrupted
+	 * @throws IllegalArgumentException If a target channel is on the wrong side of the connection for the data of the captured channel
+	 */
+	public long replay(LongFunction<WebSocketChannel> targets) throws IOException, InterruptedException {
+		JournalReader reader = new JournalReader(this.directory);
+		Map<Long, WebSocketChannel> channels = new HashMap<>();
+		long firstTimestamp = -1;
+		long start = System.nanoTime();
+		long count = 0;
+		JournalRecord record;
+		while((record = reader.next()) != null){
+			if(record.isOutbound() != this.replayOutbound)
+				continue;
+			long channelId = record.getChannelId();
+			WebSocketChannel target;
+			if(channels.containsKey(channelId)){
+				target = channels.get(channelId);
+			}else{
+				target = targets.apply(channelId);
+				// the data was sent by the captured channel for outbound records, and by its peer for inbound records
+				if(target != null && target.isClient() != (record.isClient() == this.replayOutbound))
+					throw new IllegalArgumentException("Target channel for channel " + channelId + " is on the wrong side of the connection");
+				channels.put(channelId, target);
+			}
+			if(target == null)
+				continue;
+
+			if(firstTimestamp < 0)
+				firstTimestamp = record.getTimestamp();
+			if(this.speed > 0){
+				long due = start + (long) ((record.getTimestamp() - firstTimestamp) / this.speed);
+				long wait;
+				while((wait = due - System.nanoTime()) > 0){
+					LockSupport.parkNanos(wait);
+					if(Thread.interrupted())
+						throw new InterruptedException();
+				}
+			}
+			target.getConnection().write(record.getData());
+			count++;
+		}
+		return count;
+	}
+}
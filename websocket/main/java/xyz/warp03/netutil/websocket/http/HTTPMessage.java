@@ -7,6 +7,8 @@
 package xyz.warp03.netutil.websocket.http;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -17,6 +19,8 @@ public class HTTPMessage {
 	private final String startLine;
 	private final Map<String, String> headers = new HashMap<>();
 	private final byte[] data;
+	// not part of the message; used to pass information from handshake callbacks to the WebSocketChannel
+	private Map<String, Object> attributes;
 
 	private String[] startLineSplit;
 
@@ -46,6 +50,10 @@ public class HTTPMessage {
 		return this.headers.containsKey(Objects.requireNonNull(key));
 	}
 
+	public Map<String, String> getHeaders() {
+		return Collections.unmodifiableMap(this.headers);
+	}
+
 	public String getStartLine() {
 		return this.startLine;
 	}
@@ -60,21 +68,51 @@ public class HTTPMessage {
 		return this.data;
 	}
 
+	public void setAttribute(String key, Object value) {
+		Objects.requireNonNull(key);
+		if(value != null){
+			if(this.attributes == null)
+				this.attributes = new HashMap<>();
+			this.attributes.put(key, value);
+		}else if(this.attributes != null)
+			this.attributes.remove(key);
+	}
 
-	@Override
-	public String toString() {
+	public Object getAttribute(String key) {
+		return this.attributes != null ? this.attributes.get(Objects.requireNonNull(key)) : null;
+	}
+
+	public Map<String, Object> getAttributes() {
+		return this.attributes != null ? Collections.unmodifiableMap(this.attributes) : Collections.emptyMap();
+	}
+
+
+	private String headerString() {
 		StringBuilder sb = new StringBuilder();
 		sb.append(this.startLine).append("\r\n");
 		for(Entry<String, String> header : this.headers.entrySet()){
 			sb.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
 		}
 		sb.append("\r\n");
-		if(this.data != null)
-			sb.append(new String(this.data));
 		return sb.toString();
 	}
 
+	@Override
+	public String toString() {
+		String headers = this.headerString();
+		return this.data != null ? headers + new String(this.data) : headers;
+	}
+
+	public byte[] toHeaderBytes() {
+		return this.headerString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
 	public byte[] toBytes() {
-		return this.toString().getBytes(StandardCharsets.ISO_8859_1);
+		byte[] header = this.toHeaderBytes();
+		if(this.data == null)
+			return header;
+		byte[] bytes = Arrays.copyOf(header, header.length + this.data.length);
+		System.arraycopy(this.data, 0, bytes, header.length, this.data.length);
+		return bytes;
 	}
 }
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Emitted when a WebSocket channel closed.
+ */
+@Name("xyz.warp03.netutil.websocket.Close")
+@Label("WebSocket Close")
+@Category({ "WebSocket" })
+@Enabled(false)
+@StackTrace(false)
+public final class CloseEvent extends Event {
+
+	/**
+	 * The close handshake was started by this side.
+	 */
+	public static final String INITIATOR_LOCAL = "local";
+	/**
+	 * The close handshake was started by the peer.
+	 */
+	public static final String INITIATOR_REMOTE = "remote";
+	/**
+	 * The underlying connection closed without a close handshake.
+	 */
+	public static final String INITIATOR_TRANSPORT = "transport";
+
+
+	@Label("Channel ID")
+	public long channelId;
+
+	@Label("Status Code")
+	public int code;
+
+	@Label("Initiator")
+	public String initiator;
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.SettingDefinition;
+import jdk.jfr.StackTrace;
+
+/**
+ * Emitted when a WebSocket frame was received completely.
+ */
+@Name("xyz.warp03.netutil.websocket.FrameDecoded")
+@Label("WebSocket Frame Decoded")
+@Category({ "WebSocket" })
+@Enabled(false)
+@StackTrace(false)
+public final class FrameDecodedEvent extends Event {
+
+	@Label("Channel ID")
+	public long channelId;
+
+	@Label("Opcode")
+	public int opcode;
+
+	@Label("FIN")
+	public boolean fin;
+
+	@Label("Payload Size")
+	@DataAmount
+	public long size;
+
+	@Label("Masked")
+	public boolean masked;
+
+
+	@Name("minSize")
+	@Label("Minimum Payload Size")
+	@SettingDefinition
+	protected boolean minSize(MinSizeSetting setting) {
+		return setting.accept(this.size);
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Emitted when a WebSocket handshake completes or fails. The duration is the time taken to process the handshake request on the server, or the time between sending the
+ * handshake request and receiving the response on the client.
+ */
+@Name("xyz.warp03.netutil.websocket.Handshake")
+@Label("WebSocket Handshake")
+@Category({ "WebSocket" })
+@Enabled(false)
+@StackTrace(false)
+@Threshold("0 ms")
+public final class HandshakeEvent extends Event {
+
+	/**
+	 * The handshake completed successfully.
+	 */
+	public static final String OUTCOME_ACCEPTED = "accepted";
+	/**
+	 * The handshake request was rejected by the application.
+	 */
+	public static final String OUTCOME_REJECTED = "rejected";
+	/**
+	 * The handshake request or response was invalid.
+	 */
+	public static final String OUTCOME_INVALID = "invalid";
+
+
+	@Label("Client")
+	@Description("Whether the handshake was done by the client side of the connection")
+	public boolean client;
+
+	@Label("Outcome")
+	public String outcome;
+
+	@Label("Remote Address")
+	public String remoteAddress;
+
+	@Label("Resource")
+	public String resource;
+
+	@Label("Protocol")
+	@Description("The negotiated subprotocol")
+	public String protocol;
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.SettingDefinition;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Emitted when a complete message was passed to the message handler of a channel. The duration is the time the handler took.
+ */
+@Name("xyz.warp03.netutil.websocket.MessageDelivered")
+@Label("WebSocket Message Delivered")
+@Category({ "WebSocket" })
+@Enabled(false)
+@StackTrace(false)
+@Threshold("0 ms")
+public final class MessageDeliveredEvent extends Event {
+
+	@Label("Channel ID")
+	public long channelId;
+
+	@Label("Message Size")
+	@DataAmount
+	public long size;
+
+	@Label("Binary")
+	public boolean binary;
+
+	@Label("Direct")
+	@Description("Whether the message was delivered as a DirectMessage")
+	public boolean direct;
+
+	@Label("Spilled")
+	@Description("Whether the message was delivered as a SpilledMessage")
+	public boolean spilled;
+
+
+	@Name("minSize")
+	@Label("Minimum Message Size")
+	@SettingDefinition
+	protected boolean minSize(MinSizeSetting setting) {
+		return setting.accept(this.size);
+	}
+}
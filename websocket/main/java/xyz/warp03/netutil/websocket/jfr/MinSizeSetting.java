@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket.jfr;
+
+import java.util.Set;
+
+import jdk.jfr.SettingControl;
+
+/**
+ * A JFR setting for events that have a size, which only accepts events whose size is at least the configured number of bytes. The default value is <code>0</code>.
+ */
+public final class MinSizeSetting extends SettingControl {
+
+	private volatile long minSize = 0;
+
+
+	@Override
+	public String combine(Set<String> values) {
+		// if multiple recordings are running, record what any of them wants
+		long min = Long.MAX_VALUE;
+		for(String value : values)
+			min = Math.min(min, parse(value));
+		return values.isEmpty() ? "0" : String.valueOf(min);
+	}
+
+	@Override
+	public void setValue(String value) {
+		this.minSize = parse(value);
+	}
+
+	@Override
+	public String getValue() {
+		return String.valueOf(this.minSize);
+	}
+
+
+	/**
+	 *
+	 * @param size The size of an event
+	 * @return <code>true</code> if an event of the given <b>size</b> should be recorded
+	 */
+	public boolean accept(long size) {
+		return size >= this.minSize;
+	}
+
+
+	private static long parse(String value) {
+		try{
+			return Math.max(0, Long.parseLong(value.trim()));
+		}catch(NumberFormatException e){
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket.load;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import org.omegazero.net.client.NetClientManager;
+
+import xyz.warp03.netutil.websocket.NioWebSocketEngine;
+import xyz.warp03.netutil.websocket.WebSocketServer;
+import xyz.warp03.netutil.websocket.capture.CaptureJournal;
+
+/**
+ * Measures the throughput cost of traffic capture, by running the same {@link LoadGenerator} workload twice against an echo server served by a {@link NioWebSocketEngine}
+ * over the loopback interface, first without capture, then with every server channel appending its traffic to a {@link CaptureJournal}.<br>
+ * <br>
+ * To measure the cost at full load, the message rate must be high enough that the server can not echo every message in time, otherwise both runs deliver the configured rate
+ * and only differ in latency.
+ */
+public class CaptureBenchmark {
+
+	private final NetClientManager clientManager;
+	private final Path journalDirectory;
+
+	private int selectorThreads = Runtime.getRuntime().availableProcessors();
+	private Consumer<LoadGenerator> loadConfiguration = (generator) -> {
+	};
+
+	private volatile CaptureJournal journal;
+
+	/**
+	 * Creates a new <code>CaptureBenchmark</code>.
+	 *
+	 * @param clientManager    The client manager to create load generator connections with
+	 * @param journalDirectory The directory to create the journal in. Existing segment files in this directory are deleted
+	 */
+	public CaptureBenchmark(NetClientManager clientManager, Path journalDirectory) {
+		this.clientManager = Objects.requireNonNull(clientManager);
+		this.journalDirectory = Objects.requireNonNull(journalDirectory);
+	}
+
+
+	/**
+	 *
+	 * @param selectorThreads The number of selector threads of the engine. Default is the number of available processors
+	 */
+	public void setSelectorThreads(int selectorThreads) {
+		this.selectorThreads = selectorThreads;
+	}
+
+	/**
+	 * Sets a callback that configures the workload (connections, message size and rate, duration) of each {@link LoadGenerator} before it is run. By default, the defaults of
+	 * <code>LoadGenerator</code> are used.
+	 *
+	 * @param loadConfiguration The callback
+	 */
+	public void setLoadConfiguration(Consumer<LoadGenerator> loadConfiguration) {
+		this.loadConfiguration = Objects.requireNonNull(loadConfiguration);
+	}
+
+
+	/**
+	 * Runs the workload without capture, then with capture. The journal is closed after the second run; its segment files are left in the journal directory.
+	 *
+	 * @return The results of both runs, with the run without capture as the baseline
+	 * @throws IOException          If the engine or the journal could not be created
+	 * @throws InterruptedException If the calling thread is interrupted while waiting
+	 */
+	public LoadComparison run() throws IOException, InterruptedException {
+		WebSocketServer server = new WebSocketServer();
+		server.setOnClient((channel) -> {
+			LoadGenerator.echo(channel);
+			channel.setCaptureJournal(this.journal);
+		});
+		try(NioWebSocketEngine engine = new NioWebSocketEngine(server, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))){
+			engine.setSelectorThreads(this.selectorThreads);
+			engine.start();
+			int port = ((InetSocketAddress) engine.getLocalAddress()).getPort();
+			this.journal = null;
+			LoadReport plainReport = this.runLoad(port);
+			LoadReport captureReport;
+			try(CaptureJournal journal = new CaptureJournal(this.journalDirectory)){
+				this.journal = journal;
+				captureReport = this.runLoad(port);
+			}finally{
+				this.journal = null;
+			}
+			return new LoadComparison("no capture", plainReport, "capture", captureReport);
+		}
+	}
+
+	private LoadReport runLoad(int port) throws IOException, InterruptedException {
+		LoadGenerator generator = new LoadGenerator(this.clientManager, new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), port, "/"));
+		this.loadConfiguration.accept(generator);
+		return generator.run();
+	}
+}
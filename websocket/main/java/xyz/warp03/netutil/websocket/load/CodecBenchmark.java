@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket.load;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import org.omegazero.net.client.NetClientManager;
+
+import xyz.warp03.netutil.websocket.MessageCodec;
+import xyz.warp03.netutil.websocket.NioWebSocketEngine;
+import xyz.warp03.netutil.websocket.WebSocketChannel;
+import xyz.warp03.netutil.websocket.WebSocketServer;
+
+/**
+ * Compares sending messages with {@link WebSocketChannel#write(byte[])} to encoding them directly into the frame with a {@link MessageCodec}, by running the same
+ * {@link LoadGenerator} workload twice against an echo server served by a {@link NioWebSocketEngine} over the loopback interface, first with
+ * {@link LoadGenerator#setUseCodec(boolean) setUseCodec(false)}, then with <code>setUseCodec(true)</code>.<br>
+ * <br>
+ * The codec only affects the sending side of the load generator, so the client side should be the bottleneck: the message rate must be high enough that the load generator
+ * can not send every message in time, otherwise both runs deliver the configured rate and only differ in latency.
+ */
+public class CodecBenchmark {
+
+	private final NetClientManager clientManager;
+
+	private int selectorThreads = Runtime.getRuntime().availableProcessors();
+	private Consumer<LoadGenerator> loadConfiguration = (generator) -> {
+	};
+
+	/**
+	 * Creates a new <code>CodecBenchmark</code>.
+	 *
+	 * @param clientManager The client manager to create load generator connections with
+	 */
+	public CodecBenchmark(NetClientManager clientManager) {
+		this.clientManager = Objects.requireNonNull(clientManager);
+	}
+
+
+	/**
+	 *
+	 * @param selectorThreads The number of selector threads of the engine. Default is the number of available processors
+	 */
+	public void setSelectorThreads(int selectorThreads) {
+		this.selectorThreads = selectorThreads;
+	}
+
+	/**
+	 * Sets a callback that configures the workload (connections, message size and rate, duration) of each {@link LoadGenerator} before it is run. By default, the defaults of
+	 * <code>LoadGenerator</code> are used.
+	 *
+	 * @param loadConfiguration The callback
+	 */
+	public void setLoadConfiguration(Consumer<LoadGenerator> loadConfiguration) {
+		this.loadConfiguration = Objects.requireNonNull(loadConfiguration);
+	}
+
+
+	/**
+	 * Runs the workload with <code>write(byte[])</code>, then with the codec.
+	 *
+	 * @return The results of both runs, with the <code>write(byte[])</code> run as the baseline
+	 * @throws IOException          If the engine could not be started
+	 * @throws InterruptedException If the calling thread is interrupted while waiting
+	 */
+	public LoadComparison run() throws IOException, InterruptedException {
+		WebSocketServer server = new WebSocketServer();
+		server.setOnClient(LoadGenerator::echo);
+		try(NioWebSocketEngine engine = new NioWebSocketEngine(server, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))){
+			engine.setSelectorThreads(this.selectorThreads);
+			engine.start();
+			int port = ((InetSocketAddress) engine.getLocalAddress()).getPort();
+			LoadReport arrayReport = this.runLoad(port, false);
+			LoadReport codecReport = this.runLoad(port, true);
+			return new LoadComparison("write(byte[])", arrayReport, "MessageCodec", codecReport);
+		}
+	}
+
+	private LoadReport runLoad(int port, boolean useCodec) throws IOException, InterruptedException {
+		LoadGenerator generator = new LoadGenerator(this.clientManager, new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), port, "/"));
+		this.loadConfiguration.accept(generator);
+		generator.setUseCodec(useCodec);
+		return generator.run();
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket.load;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import org.omegazero.net.client.NetClientManager;
+import org.omegazero.net.server.NetServer;
+
+import xyz.warp03.netutil.websocket.NioWebSocketEngine;
+import xyz.warp03.netutil.websocket.WebSocketServer;
+
+/**
+ * Compares a {@link WebSocketServer} served by an omz-net-lib {@link NetServer} with the same server served by a {@link NioWebSocketEngine}, by running the same
+ * {@link LoadGenerator} workload against an echo server on each over the loopback interface, one after the other.<br>
+ * <br>
+ * The <code>NetServer</code> must already be listening on the loopback interface on the given port. The connection callback of the <code>NetServer</code> is replaced by this
+ * benchmark. The engine is started on an ephemeral loopback port for the duration of its run.
+ */
+public class EngineBenchmark {
+
+	private final NetClientManager clientManager;
+	private final NetServer netServer;
+	private final int netServerPort;
+
+	private int selectorThreads = Runtime.getRuntime().availableProcessors();
+	private NioWebSocketEngine.Balancing balancing = NioWebSocketEngine.Balancing.ROUND_ROBIN;
+	private Consumer<LoadGenerator> loadConfiguration = (generator) -> {
+	};
+
+	/**
+	 * Creates a new <code>EngineBenchmark</code>.
+	 *
+	 * @param clientManager The client manager to create load generator connections with
+	 * @param netServer     The <code>NetServer</code> to compare the engine with
+	 * @param netServerPort The loopback port the <code>NetServer</code> listens on
+	 */
+	public EngineBenchmark(NetClientManager clientManager, NetServer netServer, int netServerPort) {
+		this.clientManager = Objects.requireNonNull(clientManager);
+		this.netServer = Objects.requireNonNull(netServer);
+		this.netServerPort = netServerPort;
+	}
+
+
+	/**
+	 *
+	 * @param selectorThreads The number of selector threads of the engine. Default is the number of available processors
+	 */
+	public void setSelectorThreads(int selectorThreads) {
+		this.selectorThreads = selectorThreads;
+	}
+
+	/**
+	 *
+	 * @param balancing The connection balancing strategy of the engine. Default is {@link NioWebSocketEngine.Balancing#ROUND_ROBIN}
+	 */
+	public void setBalancing(NioWebSocketEngine.Balancing balancing) {
+		this.balancing = Objects.requireNonNull(balancing);
+	}
+
+	/**
+	 * Sets a callback that configures the workload (connections, message size and rate, duration) of each {@link LoadGenerator} before it is run. By default, the defaults of
+	 * <code>LoadGenerator</code> are used.
+	 *
+	 * @param loadConfiguration The callback
+	 */
+	public void setLoadConfiguration(Consumer<LoadGenerator> loadConfiguration) {
+		this.loadConfiguration = Objects.requireNonNull(loadConfiguration);
+	}
+
+
+	/**
+	 * Runs the workload against the <code>NetServer</code>, then against the engine.
+	 *
+	 * @return The results of both runs
+	 * @throws IOException          If the engine could not be started
+	 * @throws InterruptedException If the calling thread is interrupted while waiting
+	 */
+	public Result run() throws IOException, InterruptedException {
+		WebSocketServer netServerWs = newEchoServer();
+		this.netServer.setConnectionCallback(netServerWs::newConnection);
+		LoadReport netServerReport = this.runLoad(this.netServerPort);
+
+		LoadReport engineReport;
+		try(NioWebSocketEngine engine = new NioWebSocketEngine(newEchoServer(), new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))){
+			engine.setSelectorThreads(this.selectorThreads);
+			engine.setBalancing(this.balancing);
+			engine.start();
+			engineReport = this.runLoad(((InetSocketAddress) engine.getLocalAddress()).getPort());
+		}
+		return new Result(netServerReport, engineReport);
+	}
+
+	private LoadReport runLoad(int port) throws IOException, InterruptedException {
+		LoadGenerator generator = new LoadGenerator(this.clientManager, new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), port, "/"));
+		this.loadConfiguration.accept(generator);
+		return generator.run();
+	}
+
+
+	private static WebSocketServer newEchoServer() {
+		WebSocketServer server = new WebSocketServer();
+		server.setOnClient(LoadGenerator::echo);
+		return server;
+	}
+
+
+	/**
+	 * The results of an {@link EngineBenchmark} run.
+	 */
+	public static class Result {
+
+		private final LoadReport netServerReport;
+		private final LoadReport engineReport;
+
+		Result(LoadReport netServerReport, LoadReport engineReport) {
+			this.netServerReport = netServerReport;
+			this.engineReport = engineReport;
+		}
+
+
+		/**
+		 *
+		 * @return The results of the run against the <code>NetServer</code>
+		 */
+		public LoadReport getNetServerReport() {
+			return this.netServerReport;
+		}
+
+		/**
+		 *
+		 * @return The results of the run against the engine
+		 */
+		public LoadReport getEngineReport() {
+			return this.engineReport;
+		}
+
+		/**
+		 *
+		 * @return The message throughput of the engine divided by the message throughput of the <code>NetServer</code>
+		 */
+		public double getThroughputRatio() {
+			return this.engineReport.getMessageThroughput() / this.netServerReport.getMessageThroughput();
+		}
+
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("== NetServer ==\n").append(this.netServerReport);
+			sb.append("== NioWebSocketEngine ==\n").append(this.engineReport);
+			sb.append(String.format("throughput ratio (engine / NetServer): %.3f%n", this.getThroughputRatio()));
+			return sb.toString();
+		}
+	}
+}
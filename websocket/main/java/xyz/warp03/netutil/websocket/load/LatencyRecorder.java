@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket.load;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe, fixed-size histogram for recording latencies, similar to an <i>HdrHistogram</i>.<br>
+ * <br>
+ * Values are counted in log-linear buckets: values below <code>2^precisionBits</code> are counted exactly, larger values are counted with a relative error of at most
+ * <code>2^-(precisionBits - 1)</code>. Recording a value does not allocate and never blocks.
+ */
+public class LatencyRecorder {
+
+	private final int subBucketBits;
+	private final int subBucketCount;
+	private final int subBucketHalfCount;
+
+	private final AtomicLongArray counts;
+	private final AtomicLong totalCount = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong max = new AtomicLong(0);
+
+	/**
+	 * Creates a new <code>LatencyRecorder</code> with a relative error of less than 1%.
+	 */
+	public LatencyRecorder() {
+		this(8);
+	}
+
+	/**
+	 * Creates a new <code>LatencyRecorder</code>.
+	 *
+	 * @param precisionBits The number of bits of a value that are recorded exactly. Must be between <code>2</code> and <code>16</code>
+	 */
+	public LatencyRecorder(int precisionBits) {
+		if(precisionBits < 2 || precisionBits > 16)
+			throw new IllegalArgumentException("precisionBits must be between 2 and 16");
+		this.subBucketBits = precisionBits;
+		this.subBucketCount = 1 << precisionBits;
+		this.subBucketHalfCount = this.subBucketCount >> 1;
+		this.counts = new AtomicLongArray(this.subBucketCount + (64 - precisionBits) * this.subBucketHalfCount);
+	}
+
+
+	/**
+	 * Records the given <b>value</b>. Negative values are recorded as <code>0</code>.
+	 *
+	 * @param value The value, usually a duration in nanoseconds
+	 */
+	public void record(long value) {
+		if(value < 0)
+			value = 0;
+		this.counts.incrementAndGet(this.indexOf(value));
+		this.totalCount.incrementAndGet();
+		this.sum.addAndGet(value);
+		this.min.accumulateAndGet(value, Math::min);
+		this.max.accumulateAndGet(value, Math::max);
+	}
+
+	/**
+	 * Removes all recorded values.
+	 */
+	public void reset() {
+		for(int i = 0; i < this.counts.length(); i++)
+			this.counts.set(i, 0);
+		this.totalCount.set(0);
+		this.sum.set(0);
+		this.min.set(Long.MAX_VALUE);
+		this.max.set(0);
+	}
+
+
+	/**
+	 *
+	 * @param percentile The percentile, between <code>0</code> and <code>100</code>
+	 * @return The highest value that is equivalent (within the precision of this recorder) to the value at the given percentile, or <code>0</code> if no values were
+	 *         recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = this.totalCount.get();
+		if(total == 0)
+			return 0;
+		long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * total));
+		long cumulative = 0;
+		for(int i = 0; i < this.counts.length(); i++){
+			cumulative += this.counts.get(i);
+			if(cumulative >= target)
+				return Math.min(this.highestEquivalentValue(i), this.max.get());
+		}
+		return this.max.get();
+	}
+
+	/**
+	 *
+	 * @return The number of recorded values
+	 */
+	public long getCount() {
+		return this.totalCount.get();
+	}
+
+	/**
+	 *
+	 * @return The smallest recorded value, or <code>0</code> if no values were recorded
+	 */
+	public long getMin() {
+		return this.totalCount.get() > 0 ? this.min.get() : 0;
+	}
+
+	/**
+	 *
+	 * @return The largest recorded value, or <code>0</code> if no values were recorded
+	 */
+	public long getMax() {
+		return this.max.get();
+	}
+
+	/**
+	 *
+	 * @return The arithmetic mean of all recorded values, or <code>0</code> if no values were recorded
+	 */
+	public double getMean() {
+		long total = this.totalCount.get();
+		return total > 0 ? (double) this.sum.get() / total : 0;
+	}
+
+
+	private int indexOf(long value) {
+		if(value < this.subBucketCount)
+			return (int) value;
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - (this.subBucketBits - 1);
+		int sub = (int) (value >>> shift);
+		return this.subBucketCount + (shift - 1) * this.subBucketHalfCount + (sub - this.subBucketHalfCount);
+	}
+
+	private long highestEquivalentValue(int index) {
+		if(index < this.subBucketCount)
+			return index;
+		int j = index - this.subBucketCount;
+		int shift = j / this.subBucketHalfCount + 1;
+		long sub = j % this.subBucketHalfCount + this.subBucketHalfCount;
+		return ((sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket.load;
+
+/**
+ * The results of two {@link LoadGenerator} runs with the same workload, where the second run differs from the first, baseline run in one setting.
+ *
+ * @see CodecBenchmark
+ * @see CaptureBenchmark
+ */
+public class LoadComparison {
+
+	private final String baselineName;
+	private final LoadReport baselineReport;
+	private final String comparedName;
+	private final LoadReport comparedReport;
+
+	LoadComparison(String baselineName, LoadReport baselineReport, String comparedName, LoadReport comparedReport) {
+		this.baselineName = baselineName;
+		this.baselineReport = baselineReport;
+		this.comparedName = comparedName;
+		this.comparedReport = comparedReport;
+	}
+
+
+	/**
+	 *
+	 * @return The results of the baseline run
+	 */
+	public LoadReport getBaselineReport() {
+		return this.baselineReport;
+	}
+
+	/**
+	 *
+	 * @return The results of the run compared with the baseline
+	 */
+	public LoadReport getComparedReport() {
+		return this.comparedReport;
+	}
+
+	/**
+	 *
+	 * @return The message throughput of the compared run divided by the message throughput of the baseline run
+	 */
+	public double getThroughputRatio() {
+		return this.comparedReport.getMessageThroughput() / this.baselineReport.getMessageThroughput();
+	}
+
+	/**
+	 *
+	 * @return The throughput lost in the compared run, as a fraction of the throughput of the baseline run. Negative if the compared run had a higher throughput
+	 */
+	public double getThroughputOverhead() {
+		return 1 - this.getThroughputRatio();
+	}
+
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("== ").append(this.baselineName).append(" ==\n").append(this.baselineReport);
+		sb.append("== ").append(this.comparedName).append(" ==\n").append(this.comparedReport);
+		sb.append(String.format("throughput ratio (%s / %s): %.3f (overhead %.1f%%)%n", this.comparedName, this.baselineName, this.getThroughputRatio(),
+				this.getThroughputOverhead() * 100));
+		return sb.toString();
+	}
+}
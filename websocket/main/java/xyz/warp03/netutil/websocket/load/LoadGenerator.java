@@ -0,0 +1,419 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket.load;
+
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.omegazero.common.logging.Logger;
+import org.omegazero.common.logging.LoggerUtil;
+import org.omegazero.net.client.NetClientManager;
+
+import xyz.warp03.netutil.websocket.MessageCodec;
+import xyz.warp03.netutil.websocket.WSClientFactory;
+import xyz.warp03.netutil.websocket.WSCommon;
+import xyz.warp03.netutil.websocket.WebSocketChannel;
+import xyz.warp03.netutil.websocket.WebSocketClient;
+
+/**
+ * A load generator for measuring the capacity of a WebSocket server.<br>
+ * <br>
+ * The load generator opens a configurable number of {@link WebSocketClient} connections at a fixed rate and sends binary messages of a fixed size at a fixed rate on each
+ * connection. The server is expected to echo every message back unchanged (see {@link #echo(WebSocketChannel)}). Every echo is checked against the sent message and the
+ * round trip time is recorded. After the run, a {@link LoadReport} containing throughput, handshake and message latency percentiles and connection failures is returned.
+ * <br>
+ * <br>
+ * Messages are built in an array and sent with {@link WebSocketChannel#write(byte[])}, or, if enabled with {@link #setUseCodec(boolean)}, encoded directly into the frame
+ * with {@link WebSocketChannel#send(MessageCodec, Object)}. The content of the messages is the same either way.
+ * <br>
+ * <br>
+ * To get repeatable results that are not influenced by the network, the target must be a loopback address.
+ */
+public class LoadGenerator {
+
+	private static final Logger logger = LoggerUtil.createLogger();
+
+	/**
+	 * The size of the header of each sent message, containing the send time and the sequence number of the message. This is the minimum message size.
+	 */
+	public static final int MESSAGE_HEADER_SIZE = 16;
+
+
+	private final NetClientManager clientManager;
+	private final URL target;
+
+	private int connections = 100;
+	private double connectRate = 1000;
+	private int connectTimeout = 5000;
+	private int messageSize = 64;
+	private double messageRate = 10;
+	private long duration = 10000;
+	private long drainTime = 2000;
+	private int threads = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+	private boolean useCodec = false;
+
+	/**
+	 * Creates a new <code>LoadGenerator</code>.
+	 *
+	 * @param clientManager The client manager to create connections with
+	 * @param target        The URL of the WebSocket server
+	 * @throws UnknownHostException     If the host of the <b>target</b> URL could not be resolved
+	 * @throws IllegalArgumentException If the host of the <b>target</b> URL is not a loopback address
+	 */
+	public LoadGenerator(NetClientManager clientManager, URL target) throws UnknownHostException {
+		this.clientManager = Objects.requireNonNull(clientManager);
+		this.target = Objects.requireNonNull(target);
+		if(!InetAddress.getByName(target.getHost()).isLoopbackAddress())
+			throw new IllegalArgumentException("Target host must be a loopback address: " + target.getHost());
+	}
+
+
+	/**
+	 *
+	 * @param connections The number of connections to open. Default is <code>100</code>
+	 */
+	public void setConnections(int connections) {
+		if(connections <= 0)
+			throw new IllegalArgumentException("connections must be positive");
+		this.connections = connections;
+	}
+
+	/**
+	 *
+	 * @param connectRate The number of new connections started per second while ramping up. Default is <code>1000</code>
+	 */
+	public void setConnectRate(double connectRate) {
+		if(!(connectRate > 0))
+			throw new IllegalArgumentException("connectRate must be positive");
+		this.connectRate = connectRate;
+	}
+
+	/**
+	 *
+	 * @param connectTimeout The connect timeout of each connection in milliseconds. Default is <code>5000</code>
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 *
+	 * @param messageSize The size of each message in bytes. Must be at least {@link #MESSAGE_HEADER_SIZE}. Default is <code>64</code>
+	 */
+	public void setMessageSize(int messageSize) {
+		if(messageSize < MESSAGE_HEADER_SIZE)
+			throw new IllegalArgumentException("messageSize must be at least " + MESSAGE_HEADER_SIZE);
+		this.messageSize = messageSize;
+	}
+
+	/**
+	 *
+	 * @param messageRate The number of messages sent per second on each connection. Default is <code>10</code>
+	 */
+	public void setMessageRate(double messageRate) {
+		if(!(messageRate > 0))
+			throw new IllegalArgumentException("messageRate must be positive");
+		this.messageRate = messageRate;
+	}
+
+	/**
+	 *
+	 * @param duration The time in milliseconds messages are sent for, after all connections were started. Default is <code>10000</code>
+	 */
+	public void setDuration(long duration) {
+		this.duration = duration;
+	}
+
+	/**
+	 *
+	 * @param drainTime The time in milliseconds to wait for outstanding echoes after sending stopped. Default is <code>2000</code>
+	 */
+	public void setDrainTime(long drainTime) {
+		this.drainTime = drainTime;
+	}
+
+	/**
+	 *
+	 * @param threads The number of threads used for starting connections and sending messages
+	 */
+	public void setThreads(int threads) {
+		if(threads <= 0)
+			throw new IllegalArgumentException("threads must be positive");
+		this.threads = threads;
+	}
+
+	/**
+	 *
+	 * @param useCodec Whether messages are encoded directly into the frame by a {@link MessageCodec} instead of being sent with {@link WebSocketChannel#write(byte[])}.
+	 *                 Default is <code>false</code>
+	 */
+	public void setUseCodec(boolean useCodec) {
+		this.useCodec = useCodec;
+	}
+
+
+	/**
+	 * Runs the load test. This method blocks until the test is complete, which takes approximately the time needed to start all connections, plus the configured duration and
+	 * drain time.
+	 *
+	 * @return The results
+	 * @throws InterruptedException If the calling thread is interrupted while waiting
+	 */
+	public LoadReport run() throws InterruptedException {
+		Run run = new Run();
+		AtomicInteger threadIndex = new AtomicInteger();
+		ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(this.threads, (r) -> {
+			Thread t = new Thread(r, "LoadGenerator-" + threadIndex.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		try(WSClientFactory factory = new WSClientFactory(this.clientManager)){
+			long rampInterval = (long) (1e9 / this.connectRate);
+			for(int i = 0; i < this.connections; i++){
+				scheduler.schedule(() -> {
+					this.openConnection(run, factory, scheduler);
+				}, i * rampInterval, TimeUnit.NANOSECONDS);
+			}
+			long rampTime = (this.connections - 1) * rampInterval;
+			TimeUnit.NANOSECONDS.sleep(rampTime);
+			run.measureStart = System.nanoTime();
+			Thread.sleep(this.duration);
+			run.measureEnd = System.nanoTime();
+
+			run.sending = false;
+			for(LoadConnection lc : run.openConnections)
+				lc.stopSending();
+			Thread.sleep(this.drainTime);
+
+			for(LoadConnection lc : run.openConnections)
+				lc.close();
+
+			int established = run.established.get();
+			return new LoadReport(this.connections, established, this.connections - established, run.messagesSent.get(), run.messagesReceived.get(),
+					run.echoMismatches.get(), run.measuredMessages.get(), run.measuredBytes.get(), run.measureEnd - run.measureStart, run.handshakeLatency,
+					run.messageLatency);
+		}finally{
+			scheduler.shutdownNow();
+		}
+	}
+
+	private void openConnection(Run run, WSClientFactory factory, ScheduledExecutorService scheduler) {
+		if(!run.sending)
+			return;
+		factory.createClient(this.target).whenComplete((client, err) -> {
+			if(err != null){
+				logger.debug("Failed to create client: ", err);
+				return;
+			}
+			LoadConnection lc = new LoadConnection(run, client, scheduler);
+			run.openConnections.add(lc);
+			client.getConnection().setOnConnect(client::start);
+			client.setOnConnect(lc::handshakeComplete);
+			client.setOnMessage((data, binary) -> {
+				lc.messageReceived(data);
+			});
+			client.setOnError((e) -> {
+				logger.debug("Connection error: ", e);
+			});
+			client.setOnClose((status) -> {
+				lc.stopSending();
+			});
+			lc.connectStart = System.nanoTime();
+			client.getConnection().connect(this.connectTimeout);
+		});
+	}
+
+
+	/**
+	 * Sets the message handler of the given <b>channel</b> to send every received message back to the peer unchanged. This may be used with
+	 * {@link xyz.warp03.netutil.websocket.WebSocketServer#setOnClient(java.util.function.Consumer) WebSocketServer.setOnClient} to set up a server for use with a
+	 * <code>LoadGenerator</code>.
+	 *
+	 * @param channel The channel
+	 */
+	public static void echo(WebSocketChannel channel) {
+		channel.setOnMessage((data, binary) -> {
+			if(binary)
+				channel.write(data);
+			else
+				channel.write(new String(data, StandardCharsets.UTF_8));
+		});
+	}
+
+
+	private static void writeLongBE(byte[] data, int offset, long value) {
+		for(int i = 0; i < 8; i++)
+			data[offset + i] = (byte) (value >>> (7 - i) * 8);
+	}
+
+	private static byte payloadByte(long seq, int index) {
+		return (byte) (seq + index);
+	}
+
+	private static long readLongBE(byte[] data, int offset) {
+		long value = 0;
+		for(int i = 0; i < 8; i++)
+			value = (value << 8) | (data[offset + i] & 0xff);
+		return value;
+	}
+
+
+	private static class Run {
+
+		public volatile boolean sending = true;
+		// throughput is only counted between the end of the ramp-up and the time sending stops
+		public volatile long measureStart = Long.MAX_VALUE;
+		public volatile long measureEnd = Long.MAX_VALUE;
+
+		public final Queue<LoadConnection> openConnections = new ConcurrentLinkedQueue<>();
+
+		public final AtomicInteger established = new AtomicInteger();
+		public final AtomicLong messagesSent = new AtomicLong();
+		public final AtomicLong messagesReceived = new AtomicLong();
+		public final AtomicLong echoMismatches = new AtomicLong();
+		public final AtomicLong measuredMessages = new AtomicLong();
+		public final AtomicLong measuredBytes = new AtomicLong();
+
+		public final LatencyRecorder handshakeLatency = new LatencyRecorder();
+		public final LatencyRecorder messageLatency = new LatencyRecorder();
+	}
+
+	private class LoadConnection {
+
+		private final Run run;
+		private final WebSocketClient client;
+		private final ScheduledExecutorService scheduler;
+		private final byte[] payload;
+		private final PayloadCodec codec;
+
+		private long connectStart;
+		private ScheduledFuture<?> sender;
+		private long nextSendSeq = 0;
+		private long nextReceiveSeq = 0;
+
+		public LoadConnection(Run run, WebSocketClient client, ScheduledExecutorService scheduler) {
+			this.run = run;
+			this.client = client;
+			this.scheduler = scheduler;
+			this.payload = new byte[LoadGenerator.this.messageSize];
+			this.codec = LoadGenerator.this.useCodec ? new PayloadCodec(this.payload.length) : null;
+		}
+
+
+		public synchronized void handshakeComplete() {
+			this.run.handshakeLatency.record(System.nanoTime() - this.connectStart);
+			this.run.established.incrementAndGet();
+			if(this.run.sending)
+				this.sender = this.scheduler.scheduleAtFixedRate(this::send, 0, (long) (1e9 / LoadGenerator.this.messageRate), TimeUnit.NANOSECONDS);
+		}
+
+		public synchronized void stopSending() {
+			if(this.sender != null){
+				this.sender.cancel(false);
+				this.sender = null;
+			}
+		}
+
+		public void close() {
+			this.stopSending();
+			try{
+				if(this.client.isOpen())
+					this.client.close(WSCommon.WS_STATUS_NORMAL);
+				else
+					this.client.getConnection().close();
+			}catch(RuntimeException e){
+				logger.debug("Error while closing connection: ", e);
+			}
+		}
+
+		private synchronized void send() {
+			if(!this.client.isOpen() || !this.run.sending)
+				return;
+			long seq = this.nextSendSeq++;
+			if(this.codec != null){
+				this.client.send(this.codec, seq);
+			}else{
+				for(int i = MESSAGE_HEADER_SIZE; i < this.payload.length; i++)
+					this.payload[i] = payloadByte(seq, i);
+				writeLongBE(this.payload, 8, seq);
+				writeLongBE(this.payload, 0, System.nanoTime());
+				this.client.write(this.payload);
+			}
+			this.run.messagesSent.incrementAndGet();
+		}
+
+		public synchronized void messageReceived(byte[] data) {
+			long now = System.nanoTime();
+			if(data.length != this.payload.length || !this.verify(data)){
+				this.run.echoMismatches.incrementAndGet();
+				return;
+			}
+			this.run.messageLatency.record(now - readLongBE(data, 0));
+			this.run.messagesReceived.incrementAndGet();
+			if(now >= this.run.measureStart && now < this.run.measureEnd){
+				this.run.measuredMessages.incrementAndGet();
+				this.run.measuredBytes.addAndGet(data.length);
+			}
+		}
+
+		private boolean verify(byte[] data) {
+			long seq = readLongBE(data, 8);
+			// echoes must arrive in the order the messages were sent (messages that never arrive are counted as lost, not mismatched)
+			if(seq < this.nextReceiveSeq || seq >= this.nextSendSeq)
+				return false;
+			for(int i = MESSAGE_HEADER_SIZE; i < data.length; i++){
+				if(data[i] != payloadByte(seq, i))
+					return false;
+			}
+			this.nextReceiveSeq = seq + 1;
+			return true;
+		}
+	}
+
+
+	// encodes the message with the given sequence number straight into the frame, with the same content as the array built by LoadConnection.send
+	private static class PayloadCodec implements MessageCodec<Long> {
+
+		private final int size;
+
+		public PayloadCodec(int size) {
+			this.size = size;
+		}
+
+
+		@Override
+		public int getEncodedSize(Long message) {
+			return this.size;
+		}
+
+		@Override
+		public void encode(Long message, ByteBuffer buffer) {
+			long seq = message;
+			buffer.putLong(System.nanoTime());
+			buffer.putLong(seq);
+			for(int i = MESSAGE_HEADER_SIZE; i < this.size; i++)
+				buffer.put(payloadByte(seq, i));
+		}
+
+		@Override
+		public Long decode(ByteBuffer buffer) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2021-2023 warp03
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package xyz.warp03.netutil.websocket.load;
+
+/**
+ * The result of a {@link LoadGenerator} run.
+ */
+public class LoadReport {
+
+	private final int attemptedConnections;
+	private final int establishedConnections;
+	private final int failedConnections;
+	private final long messagesSent;
+	private final long messagesReceived;
+	private final long echoMismatches;
+	private final long measuredMessages;
+	private final long measuredBytes;
+	private final long durationNanos;
+	private final LatencyRecorder handshakeLatency;
+	private final LatencyRecorder messageLatency;
+
+	LoadReport(int attemptedConnections, int establishedConnections, int failedConnections, long messagesSent, long messagesReceived, long echoMismatches,
+			long measuredMessages, long measuredBytes, long durationNanos, LatencyRecorder handshakeLatency, LatencyRecorder messageLatency) {
+		this.attemptedConnections = attemptedConnections;
+		this.establishedConnections = establishedConnections;
+		this.failedConnections = failedConnections;
+		this.messagesSent = messagesSent;
+		this.messagesReceived = messagesReceived;
+		this.echoMismatches = echoMismatches;
+		this.measuredMessages = measuredMessages;
+		this.measuredBytes = measuredBytes;
+		this.durationNanos = durationNanos;
+		this.handshakeLatency = handshakeLatency;
+		this.messageLatency = messageLatency;
+	}
+
+
+	/**
+	 *
+	 * @return The number of connections the load generator attempted to open
+	 */
+	public int getAttemptedConnections() {
+		return this.attemptedConnections;
+	}
+
+	/**
+	 *
+	 * @return The number of connections that completed the WebSocket handshake
+	 */
+	public int getEstablishedConnections() {
+		return this.establishedConnections;
+	}
+
+	/**
+	 *
+	 * @return The number of connections that could not be created, failed before the WebSocket handshake completed, or did not complete the handshake in time
+	 */
+	public int getFailedConnections() {
+		return this.failedConnections;
+	}
+
+	/**
+	 *
+	 * @return The number of messages sent
+	 */
+	public long getMessagesSent() {
+		return this.messagesSent;
+	}
+
+	/**
+	 *
+	 * @return The number of echoed messages received
+	 */
+	public long getMessagesReceived() {
+		return this.messagesReceived;
+	}
+
+	/**
+	 *
+	 * @return The number of received messages that did not match any sent message
+	 */
+	public long getEchoMismatches() {
+		return this.echoMismatches;
+	}
+
+	/**
+	 *
+	 * @return The number of messages that were sent, but for which no echo was received before the end of the run
+	 */
+	public long getMessagesLost() {
+		return Math.max(0, this.messagesSent - this.messagesReceived);
+	}
+
+	/**
+	 *
+	 * @return The number of echoed messages received during the measurement phase
+	 */
+	public long getMeasuredMessages() {
+		return this.measuredMessages;
+	}
+
+	/**
+	 *
+	 * @return The duration of the measurement phase in nanoseconds. The measurement phase starts after all connections were started and ends when sending stops; it does not
+	 *         include the ramp-up or the drain time
+	 */
+	public long getDurationNanos() {
+		return this.durationNanos;
+	}
+
+	/**
+	 *
+	 * @return The number of echoed messages received per second during the measurement phase
+	 */
+	public double getMessageThroughput() {
+		return this.durationNanos > 0 ? this.measuredMessages * 1e9 / this.durationNanos : 0;
+	}
+
+	/**
+	 *
+	 * @return The number of echoed payload bytes received per second during the measurement phase
+	 */
+	public double getByteThroughput() {
+		return this.durationNanos > 0 ? this.measuredBytes * 1e9 / this.durationNanos : 0;
+	}
+
+	/**
+	 *
+	 * @return The recorder containing the time in nanoseconds from starting a TCP connection until the WebSocket handshake completed, for each established connection
+	 */
+	public LatencyRecorder getHandshakeLatency() {
+		return this.handshakeLatency;
+	}
+
+	/**
+	 *
+	 * @return The recorder containing the round trip time in nanoseconds of each echoed message
+	 */
+	public LatencyRecorder getMessageLatency() {
+		return this.messageLatency;
+	}
+
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("connections: attempted=").append(this.attemptedConnections).append(" established=").append(this.establishedConnections).append(" failed=")
+				.append(this.failedConnections).append('\n');
+		sb.append("messages: sent=").append(this.messagesSent).append(" received=").append(this.messagesReceived).append(" lost=").append(this.getMessagesLost())
+				.append(" mismatched=").append(this.echoMismatches).append('\n');
+		sb.append(String.format("throughput: %.1f msg/s, %.1f KiB/s over %.3fs%n", this.getMessageThroughput(), this.getByteThroughput() / 1024, this.durationNanos / 1e9));
+		appendLatency(sb, "handshake latency", this.handshakeLatency);
+		appendLatency(sb, "message latency", this.messageLatency);
+		return sb.toString();
+	}
+
+	private static void appendLatency(StringBuilder sb, String name, LatencyRecorder recorder) {
+		sb.append(String.format("%s (us): n=%d min=%.1f p50=%.1f p99=%.1f p999=%.1f max=%.1f mean=%.1f%n", name, recorder.getCount(), recorder.getMin() / 1e3,
+				recorder.getValueAtPercentile(50) / 1e3, recorder.getValueAtPercentile(99) / 1e3, recorder.getValueAtPercentile(99.9) / 1e3, recorder.getMax() / 1e3,
+				recorder.getMean() / 1e3));
+	}
+}